@@ -0,0 +1,109 @@
+/*
+ * Copyright 2017 Brice Dutheil
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.arkey.elasticsearch.oauth.realm.roles;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Role lookups of user ids, in the heap role mapping and in the memory mapped compiled role mapping.
+ *
+ * Exact user ids without scope return the shared role array, the GC profiler should report no allocation.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@State(Scope.Benchmark)
+public class RoleMappingBenchmark {
+    private static final int ROLES = 64;
+
+    @Param({"10000", "100000", "1000000"})
+    public int users;
+
+    @Param({"heap", "compiled"})
+    public String format;
+
+    private Path compiledFile;
+    private RoleMapping roleMapping;
+    private String[] userIds;
+    private final Set<String> noScopes = Collections.emptySet();
+    private final Set<String> scopes = Collections.singleton("read");
+
+    @Setup
+    public void set_up_role_mapping() throws IOException {
+        RoleMapping.Builder builder = new RoleMapping.Builder();
+        userIds = new String[users];
+        for (int i = 0; i < users; i++) {
+            userIds[i] = "user-" + i;
+            builder.add("role-" + (i % ROLES), userIds[i]);
+            // a tenth of the users have a second role
+            if (i % 10 == 0) {
+                builder.add("role-" + ((i + 1) % ROLES), userIds[i]);
+            }
+        }
+        builder.add("reader", RoleMapping.SCOPE_PREFIX + "read");
+
+        if ("compiled".equals(format)) {
+            compiledFile = Files.createTempFile("oauth_role_mapping", ".bin");
+            CompiledRoleMapping.write(builder, new byte[CompiledRoleMapping.DIGEST_LENGTH], compiledFile);
+            roleMapping = CompiledRoleMapping.load(compiledFile);
+        } else {
+            roleMapping = builder.build();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void delete_compiled_role_mapping() throws IOException {
+        if (compiledFile != null) {
+            Files.deleteIfExists(compiledFile);
+        }
+    }
+
+    @Benchmark
+    public String[] mapped_user() {
+        return roleMapping.rolesFor(userIds[ThreadLocalRandom.current().nextInt(users)], noScopes);
+    }
+
+    @Benchmark
+    public String[] mapped_user_with_scope() {
+        return roleMapping.rolesFor(userIds[ThreadLocalRandom.current().nextInt(users)], scopes);
+    }
+
+    @Benchmark
+    public String[] unknown_user() {
+        return roleMapping.rolesFor("unknown-user", noScopes);
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2017 Brice Dutheil
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.arkey.elasticsearch.oauth.realm.roles;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Loads of a role mapping of up to a million user ids : parsing the YAML file and building the heap role mapping,
+ * compiling it to the memory mapped format, and loading the compiled file.
+ *
+ * These are the costs paid at node startup and on every reload, each operation is a single shot.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Benchmark)
+public class RoleMappingLoadBenchmark {
+    private static final int ROLES = 64;
+
+    @Param({"100000", "1000000"})
+    public int users;
+
+    private byte[] content;
+    private Path compiledFile;
+    private Path targetFile;
+
+    @Setup(Level.Trial)
+    public void set_up_role_mapping_file() throws IOException {
+        StringBuilder yaml = new StringBuilder(users * 20);
+        for (int role = 0; role < ROLES; role++) {
+            yaml.append("role-").append(role).append(":\n");
+            for (int i = role; i < users; i += ROLES) {
+                yaml.append("  - user-").append(i).append('\n');
+            }
+        }
+        yaml.append("reader:\n  - scope:read\n  - svc-*\n");
+        content = yaml.toString().getBytes(UTF_8);
+
+        compiledFile = Files.createTempFile("oauth_role_mapping", ".bin");
+        targetFile = Files.createTempFile("oauth_role_mapping_target", ".bin");
+        CompiledRoleMapping.write(builder(), new byte[CompiledRoleMapping.DIGEST_LENGTH], compiledFile);
+    }
+
+    @TearDown(Level.Trial)
+    public void delete_compiled_role_mappings() throws IOException {
+        Files.deleteIfExists(compiledFile);
+        Files.deleteIfExists(targetFile);
+    }
+
+    @Benchmark
+    public RoleMapping parse_and_build() throws IOException {
+        return builder().build();
+    }
+
+    @Benchmark
+    public void parse_and_compile() throws IOException {
+        CompiledRoleMapping.write(builder(), new byte[CompiledRoleMapping.DIGEST_LENGTH], targetFile);
+    }
+
+    @Benchmark
+    public RoleMapping load_compiled() throws IOException {
+        return CompiledRoleMapping.load(compiledFile);
+    }
+
+    private RoleMapping.Builder builder() throws IOException {
+        return RefreshableOAuthRoleMapper.parseRoleMapping("oauth_role_mapping.yml", content);
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2017 Brice Dutheil
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.arkey.elasticsearch.oauth.realm.tokeninfo;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import fr.arkey.elasticsearch.oauth.realm.OAuthRealm;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.ThreadContext;
+import org.elasticsearch.xpack.security.authc.RealmConfig;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import static java.time.temporal.ChronoUnit.HOURS;
+import static java.util.Collections.emptySet;
+
+/**
+ * Token cache hits and misses, with a delegate answering right away, so only the cache, the expiration
+ * check and the introspection counters are measured.
+ *
+ * Misses go through tokens never seen before, a miss also evicts an entry once the cache is full.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CachingOAuthTokenRetrieverBenchmark {
+    private static final int HIT_TOKENS = 1024;
+    private static final int MISS_TOKENS = 1 << 20;
+
+    @Param({"20000"})
+    public int cacheSize;
+
+    private CachingOAuthTokenRetriever retriever;
+    private String[] hitTokens;
+    private String[] missTokens;
+
+    @Setup
+    public void set_up_cache() {
+        IntrospectionResult valid = IntrospectionResult.valid(new TokenInfo("bob", 1, HOURS, emptySet()));
+        retriever = new CachingOAuthTokenRetriever(realmConfig(cacheSize),
+                                                   accessToken -> valid,
+                                                   TokenInfo::isExpired);
+        hitTokens = tokens("hit-", HIT_TOKENS);
+        for (String hitToken : hitTokens) {
+            retriever.introspect(hitToken);
+        }
+        missTokens = tokens("miss-", MISS_TOKENS);
+    }
+
+    @State(Scope.Thread)
+    public static class ThreadTokens {
+        private int next = ThreadLocalRandom.current().nextInt(MISS_TOKENS);
+
+        String hit(String[] hitTokens) {
+            return hitTokens[ThreadLocalRandom.current().nextInt(hitTokens.length)];
+        }
+
+        String miss(String[] missTokens) {
+            next = (next + 1) & (MISS_TOKENS - 1);
+            return missTokens[next];
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public IntrospectionResult hit_1_thread(ThreadTokens tokens) {
+        return retriever.introspect(tokens.hit(hitTokens));
+    }
+
+    @Benchmark
+    @Threads(16)
+    public IntrospectionResult hit_16_threads(ThreadTokens tokens) {
+        return retriever.introspect(tokens.hit(hitTokens));
+    }
+
+    @Benchmark
+    @Threads(64)
+    public IntrospectionResult hit_64_threads(ThreadTokens tokens) {
+        return retriever.introspect(tokens.hit(hitTokens));
+    }
+
+    @Benchmark
+    @Threads(1)
+    public IntrospectionResult miss_1_thread(ThreadTokens tokens) {
+        return retriever.introspect(tokens.miss(missTokens));
+    }
+
+    @Benchmark
+    @Threads(16)
+    public IntrospectionResult miss_16_threads(ThreadTokens tokens) {
+        return retriever.introspect(tokens.miss(missTokens));
+    }
+
+    @Benchmark
+    @Threads(64)
+    public IntrospectionResult miss_64_threads(ThreadTokens tokens) {
+        return retriever.introspect(tokens.miss(missTokens));
+    }
+
+    private static String[] tokens(String prefix, int count) {
+        String[] tokens = new String[count];
+        for (int i = 0; i < count; i++) {
+            tokens[i] = prefix + Integer.toHexString(i) + "-0123456789abcdef0123456789abcdef";
+        }
+        return tokens;
+    }
+
+    private static RealmConfig realmConfig(int cacheSize) {
+        return new RealmConfig("oauth",
+                               Settings.builder()
+                                       .put("type", OAuthRealm.TYPE)
+                                       .put("token-info.cache.max-size", cacheSize)
+                                       .build(),
+                               Settings.builder()
+                                       .put("path.home", System.getProperty("java.io.tmpdir"))
+                                       .build(),
+                               new ThreadContext(Settings.EMPTY));
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2017 Brice Dutheil
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.arkey.elasticsearch.oauth.realm.tokeninfo;
+
+import java.util.concurrent.TimeUnit;
+import com.github.tomakehurst.wiremock.WireMockServer;
+import fr.arkey.elasticsearch.oauth.realm.OAuthRealm;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.ThreadContext;
+import org.elasticsearch.xpack.security.authc.RealmConfig;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.okJson;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.wireMockConfig;
+
+/**
+ * Token cache misses, each one being a token info request to the identity provider, through the HTTP
+ * client connection pool.
+ *
+ * The identity provider is a local stub serving HTTP/1.1, the {@code benchmark.idp.url} system property points
+ * the benchmark at another identity provider instead, e.g. one serving HTTP/2 to compare with {@code http2=true}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HttpOAuthTokenRetrieverBenchmark {
+    private static final String TOKEN_INFO = "{\"user_id\":\"bob\",\"expires_in\":3600,\"scope\":[\"read\"]}";
+
+    @Param({"false"})
+    public boolean http2;
+
+    private WireMockServer idp;
+    private HttpOAuthTokenRetriever retriever;
+
+    @Setup
+    public void set_up_idp() {
+        String tokenInfoUrl = System.getProperty("benchmark.idp.url");
+        if (tokenInfoUrl == null) {
+            idp = new WireMockServer(wireMockConfig().dynamicPort().containerThreads(128));
+            idp.start();
+            idp.stubFor(get(urlEqualTo("/token-info")).willReturn(okJson(TOKEN_INFO)));
+            tokenInfoUrl = "http://localhost:" + idp.port() + "/token-info";
+        }
+        RealmConfig realmConfig = new RealmConfig("oauth",
+                                                  Settings.builder()
+                                                          .put("type", OAuthRealm.TYPE)
+                                                          .put("token-info.url", tokenInfoUrl)
+                                                          .put("token-info.field.user", "user_id")
+                                                          .put("token-info.field.scope", "scope")
+                                                          .put("token-info.field.expires-in", "expires_in")
+                                                          .put("idp.http2", http2)
+                                                          .put("idp.prewarm-connections", 16)
+                                                          .build(),
+                                                  Settings.builder()
+                                                          .put("path.home", System.getProperty("java.io.tmpdir"))
+                                                          .build(),
+                                                  new ThreadContext(Settings.EMPTY));
+        retriever = new HttpOAuthTokenRetriever(realmConfig, new MapTokenInfo(realmConfig));
+    }
+
+    @TearDown(Level.Trial)
+    public void stop_idp() {
+        retriever.close();
+        if (idp != null) {
+            idp.stop();
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public IntrospectionResult miss_1_thread() {
+        return retriever.introspect("an_access_token");
+    }
+
+    @Benchmark
+    @Threads(16)
+    public IntrospectionResult miss_16_threads() {
+        return retriever.introspect("an_access_token");
+    }
+
+    @Benchmark
+    @Threads(64)
+    public IntrospectionResult miss_64_threads() {
+        return retriever.introspect("an_access_token");
+    }
+}
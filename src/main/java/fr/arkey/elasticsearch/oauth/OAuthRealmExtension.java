@@ -21,13 +21,14 @@ import fr.arkey.elasticsearch.oauth.realm.AccessToken;
 import fr.arkey.elasticsearch.oauth.realm.OAuthAuthenticationFailureHandler;
 import fr.arkey.elasticsearch.oauth.realm.OAuthRealm;
 import fr.arkey.elasticsearch.oauth.realm.OAuthReamFactory;
+import fr.arkey.elasticsearch.oauth.realm.tokeninfo.CachingOAuthTokenRetriever;
 import org.elasticsearch.common.collect.MapBuilder;
 import org.elasticsearch.watcher.ResourceWatcherService;
 import org.elasticsearch.xpack.extensions.XPackExtension;
 import org.elasticsearch.xpack.security.authc.AuthenticationFailureHandler;
 import org.elasticsearch.xpack.security.authc.Realm;
 
-import static java.util.Collections.singleton;
+import static java.util.Arrays.asList;
 
 public class OAuthRealmExtension extends XPackExtension {
     @Override
@@ -46,7 +47,7 @@ public class OAuthRealmExtension extends XPackExtension {
      */
     @Override
     public Collection<String> getRestHeaders() {
-        return singleton(AccessToken.AUTHORIZATION_HEADER);
+        return asList(AccessToken.AUTHORIZATION_HEADER, CachingOAuthTokenRetriever.FORWARDED_FOR_HEADER);
     }
 
 
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2017 Brice Dutheil
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.arkey.elasticsearch.oauth.realm;
+
+import java.util.concurrent.atomic.LongAdder;
+import fr.arkey.elasticsearch.oauth.realm.stats.TokenValidationStats;
+import org.elasticsearch.xpack.security.authc.RealmConfig;
+
+/**
+ * Syntax check of the bearer tokens, so that junk sent by scanners is rejected before reaching the token cache
+ * and the identity provider.
+ *
+ * A token must be a RFC 6750 {@code b64token} : letters, digits, {@code -._~+/}, optionally followed by
+ * {@code =} padding, and at most {@code token.max-length} characters long. With {@code token.require-jwt} it must
+ * also have the shape of a compact JWT : three base64url segments separated by dots, the header and the payload
+ * being non empty. The check is a single pass over the characters that doesn't allocate, rejections are
+ * counted by reason.
+ */
+public class BearerTokenValidator {
+    public static final int DEFAULT_MAX_LENGTH = 4096;
+
+    /**
+     * Outcome of the validation of a token.
+     */
+    public enum Verdict {
+        VALID, EMPTY, TOO_LONG, INVALID_CHARACTER, NOT_A_JWT
+    }
+
+    private static final boolean[] B64TOKEN = new boolean[128];
+    private static final boolean[] BASE64URL = new boolean[128];
+
+    static {
+        for (char c = 'a'; c <= 'z'; c++) {
+            B64TOKEN[c] = BASE64URL[c] = true;
+            B64TOKEN[Character.toUpperCase(c)] = BASE64URL[Character.toUpperCase(c)] = true;
+        }
+        for (char c = '0'; c <= '9'; c++) {
+            B64TOKEN[c] = BASE64URL[c] = true;
+        }
+        B64TOKEN['-'] = BASE64URL['-'] = true;
+        B64TOKEN['_'] = BASE64URL['_'] = true;
+        B64TOKEN['.'] = true;
+        B64TOKEN['~'] = true;
+        B64TOKEN['+'] = true;
+        B64TOKEN['/'] = true;
+    }
+
+    private final int maxLength;
+    private final boolean requireJwt;
+    private final LongAdder[] rejections = new LongAdder[Verdict.values().length];
+
+    public BearerTokenValidator(RealmConfig config) {
+        this(config.settings().getAsInt("token.max-length", DEFAULT_MAX_LENGTH),
+             config.settings().getAsBoolean("token.require-jwt", false));
+    }
+
+    BearerTokenValidator(int maxLength, boolean requireJwt) {
+        this.maxLength = maxLength;
+        this.requireJwt = requireJwt;
+        for (int i = 0; i < rejections.length; i++) {
+            rejections[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * @param token the token, without the {@code Bearer } prefix
+     * @return whether the token is syntactically valid, a rejection is counted otherwise
+     */
+    public boolean isValid(String token) {
+        Verdict verdict = validate(token);
+        if (verdict == Verdict.VALID) {
+            return true;
+        }
+        rejections[verdict.ordinal()].increment();
+        return false;
+    }
+
+    Verdict validate(String token) {
+        int length = token.length();
+        if (length == 0) {
+            return Verdict.EMPTY;
+        }
+        if (length > maxLength) {
+            return Verdict.TOO_LONG;
+        }
+        return requireJwt ? validateJwt(token, length) : validateB64Token(token, length);
+    }
+
+    private static Verdict validateB64Token(String token, int length) {
+        int i = 0;
+        for (; i < length; i++) {
+            char c = token.charAt(i);
+            if (c == '=') {
+                break;
+            }
+            if (c >= 128 || !B64TOKEN[c]) {
+                return Verdict.INVALID_CHARACTER;
+            }
+        }
+        if (i == 0) {
+            return Verdict.INVALID_CHARACTER;
+        }
+        for (; i < length; i++) {
+            if (token.charAt(i) != '=') {
+                return Verdict.INVALID_CHARACTER;
+            }
+        }
+        return Verdict.VALID;
+    }
+
+    private static Verdict validateJwt(String token, int length) {
+        int dots = 0;
+        int segmentStart = 0;
+        for (int i = 0; i < length; i++) {
+            char c = token.charAt(i);
+            if (c == '.') {
+                if (i == segmentStart || ++dots > 2) {
+                    return Verdict.NOT_A_JWT;
+                }
+                segmentStart = i + 1;
+            } else if (c >= 128 || !BASE64URL[c]) {
+                return isB64TokenOrPadding(c) ? Verdict.NOT_A_JWT : Verdict.INVALID_CHARACTER;
+            }
+        }
+        return dots == 2 ? Verdict.VALID : Verdict.NOT_A_JWT;
+    }
+
+    private static boolean isB64TokenOrPadding(char c) {
+        return c == '=' || (c < 128 && B64TOKEN[c]);
+    }
+
+    /**
+     * @return the number of rejected tokens by reason.
+     */
+    public TokenValidationStats stats() {
+        return new TokenValidationStats(rejections[Verdict.EMPTY.ordinal()].sum(),
+                                        rejections[Verdict.TOO_LONG.ordinal()].sum(),
+                                        rejections[Verdict.INVALID_CHARACTER.ordinal()].sum(),
+                                        rejections[Verdict.NOT_A_JWT.ordinal()].sum());
+    }
+}
@@ -15,9 +15,12 @@
  */
 package fr.arkey.elasticsearch.oauth.realm;
 
+import fr.arkey.elasticsearch.oauth.realm.support.OAuthRealmExceptions;
 import org.elasticsearch.ElasticsearchSecurityException;
 import org.elasticsearch.common.util.concurrent.ThreadContext;
 import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.transport.TransportMessage;
 import org.elasticsearch.xpack.security.authc.AuthenticationToken;
 import org.elasticsearch.xpack.security.authc.DefaultAuthenticationFailureHandler;
 
@@ -31,6 +34,9 @@ import org.elasticsearch.xpack.security.authc.DefaultAuthenticationFailureHandle
  * <a href="http://stackoverflow.com/questions/10239970/what-is-the-delimiter-for-www-authenticate-for-multiple-schemes">StackOverflow</a>.
  *
  * So the only thing handled is {@link #failedAuthentication(RestRequest, AuthenticationToken, ThreadContext)}, others are ignored.
+ *
+ * The exception is the rate limiting of token introspections, its {@code 429 Too Many Requests} is returned
+ * as is instead of being turned into an authentication error.
  */
 public class OAuthAuthenticationFailureHandler extends DefaultAuthenticationFailureHandler {
 
@@ -38,8 +44,29 @@ public class OAuthAuthenticationFailureHandler extends DefaultAuthenticationFail
     public ElasticsearchSecurityException failedAuthentication(RestRequest request, AuthenticationToken token, ThreadContext context) {
         ElasticsearchSecurityException e = super.failedAuthentication(request, token, context);
         if (token instanceof AccessToken) {
-            e.addHeader("WWW-Authenticate", "Bearer realm=\"security\" charset=\"UTF-8\"");
+            e.addHeader("WWW-Authenticate", OAuthRealmExceptions.BEARER_CHALLENGE);
         }
         return e;
     }
+
+    @Override
+    public ElasticsearchSecurityException exceptionProcessingRequest(RestRequest request, Exception e, ThreadContext context) {
+        if (isTooManyRequests(e)) {
+            return (ElasticsearchSecurityException) e;
+        }
+        return super.exceptionProcessingRequest(request, e, context);
+    }
+
+    @Override
+    public ElasticsearchSecurityException exceptionProcessingRequest(TransportMessage message, String action, Exception e, ThreadContext context) {
+        if (isTooManyRequests(e)) {
+            return (ElasticsearchSecurityException) e;
+        }
+        return super.exceptionProcessingRequest(message, action, e, context);
+    }
+
+    private static boolean isTooManyRequests(Exception e) {
+        return e instanceof ElasticsearchSecurityException
+               && ((ElasticsearchSecurityException) e).status() == RestStatus.TOO_MANY_REQUESTS;
+    }
 }
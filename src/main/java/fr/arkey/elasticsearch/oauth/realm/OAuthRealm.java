@@ -15,10 +15,21 @@
  */
 package fr.arkey.elasticsearch.oauth.realm;
 
+import java.util.Arrays;
+import java.util.LinkedHashSet;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import fr.arkey.elasticsearch.oauth.realm.roles.RefreshableOAuthRoleMapper;
+import fr.arkey.elasticsearch.oauth.realm.slowlog.AuthenticationTimings;
+import fr.arkey.elasticsearch.oauth.realm.slowlog.OAuthSlowLog;
+import fr.arkey.elasticsearch.oauth.realm.stats.TokenValidationStats;
+import fr.arkey.elasticsearch.oauth.realm.tokeninfo.IntrospectionResult;
 import fr.arkey.elasticsearch.oauth.realm.tokeninfo.OAuthTokenRetriever;
+import fr.arkey.elasticsearch.oauth.realm.tokeninfo.TokenInfo;
+import org.elasticsearch.ElasticsearchSecurityException;
 import org.elasticsearch.common.util.concurrent.ThreadContext;
 import org.elasticsearch.rest.RestRequest;
 import org.elasticsearch.xpack.security.authc.AuthenticationToken;
@@ -26,12 +37,24 @@ import org.elasticsearch.xpack.security.authc.Realm;
 import org.elasticsearch.xpack.security.authc.RealmConfig;
 import org.elasticsearch.xpack.security.user.User;
 
+import static java.util.concurrent.TimeUnit.SECONDS;
+
 public class OAuthRealm extends Realm {
     public static final String TYPE = "oauth";
+    public static final int DEFAULT_USER_LOOKUP_MAX_SIZE = 10_000;
+    public static final int DEFAULT_USER_LOOKUP_EXPIRATION_IN_SECONDS = 300;
     private static final AccessToken NOT_AN_OAUTH_TOKEN = null;
     private final RefreshableOAuthRoleMapper roleMapper;
     private final OAuthTokenRetriever oAuthTokenRetriever;
-
+    private final OAuthSlowLog slowLog;
+    private final BearerTokenValidator tokenValidator;
+    private final Cache<String, TokenInfo> recentlyAuthenticatedUsers;
+    /**
+     * Users built by this realm for the token infos, reused for every request made with the same token as
+     * long as the mapped roles don't change. Token infos are weakly referenced so they are forgotten once
+     * evicted from the token info cache.
+     */
+    private final Cache<TokenInfo, MappedUser> mappedUsers = CacheBuilder.newBuilder().weakKeys().build();
 
     public OAuthRealm(RealmConfig config,
                       OAuthTokenRetriever tokenInfoRetriever,
@@ -39,6 +62,17 @@ public class OAuthRealm extends Realm {
         super(TYPE, Objects.requireNonNull(config));
         this.oAuthTokenRetriever = tokenInfoRetriever;
         this.roleMapper = refreshableOAuthRoleMapper;
+        this.slowLog = new OAuthSlowLog(config);
+        this.tokenValidator = new BearerTokenValidator(config);
+        this.recentlyAuthenticatedUsers = config.settings().getAsBoolean("user-lookup.enabled", false) ?
+                                          CacheBuilder.newBuilder()
+                                                      .maximumSize(config.settings().getAsInt("user-lookup.max-size",
+                                                                                              DEFAULT_USER_LOOKUP_MAX_SIZE))
+                                                      .expireAfterAccess(config.settings().getAsInt("user-lookup.expire-in-seconds",
+                                                                                                    DEFAULT_USER_LOOKUP_EXPIRATION_IN_SECONDS),
+                                                                         SECONDS)
+                                                      .build() :
+                                          null;
     }
 
     /**
@@ -88,6 +122,10 @@ public class OAuthRealm extends Realm {
      * validates the credentials of the user and if they match, a {@link User} will be
      * returned
      *
+     * Tokens that are not syntactically valid are rejected before reaching the token info retriever,
+     * see {@link BearerTokenValidator}. The introspection failures are {@link IntrospectionResult} values, only
+     * turned into an {@link org.elasticsearch.ElasticsearchSecurityException} here.
+     *
      * @param authenticationToken the token to authenticate
      * @return {@link User} if authentication is successful, otherwise <code>null</code>
      */
@@ -95,32 +133,136 @@ public class OAuthRealm extends Realm {
     @Deprecated
     public User authenticate(AuthenticationToken authenticationToken) {
         AccessToken oauthToken = (AccessToken) authenticationToken;
-        return oAuthTokenRetriever.getTokenInfo(oauthToken.tokenString)
-                                  .map(tokenInfo -> new User(tokenInfo.userId,
-                                                             roleMapper.rolesFor(tokenInfo.userId,
-                                                                                 tokenInfo.scopes)))
-                                  .orElse(null);
+        if (!tokenValidator.isValid(oauthToken.tokenString)) {
+            return null;
+        }
+        if (slowLog.enabled()) {
+            return timedAuthenticate(oauthToken);
+        }
+        return userFor(oAuthTokenRetriever.introspect(oauthToken.tokenString));
+    }
+
+    /**
+     * Same as {@link #authenticate(AuthenticationToken)} but records the time spent in each stage
+     * for the slow log.
+     */
+    private User timedAuthenticate(AccessToken oauthToken) {
+        AuthenticationTimings timings = AuthenticationTimings.begin();
+        long startTime = System.nanoTime();
+        long tokenInfoTime = startTime;
+        boolean tokenInfoRetrieved = false;
+        String userId = null;
+        try {
+            IntrospectionResult introspection = oAuthTokenRetriever.introspect(oauthToken.tokenString);
+            tokenInfoTime = System.nanoTime();
+            tokenInfoRetrieved = true;
+            if (introspection.tokenInfo() != null) {
+                userId = introspection.tokenInfo().userId;
+            }
+            return userFor(introspection);
+        } finally {
+            long endTime = System.nanoTime();
+            if (!tokenInfoRetrieved) {
+                tokenInfoTime = endTime;
+            }
+            timings.add(AuthenticationTimings.Stage.CACHE,
+                        tokenInfoTime - startTime
+                        - timings.nanos(AuthenticationTimings.Stage.IDP)
+                        - timings.nanos(AuthenticationTimings.Stage.MAPPING));
+            timings.add(AuthenticationTimings.Stage.ROLES, endTime - tokenInfoTime);
+            timings.end();
+            slowLog.onAuthentication(oauthToken.tokenString, userId, timings, endTime - startTime);
+        }
+    }
+
+    /**
+     * @return the number of tokens rejected by their syntax check
+     */
+    public TokenValidationStats tokenValidationStats() {
+        return tokenValidator.stats();
+    }
+
+    private User userFor(IntrospectionResult introspection) {
+        if (introspection.status() == IntrospectionResult.Status.VALID) {
+            return userFor(introspection.tokenInfo());
+        }
+        ElasticsearchSecurityException failure = introspection.toElasticsearchException();
+        if (failure != null) {
+            throw failure;
+        }
+        return null;
+    }
+
+    private User userFor(TokenInfo tokenInfo) {
+        // reading the entry keeps it alive, it is only written again when the token info was introspected again
+        if (recentlyAuthenticatedUsers != null && recentlyAuthenticatedUsers.getIfPresent(tokenInfo.userId) != tokenInfo) {
+            recentlyAuthenticatedUsers.put(tokenInfo.userId, tokenInfo);
+        }
+        return userOf(tokenInfo);
+    }
+
+    private User userOf(TokenInfo tokenInfo) {
+        String[] mappedRoles = roleMapper.rolesFor(tokenInfo.userId,
+                                                   tokenInfo.scopes);
+        MappedUser mapped = mappedUsers.getIfPresent(tokenInfo);
+        if (mapped == null
+            || mapped.mappedRoles != mappedRoles && !Arrays.equals(mapped.mappedRoles, mappedRoles)) {
+            mapped = new MappedUser(mappedRoles, newUser(tokenInfo, mappedRoles));
+            mappedUsers.put(tokenInfo, mapped);
+        }
+        return mapped.user;
+    }
+
+    private static User newUser(TokenInfo tokenInfo, String[] roles) {
+        if (!tokenInfo.claimRoles.isEmpty()) {
+            Set<String> allRoles = new LinkedHashSet<>(Arrays.asList(roles));
+            allRoles.addAll(tokenInfo.claimRoles);
+            roles = allRoles.toArray(new String[0]);
+        }
+        return new User(tokenInfo.userId, roles, tokenInfo.fullName, tokenInfo.email, tokenInfo.metadata);
     }
 
 
     /**
-     * This method looks for a user that is identified by the given String, not supported
-     * by OAuth plugin as user name is not searchable.
+     * This method looks for a user that is identified by the given String. The user name is not searchable
+     * in the identity provider, so when {@code user-lookup.enabled} is set, only the users authenticated by
+     * this realm in the last {@code user-lookup.expire-in-seconds} are found, as long as their token info
+     * is not expired, without calling the identity provider. Their roles are mapped at lookup time, so they
+     * follow the role mapping changes.
      *
-     * @param ignored ignored
-     * @return <code>null</code>
+     * @param username the user id
+     * @return the recently authenticated user, or <code>null</code>
      */
     @Override
     @Deprecated
-    public User lookupUser(String ignored) {
-        return null;
+    public User lookupUser(String username) {
+        if (recentlyAuthenticatedUsers == null) {
+            return null;
+        }
+        TokenInfo tokenInfo = recentlyAuthenticatedUsers.getIfPresent(username);
+        return tokenInfo != null && !tokenInfo.isExpired() ? userOf(tokenInfo) : null;
     }
 
     @Override
     @Deprecated
     public boolean userLookupSupported() {
-        return false;
+        return recentlyAuthenticatedUsers != null;
     }
 
+    /**
+     * @return the approximate number of users that can be looked up
+     */
+    public long lookupSize() {
+        return recentlyAuthenticatedUsers != null ? recentlyAuthenticatedUsers.size() : 0;
+    }
+
+    private static final class MappedUser {
+        private final String[] mappedRoles;
+        private final User user;
 
+        private MappedUser(String[] mappedRoles, User user) {
+            this.mappedRoles = mappedRoles;
+            this.user = user;
+        }
+    }
 }
@@ -15,11 +15,20 @@
  */
 package fr.arkey.elasticsearch.oauth.realm;
 
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Supplier;
 import fr.arkey.elasticsearch.oauth.realm.roles.RefreshableOAuthRoleMapper;
+import fr.arkey.elasticsearch.oauth.realm.stats.OAuthRealmStats;
+import fr.arkey.elasticsearch.oauth.realm.stats.OAuthStatsReporter;
 import fr.arkey.elasticsearch.oauth.realm.tokeninfo.CachingOAuthTokenRetriever;
 import fr.arkey.elasticsearch.oauth.realm.tokeninfo.HttpOAuthTokenRetriever;
-import fr.arkey.elasticsearch.oauth.realm.tokeninfo.MapTokenInfo;
-import fr.arkey.elasticsearch.oauth.realm.tokeninfo.TokenInfo;
+import fr.arkey.elasticsearch.oauth.realm.tokeninfo.IssuerRoutingTokenRetriever;
+import fr.arkey.elasticsearch.oauth.realm.tokeninfo.OAuthTokenRetriever;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.watcher.ResourceWatcherService;
 import org.elasticsearch.xpack.security.authc.Realm;
 import org.elasticsearch.xpack.security.authc.RealmConfig;
@@ -35,6 +44,7 @@ public class OAuthReamFactory implements Realm.Factory {
      */
 //    private final SettingsFilter settingsFilter;
     private ResourceWatcherService watcherService;
+    private final SharedIdpRetrievers sharedIdpRetrievers = new SharedIdpRetrievers();
 
     public OAuthReamFactory(ResourceWatcherService resourceWatcherService) {
         watcherService = resourceWatcherService;
@@ -60,20 +70,86 @@ public class OAuthReamFactory implements Realm.Factory {
 //        settingsFilter.filterOut("shield.authc.realms." + realmConfig.name() + ".*");
 
         // avoiding Guice injection since it will disappear in ES 5
-        CachingOAuthTokenRetriever cachingOAuthTokenRetriever =
-                new CachingOAuthTokenRetriever(
-                        realmConfig,
-                        new HttpOAuthTokenRetriever(realmConfig,
-                                                    new MapTokenInfo(realmConfig)),
-                        TokenInfo::isExpired
-                );
+        Map<String, Settings> issuers = IssuerRoutingTokenRetriever.issuers(realmConfig.settings());
+        Map<String, RealmConfig> idpConfigs = idpConfigs(realmConfig, issuers);
+        Map<String, SharedIdpRetrievers.Idp> idps = new TreeMap<>();
+        try {
+            idpConfigs.forEach((idp, idpConfig) -> idps.put(idp, sharedIdpRetrievers.acquire(idpConfig)));
+            return create(realmConfig, issuers.isEmpty(), idpConfigs, idps);
+        } catch (RuntimeException e) {
+            idps.values().forEach(sharedIdpRetrievers::release);
+            throw e;
+        }
+    }
+
+    private OAuthRealm create(RealmConfig realmConfig,
+                              boolean singleIdp,
+                              Map<String, RealmConfig> idpConfigs,
+                              Map<String, SharedIdpRetrievers.Idp> idps) {
+        Map<String, CachingOAuthTokenRetriever> cachingOAuthTokenRetrievers = new TreeMap<>();
+        idps.forEach((idp, retrievers) -> cachingOAuthTokenRetrievers.put(idp, retrievers.cachingOAuthTokenRetriever()));
+        OAuthTokenRetriever tokenRetriever = singleIdp ?
+                                             cachingOAuthTokenRetrievers.values().iterator().next() :
+                                             new IssuerRoutingTokenRetriever(realmConfig, cachingOAuthTokenRetrievers);
+
+        RefreshableOAuthRoleMapper roleMapper = new RefreshableOAuthRoleMapper(
+                realmConfig,
+                watcherService,
+                change -> cachingOAuthTokenRetrievers.values()
+                                                     .forEach(cachingOAuthTokenRetriever -> cachingOAuthTokenRetriever.expiresIf(
+                                                             tokenInfo -> change.affects(tokenInfo.userId,
+                                                                                         tokenInfo.scopes))));
+
+        OAuthRealm realm = new OAuthRealm(realmConfig,
+                                          tokenRetriever,
+                                          roleMapper);
+        if (realmConfig.settings().getAsBoolean("stats.log.enabled", false)) {
+            idpConfigs.forEach((idp, idpConfig) -> {
+                CachingOAuthTokenRetriever cachingOAuthTokenRetriever = idps.get(idp).cachingOAuthTokenRetriever();
+                HttpOAuthTokenRetriever httpOAuthTokenRetriever = idps.get(idp).httpOAuthTokenRetriever();
+                startStatsReporter(idpConfig,
+                                   () -> new OAuthRealmStats(idpConfig.name(),
+                                                             realm.tokenValidationStats(),
+                                                             cachingOAuthTokenRetriever.stats(),
+                                                             cachingOAuthTokenRetriever.size(),
+                                                             cachingOAuthTokenRetriever.introspectionStats(),
+                                                             httpOAuthTokenRetriever.stats(),
+                                                             roleMapper.stats()));
+            });
+        }
+        return realm;
+    }
+
+    /**
+     * @return the configuration of each identity provider of the realm, by issuer name, the realm configuration
+     * itself when it does not declare {@code issuers}
+     */
+    static Map<String, RealmConfig> idpConfigs(RealmConfig realmConfig, Map<String, Settings> issuers) {
+        if (issuers.isEmpty()) {
+            return Collections.singletonMap(realmConfig.name(), realmConfig);
+        }
+        Map<String, RealmConfig> idpConfigs = new TreeMap<>();
+        issuers.forEach((issuer, issuerSettings) -> idpConfigs.put(
+                issuer,
+                new RealmConfig(realmConfig.name() + "." + issuer,
+                                // issuer settings override the realm ones, e.g. the cache settings
+                                Settings.builder()
+                                        .put(realmConfig.settings())
+                                        .put(issuerSettings)
+                                        .build(),
+                                realmConfig.globalSettings(),
+                                realmConfig.env(),
+                                realmConfig.threadContext())));
+        return idpConfigs;
+    }
 
-        RefreshableOAuthRoleMapper roleMapper = new RefreshableOAuthRoleMapper(realmConfig,
-                                                                               watcherService,
-                                                                               cachingOAuthTokenRetriever::expiresAll);
-        return new OAuthRealm(realmConfig,
-                              cachingOAuthTokenRetriever,
-                              roleMapper);
+    private void startStatsReporter(RealmConfig realmConfig, Supplier<OAuthRealmStats> stats) {
+        try {
+            watcherService.add(new OAuthStatsReporter(realmConfig.logger(OAuthStatsReporter.class), stats),
+                               ResourceWatcherService.Frequency.LOW);
+        } catch (IOException e) {
+            throw new ElasticsearchException("failed to start stats reporter for realm [" + realmConfig.name() + "]", e);
+        }
     }
 
 //    /**
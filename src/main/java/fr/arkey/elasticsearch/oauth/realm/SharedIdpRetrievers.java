@@ -0,0 +1,122 @@
+/*
+ * Copyright 2017 Brice Dutheil
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.arkey.elasticsearch.oauth.realm;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import fr.arkey.elasticsearch.oauth.realm.tokeninfo.CachingOAuthTokenRetriever;
+import fr.arkey.elasticsearch.oauth.realm.tokeninfo.HttpOAuthTokenRetriever;
+import fr.arkey.elasticsearch.oauth.realm.tokeninfo.MapTokenInfo;
+import fr.arkey.elasticsearch.oauth.realm.tokeninfo.TokenInfo;
+import okhttp3.HttpUrl;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.xpack.security.authc.RealmConfig;
+
+/**
+ * Node level registry of the token retrievers, so realms introspecting tokens against the same identity
+ * provider share one HTTP client (connection pool and dispatcher threads) and one token cache.
+ *
+ * Retrievers are shared when the normalized token info url and all the settings shaping the introspection
+ * ({@code idp.*}, {@code token-info.*}, {@code rate-limit.*}) are the same, the other realm settings like the
+ * role mapping being free to differ. Retrievers are reference counted, the HTTP client is closed when the last
+ * realm releases it.
+ */
+final class SharedIdpRetrievers {
+    private static final String[] SHARED_SETTINGS_PREFIXES = {"idp.", "token-info.", "rate-limit."};
+    private final Map<String, Idp> idps = new HashMap<>();
+
+    /**
+     * @param idpConfig the configuration of the identity provider
+     * @return the retrievers of this identity provider, created on the first acquisition
+     */
+    synchronized Idp acquire(RealmConfig idpConfig) {
+        String key = keyOf(idpConfig.settings());
+        Idp idp = idps.get(key);
+        if (idp == null) {
+            HttpOAuthTokenRetriever httpOAuthTokenRetriever = new HttpOAuthTokenRetriever(idpConfig,
+                                                                                          new MapTokenInfo(idpConfig));
+            idp = new Idp(key,
+                          idpConfig.name(),
+                          httpOAuthTokenRetriever,
+                          new CachingOAuthTokenRetriever(idpConfig,
+                                                         httpOAuthTokenRetriever,
+                                                         TokenInfo::isExpired));
+            idps.put(key, idp);
+        } else {
+            idpConfig.logger(SharedIdpRetrievers.class)
+                     .info("[{}] OAuth realm shares the token cache and HTTP client of [{}]",
+                           idpConfig.name(),
+                           idp.realmName);
+        }
+        idp.references++;
+        return idp;
+    }
+
+    /**
+     * @param idp retrievers previously acquired
+     */
+    synchronized void release(Idp idp) {
+        if (--idp.references == 0) {
+            idps.remove(idp.key);
+            idp.httpOAuthTokenRetriever.close();
+        }
+    }
+
+    synchronized int size() {
+        return idps.size();
+    }
+
+    static String keyOf(Settings settings) {
+        SortedMap<String, String> introspectionSettings = new TreeMap<>();
+        for (String prefix : SHARED_SETTINGS_PREFIXES) {
+            settings.getByPrefix(prefix)
+                    .getAsMap()
+                    .forEach((key, value) -> introspectionSettings.put(prefix + key, value));
+        }
+        String tokenInfoUrl = Objects.toString(introspectionSettings.remove("token-info.url"), "");
+        HttpUrl normalizedUrl = HttpUrl.parse(tokenInfoUrl);
+        return (normalizedUrl != null ? normalizedUrl.toString() : tokenInfoUrl) + introspectionSettings;
+    }
+
+    static final class Idp {
+        private final String key;
+        private final String realmName;
+        private final HttpOAuthTokenRetriever httpOAuthTokenRetriever;
+        private final CachingOAuthTokenRetriever cachingOAuthTokenRetriever;
+        private int references;
+
+        private Idp(String key,
+                    String realmName,
+                    HttpOAuthTokenRetriever httpOAuthTokenRetriever,
+                    CachingOAuthTokenRetriever cachingOAuthTokenRetriever) {
+            this.key = key;
+            this.realmName = realmName;
+            this.httpOAuthTokenRetriever = httpOAuthTokenRetriever;
+            this.cachingOAuthTokenRetriever = cachingOAuthTokenRetriever;
+        }
+
+        HttpOAuthTokenRetriever httpOAuthTokenRetriever() {
+            return httpOAuthTokenRetriever;
+        }
+
+        CachingOAuthTokenRetriever cachingOAuthTokenRetriever() {
+            return cachingOAuthTokenRetriever;
+        }
+    }
+}
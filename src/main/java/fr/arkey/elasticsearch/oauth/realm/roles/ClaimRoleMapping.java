@@ -0,0 +1,145 @@
+/*
+ * Copyright 2017 Brice Dutheil
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.arkey.elasticsearch.oauth.realm.roles;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+import org.apache.lucene.util.automaton.CharacterRunAutomaton;
+import org.apache.lucene.util.automaton.Operations;
+
+import static fr.arkey.elasticsearch.oauth.realm.roles.RoleMapping.Builder.MAX_DETERMINIZED_STATES;
+import static java.util.Collections.emptySet;
+import static java.util.Collections.unmodifiableSet;
+
+/**
+ * Immutable rules granting roles from the values of a claim of the token info, like {@code groups}.
+ * <p>
+ * Each rule matches claim values, either exactly or with the same wildcard or {@code /regex/} patterns as the
+ * role mapping file, and grants a role template where {@code {{value}}} is replaced by the matching claim value,
+ * e.g. {@code team_{{value}}_reader}. Rules are compiled once : exact values are looked up in a map and each
+ * pattern is a deterministic automaton.
+ */
+public final class ClaimRoleMapping {
+    public static final String VALUE_PLACEHOLDER = "{{value}}";
+    public static final ClaimRoleMapping NONE = new Builder().build();
+
+    private final Map<String, List<RoleTemplate>> exactRules;
+    private final PatternRule[] patternRules;
+
+    private ClaimRoleMapping(Map<String, List<RoleTemplate>> exactRules, PatternRule[] patternRules) {
+        this.exactRules = exactRules;
+        this.patternRules = patternRules;
+    }
+
+    /**
+     * @param claimValues the values of the claim
+     * @return the roles granted to these claim values
+     */
+    public Set<String> rolesFor(Collection<String> claimValues) {
+        if (isEmpty() || claimValues.isEmpty()) {
+            return emptySet();
+        }
+        Set<String> roles = new LinkedHashSet<>();
+        for (String claimValue : claimValues) {
+            List<RoleTemplate> templates = exactRules.get(claimValue);
+            if (templates != null) {
+                templates.forEach(template -> roles.add(template.render(claimValue)));
+            }
+            for (PatternRule patternRule : patternRules) {
+                if (patternRule.automaton.run(claimValue)) {
+                    roles.add(patternRule.template.render(claimValue));
+                }
+            }
+        }
+        return roles.isEmpty() ? emptySet() : unmodifiableSet(roles);
+    }
+
+    /**
+     * @return whether there are no rules
+     */
+    public boolean isEmpty() {
+        return exactRules.isEmpty() && patternRules.length == 0;
+    }
+
+    /**
+     * A role name where {@code {{value}}} is replaced by the claim value.
+     */
+    private static final class RoleTemplate {
+        private final String[] literals;
+
+        private RoleTemplate(String template) {
+            this.literals = template.split(Pattern.quote(VALUE_PLACEHOLDER), -1);
+        }
+
+        private String render(String value) {
+            if (literals.length == 1) {
+                return literals[0];
+            }
+            StringBuilder role = new StringBuilder(literals[0]);
+            for (int i = 1; i < literals.length; i++) {
+                role.append(value).append(literals[i]);
+            }
+            return role.toString();
+        }
+    }
+
+    private static final class PatternRule {
+        private final CharacterRunAutomaton automaton;
+        private final RoleTemplate template;
+
+        private PatternRule(CharacterRunAutomaton automaton, RoleTemplate template) {
+            this.automaton = automaton;
+            this.template = template;
+        }
+    }
+
+    /**
+     * Collects the {@code claim value (pattern) -> role template} rules.
+     */
+    public static final class Builder {
+        private final Map<String, List<RoleTemplate>> exactRules = new HashMap<>();
+        private final List<PatternRule> patternRules = new ArrayList<>();
+
+        /**
+         * @param match        the claim value, or a wildcard or {@code /regex/} pattern of claim values
+         * @param roleTemplate the granted role, {@code {{value}}} being replaced by the claim value
+         * @return this builder
+         */
+        public Builder add(String match, String roleTemplate) {
+            RoleTemplate template = new RoleTemplate(roleTemplate);
+            if (RoleMapping.Builder.isPattern(match)) {
+                patternRules.add(new PatternRule(
+                        new CharacterRunAutomaton(Operations.determinize(RoleMapping.Builder.patternAutomaton(match),
+                                                                         MAX_DETERMINIZED_STATES),
+                                                  MAX_DETERMINIZED_STATES),
+                        template));
+            } else {
+                exactRules.computeIfAbsent(match, m -> new ArrayList<>()).add(template);
+            }
+            return this;
+        }
+
+        public ClaimRoleMapping build() {
+            return new ClaimRoleMapping(new HashMap<>(exactRules), patternRules.toArray(new PatternRule[0]));
+        }
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright 2017 Brice Dutheil
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.arkey.elasticsearch.oauth.realm.roles;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Binary format of a precompiled role mapping, written by {@link RoleMappingCompiler} and memory mapped when loaded.
+ * <p>
+ * Layout, big endian :
+ * <ul>
+ * <li>magic {@code OARM}, format version, SHA-256 digest of the source role mapping file</li>
+ * <li>length prefixed dictionary section : whether user ids are normalized, role names, distinct role sets as bitsets, user id patterns
+ * and scope rules per role</li>
+ * <li>user count and slot count of the user ids hash table, followed by the slots, see {@link MappedUserRoleTable}</li>
+ * <li>user ids, each prefixed by its length and encoding, either one byte per char when all chars are latin-1,
+ * or two bytes per char</li>
+ * </ul>
+ * Only the dictionary section is read on heap, exact user ids stay in the mapped file.
+ */
+final class CompiledRoleMapping {
+    static final int MAGIC = 0x4F41524D; // OARM
+    static final int VERSION = 2;
+    static final int DIGEST_LENGTH = 32;
+
+    private CompiledRoleMapping() {
+    }
+
+    /**
+     * @param file the role mapping file
+     * @return whether this file is a compiled role mapping rather than a YAML role mapping
+     */
+    static boolean isCompiled(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(file))) {
+            return in.readInt() == MAGIC;
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @param file the compiled role mapping file
+     * @return the digest of the source role mapping file this file was compiled from
+     */
+    static byte[] sourceDigest(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(file))) {
+            checkHeader(in, file);
+            byte[] digest = new byte[DIGEST_LENGTH];
+            in.readFully(digest);
+            return digest;
+        }
+    }
+
+    /**
+     * Writes the compiled role mapping.
+     *
+     * @param builder      the builder holding the parsed role mapping
+     * @param sourceDigest the digest of the source role mapping file
+     * @param target       the file to write
+     */
+    static void write(RoleMapping.Builder builder, byte[] sourceDigest, Path target) throws IOException {
+        String[] roleNames = builder.roleNames();
+        Map<String, BitSet> users = builder.users();
+        Map<BitSet, Integer> roleSetIds = new LinkedHashMap<>();
+        users.values().forEach(bits -> roleSetIds.computeIfAbsent(bits, b -> roleSetIds.size()));
+
+        int slotCount = Integer.highestOneBit(Math.max(1, users.size()) * 2 - 1) << 1;
+        int[] slotHashes = new int[slotCount];
+        int[] slotIdOffsets = new int[slotCount];
+        int[] slotRoleSets = new int[slotCount];
+        ByteArrayOutputStream ids = new ByteArrayOutputStream();
+        DataOutputStream idsOut = new DataOutputStream(ids);
+        for (Map.Entry<String, BitSet> user : users.entrySet()) {
+            String userId = user.getKey();
+            int hash = MappedUserRoleTable.hash(userId);
+            int slot = hash & (slotCount - 1);
+            while (slotIdOffsets[slot] != 0) {
+                slot = (slot + 1) & (slotCount - 1);
+            }
+            slotHashes[slot] = hash;
+            slotIdOffsets[slot] = idsOut.size() + 1;
+            slotRoleSets[slot] = roleSetIds.get(user.getValue());
+            writeId(idsOut, userId);
+        }
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(target)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.write(sourceDigest, 0, DIGEST_LENGTH);
+
+            byte[] dictionary = dictionary(builder.normalizesUserIds(), roleNames, roleSetIds.keySet(), builder.rules());
+            out.writeInt(dictionary.length);
+            out.write(dictionary);
+
+            out.writeInt(users.size());
+            out.writeInt(slotCount);
+            for (int slot = 0; slot < slotCount; slot++) {
+                out.writeInt(slotHashes[slot]);
+                out.writeInt(slotIdOffsets[slot]);
+                out.writeInt(slotRoleSets[slot]);
+            }
+            if ((long) out.size() + ids.size() > Integer.MAX_VALUE) {
+                throw new IOException("compiled role mapping would exceed 2GB, cannot be memory mapped");
+            }
+            ids.writeTo(out);
+        }
+    }
+
+    /**
+     * Memory maps a compiled role mapping file.
+     * <p>
+     * The mapping stays valid when the file is atomically replaced, it is unmapped once the returned
+     * role mapping is garbage collected.
+     *
+     * @param file the compiled role mapping file
+     * @return the role mapping
+     */
+    static RoleMapping load(Path file) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("compiled role mapping [" + file + "] is too large");
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        int offset = 2 * Integer.BYTES + DIGEST_LENGTH;
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(Integer.BYTES) != VERSION) {
+            throw new IOException("[" + file + "] is not a compiled role mapping of version [" + VERSION + "]");
+        }
+        byte[] dictionary = new byte[buffer.getInt(offset)];
+        offset += Integer.BYTES;
+        ((ByteBuffer) buffer.duplicate().position(offset)).get(dictionary);
+        offset += dictionary.length;
+
+        RoleMapping.Builder builder = new RoleMapping.Builder();
+        RoleSet[] roleSets = readDictionary(new ByteArrayInputStream(dictionary), builder);
+
+        int userCount = buffer.getInt(offset);
+        int slotCount = buffer.getInt(offset + Integer.BYTES);
+        int slotsOffset = offset + 2 * Integer.BYTES;
+        int idsOffset = slotsOffset + slotCount * MappedUserRoleTable.SLOT_SIZE;
+        return builder.build(new MappedUserRoleTable(buffer, slotsOffset, slotCount, idsOffset, roleSets, userCount));
+    }
+
+    private static byte[] dictionary(boolean normalizeUserIds,
+                                     String[] roleNames,
+                                     Set<BitSet> roleSets,
+                                     Map<String, Set<String>> rules) throws IOException {
+        ByteArrayOutputStream dictionary = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(dictionary)) {
+            out.writeBoolean(normalizeUserIds);
+            out.writeInt(roleNames.length);
+            for (String roleName : roleNames) {
+                out.writeUTF(roleName);
+            }
+            int words = RoleSet.words(roleNames.length);
+            out.writeInt(roleSets.size());
+            for (BitSet roleSet : roleSets) {
+                long[] bits = roleSet.toLongArray();
+                for (int i = 0; i < words; i++) {
+                    out.writeLong(i < bits.length ? bits[i] : 0L);
+                }
+            }
+            out.writeInt(rules.size());
+            for (Map.Entry<String, Set<String>> roleRules : rules.entrySet()) {
+                out.writeUTF(roleRules.getKey());
+                out.writeInt(roleRules.getValue().size());
+                for (String entry : roleRules.getValue()) {
+                    out.writeUTF(entry);
+                }
+            }
+        }
+        return dictionary.toByteArray();
+    }
+
+    private static RoleSet[] readDictionary(InputStream dictionary, RoleMapping.Builder builder) throws IOException {
+        try (DataInputStream in = new DataInputStream(dictionary)) {
+            builder.normalizeUserIds(in.readBoolean());
+            int roleCount = in.readInt();
+            for (int i = 0; i < roleCount; i++) {
+                builder.role(in.readUTF());
+            }
+            long[][] roleSetBits = new long[in.readInt()][RoleSet.words(roleCount)];
+            for (long[] bits : roleSetBits) {
+                for (int i = 0; i < bits.length; i++) {
+                    bits[i] = in.readLong();
+                }
+            }
+            int rulesCount = in.readInt();
+            for (int i = 0; i < rulesCount; i++) {
+                String role = in.readUTF();
+                int entries = in.readInt();
+                for (int j = 0; j < entries; j++) {
+                    builder.add(role, in.readUTF());
+                }
+            }
+
+            RoleSet[] roleSets = new RoleSet[roleSetBits.length];
+            for (int i = 0; i < roleSets.length; i++) {
+                roleSets[i] = builder.roleSetOf(BitSet.valueOf(roleSetBits[i]));
+            }
+            return roleSets;
+        }
+    }
+
+    private static void writeId(DataOutputStream out, String userId) throws IOException {
+        boolean latin1 = userId.chars().allMatch(c -> c <= 0xFF);
+        out.writeInt(userId.length() << 1 | (latin1 ? 0 : 1));
+        for (int i = 0; i < userId.length(); i++) {
+            if (latin1) {
+                out.writeByte(userId.charAt(i));
+            } else {
+                out.writeChar(userId.charAt(i));
+            }
+        }
+    }
+
+    private static void checkHeader(DataInputStream in, Path file) throws IOException {
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            throw new IOException("[" + file + "] is not a compiled role mapping of version [" + VERSION + "]");
+        }
+    }
+}
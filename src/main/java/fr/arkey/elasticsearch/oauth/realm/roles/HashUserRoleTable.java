@@ -0,0 +1,47 @@
+/*
+ * Copyright 2017 Brice Dutheil
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.arkey.elasticsearch.oauth.realm.roles;
+
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+import static java.util.Collections.unmodifiableMap;
+
+/**
+ * On heap user ids table.
+ */
+final class HashUserRoleTable implements UserRoleTable {
+    private final Map<String, RoleSet> userRoles;
+
+    HashUserRoleTable(Map<String, RoleSet> userRoles) {
+        this.userRoles = unmodifiableMap(userRoles);
+    }
+
+    @Override
+    public RoleSet get(String userId) {
+        return userRoles.get(userId);
+    }
+
+    @Override
+    public int size() {
+        return userRoles.size();
+    }
+
+    @Override
+    public void forEach(BiConsumer<String, RoleSet> action) {
+        userRoles.forEach(action);
+    }
+}
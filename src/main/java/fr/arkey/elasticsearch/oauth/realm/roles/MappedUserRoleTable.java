@@ -0,0 +1,131 @@
+/*
+ * Copyright 2017 Brice Dutheil
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.arkey.elasticsearch.oauth.realm.roles;
+
+import java.nio.ByteBuffer;
+import java.util.function.BiConsumer;
+
+/**
+ * User ids table looked up directly in a memory mapped compiled role mapping, see {@link CompiledRoleMapping}.
+ * <p>
+ * The table is an open addressing hash table with linear probing, each slot being the hash of the user id,
+ * the offset of the user id in the ids section and the id of its role set. User ids are compared in place,
+ * no object is materialized on lookup.
+ */
+final class MappedUserRoleTable implements UserRoleTable {
+    static final int SLOT_SIZE = 3 * Integer.BYTES;
+
+    private final ByteBuffer buffer;
+    private final int slotsOffset;
+    private final int mask;
+    private final int idsOffset;
+    private final RoleSet[] roleSets;
+    private final int size;
+
+    MappedUserRoleTable(ByteBuffer buffer, int slotsOffset, int slotCount, int idsOffset, RoleSet[] roleSets, int size) {
+        this.buffer = buffer;
+        this.slotsOffset = slotsOffset;
+        this.mask = slotCount - 1;
+        this.idsOffset = idsOffset;
+        this.roleSets = roleSets;
+        this.size = size;
+    }
+
+    @Override
+    public RoleSet get(String userId) {
+        int hash = hash(userId);
+        int slot = hash & mask;
+        while (true) {
+            int slotOffset = slotsOffset + slot * SLOT_SIZE;
+            int idOffset = buffer.getInt(slotOffset + Integer.BYTES);
+            if (idOffset == 0) {
+                return null;
+            }
+            if (buffer.getInt(slotOffset) == hash && idEquals(idsOffset + idOffset - 1, userId)) {
+                return roleSets[buffer.getInt(slotOffset + 2 * Integer.BYTES)];
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void forEach(BiConsumer<String, RoleSet> action) {
+        for (int slot = 0; slot <= mask; slot++) {
+            int slotOffset = slotsOffset + slot * SLOT_SIZE;
+            int idOffset = buffer.getInt(slotOffset + Integer.BYTES);
+            if (idOffset != 0) {
+                action.accept(readId(idsOffset + idOffset - 1), roleSets[buffer.getInt(slotOffset + 2 * Integer.BYTES)]);
+            }
+        }
+    }
+
+    private boolean idEquals(int offset, String userId) {
+        int header = buffer.getInt(offset);
+        int length = header >>> 1;
+        if (length != userId.length()) {
+            return false;
+        }
+        int chars = offset + Integer.BYTES;
+        if ((header & 1) == 0) {
+            for (int i = 0; i < length; i++) {
+                if ((buffer.get(chars + i) & 0xFF) != userId.charAt(i)) {
+                    return false;
+                }
+            }
+        } else {
+            for (int i = 0; i < length; i++) {
+                if (buffer.getChar(chars + i * Character.BYTES) != userId.charAt(i)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private String readId(int offset) {
+        int header = buffer.getInt(offset);
+        char[] id = new char[header >>> 1];
+        int chars = offset + Integer.BYTES;
+        for (int i = 0; i < id.length; i++) {
+            id[i] = (header & 1) == 0 ?
+                    (char) (buffer.get(chars + i) & 0xFF) :
+                    buffer.getChar(chars + i * Character.BYTES);
+        }
+        return new String(id);
+    }
+
+    /**
+     * FNV-1a over the chars of the user id, followed by the murmur3 finalizer to spread the low bits.
+     */
+    static int hash(CharSequence userId) {
+        int hash = 0x811C9DC5;
+        for (int i = 0; i < userId.length(); i++) {
+            hash ^= userId.charAt(i);
+            hash *= 0x01000193;
+        }
+        hash ^= hash >>> 16;
+        hash *= 0x85EBCA6B;
+        hash ^= hash >>> 13;
+        hash *= 0xC2B2AE35;
+        hash ^= hash >>> 16;
+        return hash;
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2017 Brice Dutheil
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.arkey.elasticsearch.oauth.realm.roles;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.common.unit.TimeValue;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+/**
+ * Watches a single file with the file system watch service (inotify on Linux) instead of polling it.
+ * <p>
+ * The watch service can only watch directories, events of the other files of the directory are ignored.
+ * Bursts of events, like an editor truncating then writing the file, are debounced : the listener is run
+ * on the watcher thread once no event happened on the file during the debounce delay.
+ */
+class NativeFileWatcher implements Closeable {
+    private final Path file;
+    private final TimeValue debounce;
+    private final Runnable onFileChanged;
+    private final Logger logger;
+    private final WatchService watchService;
+    private final Thread thread;
+
+    NativeFileWatcher(Path file, TimeValue debounce, Runnable onFileChanged, Logger logger) throws IOException {
+        this.file = file.toAbsolutePath();
+        this.debounce = debounce;
+        this.onFileChanged = onFileChanged;
+        this.logger = logger;
+        this.watchService = this.file.getFileSystem().newWatchService();
+        this.file.getParent().register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+        this.thread = new Thread(this::watch, "oauth-file-watcher[" + this.file.getFileName() + "]");
+        this.thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+    }
+
+    private void watch() {
+        try {
+            while (true) {
+                if (!isFileChanged(watchService.take())) {
+                    continue;
+                }
+                WatchKey next;
+                while ((next = watchService.poll(debounce.nanos(), TimeUnit.NANOSECONDS)) != null) {
+                    isFileChanged(next);
+                }
+                try {
+                    onFileChanged.run();
+                } catch (RuntimeException e) {
+                    logger.error("failed to process change of [{}]", file, e);
+                }
+            }
+        } catch (ClosedWatchServiceException e) {
+            logger.debug("stopped watching [{}]", file);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private boolean isFileChanged(WatchKey key) {
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            changed |= event.kind() == OVERFLOW || file.getFileName().equals(event.context());
+        }
+        if (!key.reset()) {
+            logger.warn("directory [{}] is no longer watched, changes of [{}] will not be detected",
+                        file.getParent(),
+                        file);
+        }
+        return changed;
+    }
+}
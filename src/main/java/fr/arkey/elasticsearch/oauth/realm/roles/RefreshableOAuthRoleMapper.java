@@ -15,17 +15,24 @@
  */
 package fr.arkey.elasticsearch.oauth.realm.roles;
 
-import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import com.google.common.collect.ImmutableSetMultimap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 import fr.arkey.elasticsearch.oauth.realm.OAuthRealm;
+import fr.arkey.elasticsearch.oauth.realm.stats.RoleMappingStats;
 import org.apache.logging.log4j.Logger;
 import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.common.hash.MessageDigests;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.env.Environment;
 import org.elasticsearch.watcher.FileChangesListener;
 import org.elasticsearch.watcher.FileWatcher;
@@ -34,20 +41,49 @@ import org.elasticsearch.xpack.XPackPlugin;
 import org.elasticsearch.xpack.security.authc.RealmConfig;
 
 import static java.util.Objects.requireNonNull;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
 
 /**
  * A refreshable role user mapper service.
  * <p>
  * It will read the role mapping file defined in this setting : {@code xpack.security.authc.realms.oauth-integ.files.role_mapping}
- * and watch for any change on this file.
+ * and watch for any change on this file, either by polling the config directory with the elasticsearch resource
+ * watcher service or, when {@code files.watch.native} is set, with the file system watch service.
+ * The file maps each role to a list of user ids or of {@code scope:<scope>} rules,
+ * see {@link RoleMapping}. The optional {@code _groups} section lists the members of groups granted roles with
+ * {@code group:<group>} entries, and the optional {@code _roles} section lists the roles included by a role.
+ * <p>
+ * A reload is skipped when the content of the file didn't change, otherwise the listener is notified with the
+ * {@link RoleMappingChange} so that only what depends on changed roles is invalidated.
+ * <p>
+ * When {@code role_mapping.normalize-user-ids} is set, user ids are matched case insensitively and regardless of
+ * their Unicode normalization form.
+ * <p>
+ * When {@code role_mapping.url} is set, the role mapping is instead fetched over HTTP, for example from a document
+ * of an elasticsearch index, and polled at the {@code MEDIUM} frequency of the resource watcher service, so all nodes
+ * pick up a change within this bounded delay.
+ * <p>
+ * The file can also be a role mapping precompiled with {@link RoleMappingCompiler}, in which case exact user ids
+ * are looked up in the memory mapped file, and the digest of the source file stored in the compiled file is used
+ * to skip reloads.
  * <p>
  * Any error in this file will have the same effect of an empty file.
  */
-public class RefreshableOAuthRoleMapper {
+public class RefreshableOAuthRoleMapper implements Closeable {
+    private static final TimeValue DEFAULT_DEBOUNCE = TimeValue.timeValueMillis(200);
     private final Logger logger;
-    private final Runnable listener;
+    private final Consumer<RoleMappingChange> listener;
     private final Path oauthRoleMappingFile;
-    private volatile ImmutableSetMultimap<String, String> refreshableRoleMapping;
+    private final String roleMappingSource;
+    private final boolean normalizeUserIds;
+    private final NativeFileWatcher nativeFileWatcher;
+    private volatile RoleMapping refreshableRoleMapping;
+    private byte[] roleMappingDigest;
+    private final LongAdder reloads = new LongAdder();
+    private final LongAdder reloadFailures = new LongAdder();
+    private final LongAdder totalReloadDurationInMillis = new LongAdder();
+    private volatile long lastReloadDurationInMillis;
+    private volatile long lastReloadTimestamp;
 
     /**
      * Build and configures a refreshable role user mapper service that will read
@@ -56,51 +92,144 @@ public class RefreshableOAuthRoleMapper {
      *
      * @param realmConfig         the configuration to create the realm with
      * @param watcherService      the elasticsearch watcher service
-     * @param onRoleMappingChange the listener that will be notified on the file change
+     * @param onRoleMappingChange the listener that will be notified when the mapping changed
      */
     public RefreshableOAuthRoleMapper(RealmConfig realmConfig,
                                       ResourceWatcherService watcherService,
-                                      Runnable onRoleMappingChange) {
+                                      Consumer<RoleMappingChange> onRoleMappingChange) {
 
         this.logger = requireNonNull(realmConfig).logger(this.getClass());
         this.listener = requireNonNull(onRoleMappingChange);
+        this.normalizeUserIds = realmConfig.settings().getAsBoolean("role_mapping.normalize-user-ids", false);
+
+        String roleMappingUrl = realmConfig.settings().get("role_mapping.url");
+        if (roleMappingUrl != null) {
+            oauthRoleMappingFile = null;
+            roleMappingSource = roleMappingUrl;
+            nativeFileWatcher = null;
+            startRoleMappingUrlWatcher(realmConfig, requireNonNull(watcherService), roleMappingUrl);
+            return;
+        }
 
         oauthRoleMappingFile = resolveRoleMappingFile(realmConfig.settings(), realmConfig.env());
+        roleMappingSource = oauthRoleMappingFile.toAbsolutePath().toString();
         loadRoleMappingFile();
-        configureAndStartRoleMappingFileWatcher(realmConfig,
-                                                requireNonNull(watcherService),
-                                                ResourceWatcherService.Frequency.HIGH,
-                                                this::loadRoleMappingFile);
+        if (realmConfig.settings().getAsBoolean("files.watch.native", false)) {
+            nativeFileWatcher = startNativeFileWatcher(realmConfig.settings().getAsTime("files.watch.debounce",
+                                                                                         DEFAULT_DEBOUNCE),
+                                                       this::loadRoleMappingFile);
+        } else {
+            nativeFileWatcher = null;
+            configureAndStartRoleMappingFileWatcher(realmConfig,
+                                                    requireNonNull(watcherService),
+                                                    ResourceWatcherService.Frequency.HIGH,
+                                                    this::loadRoleMappingFile);
+        }
     }
 
     /**
-     * Identify the roles for the given user id.
+     * Identify the roles for the given user id and scopes.
      * <p>
-     * Note scopes is not yet supported, it may come as a later improvement.
+     * Roles are granted either to the user id, or to a scope using a {@code scope:<scope>} entry
+     * in the role mapping file.
      *
      * @param userId The user id to match
-     * @param scopes The scopes, ignored at this time
-     * @return The roles for this user or nothing if not found
+     * @param scopes The scopes of the access token
+     * @return The roles for this user and scopes or nothing if not found, this array is shared and must not be modified
      */
     public String[] rolesFor(String userId, Set<String> scopes) {
-        return refreshableRoleMapping.get(userId).toArray(new String[0]);
+        return refreshableRoleMapping.rolesFor(userId, scopes);
     }
 
-    @SuppressWarnings("unchecked")
-    private ImmutableSetMultimap<String, String> parseRoleMappingFile(Path oauthRoleMappingFile) throws IOException {
+    /**
+     * @return the reload statistics of the role mapping file.
+     */
+    public RoleMappingStats stats() {
+        return new RoleMappingStats(reloads.sum(),
+                                    reloadFailures.sum(),
+                                    lastReloadTimestamp,
+                                    lastReloadDurationInMillis,
+                                    totalReloadDurationInMillis.sum(),
+                                    refreshableRoleMapping.mappedUsers());
+    }
+
+    private RoleMapping parseRoleMappingFile(Path oauthRoleMappingFile, byte[] content) throws IOException {
         logger.info("Loading OAuth role mapping file [{}]", oauthRoleMappingFile);
-        try (BufferedInputStream roleMappingFIS = new BufferedInputStream(Files.newInputStream(oauthRoleMappingFile))) {
+        return parseRoleMapping(oauthRoleMappingFile.getFileName().toString(), content)
+                .normalizeUserIds(normalizeUserIds)
+                .build();
+    }
+
+    /**
+     * Parses a YAML or JSON role mapping.
+     *
+     * @param fileName the name of the role mapping file, used to guess the content type
+     * @param content  the content of the role mapping file
+     * @return the builder holding the role mapping entries
+     */
+    @SuppressWarnings("unchecked")
+    static RoleMapping.Builder parseRoleMapping(String fileName, byte[] content) throws IOException {
+        try (ByteArrayInputStream roleMappingIS = new ByteArrayInputStream(content)) {
             Settings oauthMappingSettings = Settings.builder()
-                                                    .loadFromStream(oauthRoleMappingFile.getFileName().toString(),
-                                                                    roleMappingFIS)
+                                                    .loadFromStream(fileName, roleMappingIS)
                                                     .build();
 
-            ImmutableSetMultimap.Builder<String, String> builder = ImmutableSetMultimap.builder();
-            oauthMappingSettings.getAsStructuredMap()
-                                .forEach((role, userIds) -> builder.putAll(role, (List<String>) userIds));
-            ImmutableSetMultimap<String, String> roleUserIds = builder.build();
+            RoleMapping.Builder builder = new RoleMapping.Builder();
+            oauthMappingSettings.getAsStructuredMap().forEach((key, value) -> {
+                if (RoleMapping.GROUPS_SECTION.equals(key)) {
+                    ((Map<String, Object>) value).forEach((group, members) -> builder.group(group, (List<String>) members));
+                } else if (RoleMapping.ROLES_SECTION.equals(key)) {
+                    ((Map<String, Object>) value).forEach((role, includedRoles) -> builder.include(role, (List<String>) includedRoles));
+                } else {
+                    builder.addAll(key, (List<String>) value);
+                }
+            });
+            return builder;
+        }
+    }
+
+    /**
+     * Stops watching the role mapping file when it is watched with the file system watch service.
+     */
+    @Override
+    public void close() throws IOException {
+        if (nativeFileWatcher != null) {
+            nativeFileWatcher.close();
+        }
+    }
+
+    private void startRoleMappingUrlWatcher(RealmConfig config, ResourceWatcherService watcherService, String url) {
+        RoleMappingUrlWatcher watcher = new RoleMappingUrlWatcher(url,
+                                                                  config.settings().get("role_mapping.username"),
+                                                                  config.settings().get("role_mapping.password"),
+                                                                  logger,
+                                                                  this::loadRoleMapping,
+                                                                  this::roleMappingUnavailable);
+        try {
+            watcherService.add(watcher, ResourceWatcherService.Frequency.MEDIUM);
+        } catch (IOException e) {
+            throw new ElasticsearchException("failed to start watcher for role mapping [" + url + "]", e);
+        }
+        synchronized (this) {
+            if (refreshableRoleMapping == null) {
+                refreshableRoleMapping = RoleMapping.EMPTY;
+            }
+        }
+    }
 
-            return roleUserIds.inverse();
+    private NativeFileWatcher startNativeFileWatcher(TimeValue debounce, Runnable onFileChanged) {
+        try {
+            NativeFileWatcher watcher = new NativeFileWatcher(oauthRoleMappingFile, debounce, () -> {
+                logger.info("OAuth role mappings file [{}] changed. updating mappings...",
+                            oauthRoleMappingFile.toAbsolutePath());
+                onFileChanged.run();
+            }, logger);
+            watcher.start();
+            return watcher;
+        } catch (IOException e) {
+            throw new ElasticsearchException("failed to watch role mapping file [" +
+                                             oauthRoleMappingFile.toAbsolutePath()
+                                             + "]", e);
         }
     }
 
@@ -142,16 +271,105 @@ public class RefreshableOAuthRoleMapper {
         }
     }
 
-    private void loadRoleMappingFile() {
+    private synchronized void loadRoleMappingFile() {
+        long startTime = System.nanoTime();
+        try {
+            if (CompiledRoleMapping.isCompiled(oauthRoleMappingFile)) {
+                byte[] digest = CompiledRoleMapping.sourceDigest(oauthRoleMappingFile);
+                if (isUnchanged(digest)) {
+                    return;
+                }
+                logger.info("Mapping compiled OAuth role mapping file [{}]", oauthRoleMappingFile);
+                RoleMapping roleMapping = CompiledRoleMapping.load(oauthRoleMappingFile);
+                if (roleMapping.normalizesUserIds() != normalizeUserIds) {
+                    logger.warn("compiled OAuth role mapping file [{}] {} user ids, ignoring [role_mapping.normalize-user-ids]",
+                                oauthRoleMappingFile,
+                                roleMapping.normalizesUserIds() ? "normalizes" : "doesn't normalize");
+                }
+                applyRoleMapping(roleMapping, digest, startTime);
+            } else {
+                byte[] content = Files.readAllBytes(oauthRoleMappingFile);
+                byte[] digest = MessageDigests.sha256().digest(content);
+                if (isUnchanged(digest)) {
+                    return;
+                }
+                applyRoleMapping(parseRoleMappingFile(oauthRoleMappingFile, content), digest, startTime);
+            }
+        } catch (Throwable throwable) {
+            roleMappingFailed(throwable, startTime);
+        }
+    }
+
+    private synchronized void loadRoleMapping(String resourceName, byte[] content) {
+        long startTime = System.nanoTime();
         try {
-            refreshableRoleMapping = parseRoleMappingFile(oauthRoleMappingFile);
+            byte[] digest = MessageDigests.sha256().digest(content);
+            if (isUnchanged(digest)) {
+                return;
+            }
+            logger.info("Loading OAuth role mapping [{}]", roleMappingSource);
+            applyRoleMapping(parseRoleMapping(resourceName, content).normalizeUserIds(normalizeUserIds).build(),
+                             digest,
+                             startTime);
         } catch (Throwable throwable) {
-            logger.error("failed to parse role mappings file [{}]. skipping/removing all mappings... (Got : {}",
-                         oauthRoleMappingFile.toAbsolutePath(),
-                         throwable);
-            refreshableRoleMapping = ImmutableSetMultimap.of();
-        } finally {
-            listener.run();
+            roleMappingFailed(throwable, startTime);
+        }
+    }
+
+    /**
+     * The role mapping source is unreachable, keep the current mapping if any.
+     */
+    private synchronized void roleMappingUnavailable() {
+        reloadFailures.increment();
+        if (refreshableRoleMapping == null) {
+            refreshableRoleMapping = RoleMapping.EMPTY;
+        }
+    }
+
+    private boolean isUnchanged(byte[] digest) {
+        if (refreshableRoleMapping != null && Arrays.equals(digest, roleMappingDigest)) {
+            logger.debug("OAuth role mapping [{}] content didn't change, skipping reload", roleMappingSource);
+            return true;
+        }
+        return false;
+    }
+
+    private void applyRoleMapping(RoleMapping roleMapping, byte[] digest, long startTime) {
+        RoleMapping previousRoleMapping = refreshableRoleMapping;
+        refreshableRoleMapping = roleMapping;
+        roleMappingDigest = digest;
+        reloaded(previousRoleMapping, startTime);
+    }
+
+    private void roleMappingFailed(Throwable throwable, long startTime) {
+        reloadFailures.increment();
+        logger.error("failed to parse role mappings [{}]. skipping/removing all mappings... (Got : {}",
+                     roleMappingSource,
+                     throwable);
+        RoleMapping previousRoleMapping = refreshableRoleMapping;
+        refreshableRoleMapping = RoleMapping.EMPTY;
+        roleMappingDigest = null;
+        reloaded(previousRoleMapping, startTime);
+    }
+
+    private void reloaded(RoleMapping previousRoleMapping, long startTime) {
+        lastReloadDurationInMillis = NANOSECONDS.toMillis(System.nanoTime() - startTime);
+        lastReloadTimestamp = System.currentTimeMillis();
+        totalReloadDurationInMillis.add(lastReloadDurationInMillis);
+        reloads.increment();
+        if (previousRoleMapping != null) {
+            notifyChange(RoleMappingChange.between(previousRoleMapping, refreshableRoleMapping));
+        }
+    }
+
+    private void notifyChange(RoleMappingChange change) {
+        logger.info("OAuth role mapping [{}] loaded in [{}] ms, [{}] users with changed roles, patterns or scopes rules {}",
+                    roleMappingSource,
+                    lastReloadDurationInMillis,
+                    change.changedUsers(),
+                    change.rulesChanged() ? "changed" : "unchanged");
+        if (!change.isEmpty()) {
+            listener.accept(change);
         }
     }
 
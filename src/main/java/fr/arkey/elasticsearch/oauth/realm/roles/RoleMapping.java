@@ -0,0 +1,554 @@
+/*
+ * Copyright 2017 Brice Dutheil
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.arkey.elasticsearch.oauth.realm.roles;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.WildcardQuery;
+import org.apache.lucene.util.automaton.Automata;
+import org.apache.lucene.util.automaton.Automaton;
+import org.apache.lucene.util.automaton.CharacterRunAutomaton;
+import org.apache.lucene.util.automaton.Operations;
+import org.apache.lucene.util.automaton.RegExp;
+import org.apache.lucene.util.automaton.Transition;
+
+import static java.util.Collections.emptyList;
+import static java.util.Collections.emptyMap;
+import static java.util.Collections.unmodifiableMap;
+import static java.util.Collections.unmodifiableSet;
+
+/**
+ * Immutable role mapping, compiled once when the role mapping file is loaded.
+ * <p>
+ * Roles are numbered in a dictionary, and each user or scope is associated to a bitset over this dictionary.
+ * Identical role sets are shared. Resolving the roles of a token carrying {@code N} scopes costs one lookup
+ * for the user, {@code N} lookups for the scopes and a bitset OR per matching scope.
+ * <p>
+ * User id patterns, either wildcards ({@code svc-ingest-*}, {@code *@ops.example.com}, {@code ?} matches a single
+ * character) or Lucene regular expressions between slashes ({@code /svc-[0-9]+/}), are compiled in a single
+ * deterministic automaton whose states know the roles granted to the user ids ending in them. Matching a user id
+ * against them costs one automaton run, whatever the number of patterns and roles, while exact user ids are still
+ * served by a hash lookup.
+ * <p>
+ * Groups of user ids or patterns, granted with {@code group:<group>} entries, and role inheritance are flattened
+ * when the mapping is built : a user ends up with a single shared role set, whatever the number of groups and
+ * inherited roles.
+ * <p>
+ * Exact user ids are either held on heap, or looked up in a memory mapped file precompiled by
+ * {@link RoleMappingCompiler}, see {@link CompiledRoleMapping}.
+ */
+public final class RoleMapping {
+    /**
+     * Prefix of the role mapping entries that grant the role to any token having the given scope.
+     */
+    public static final String SCOPE_PREFIX = "scope:";
+    /**
+     * Prefix of the role mapping entries that grant the role to all the members of the given group.
+     */
+    public static final String GROUP_PREFIX = "group:";
+    /**
+     * Section of the role mapping file that lists the members of each group.
+     */
+    public static final String GROUPS_SECTION = "_groups";
+    /**
+     * Section of the role mapping file that lists the roles included by a role.
+     */
+    public static final String ROLES_SECTION = "_roles";
+    public static final RoleMapping EMPTY = new Builder().build();
+
+    private final String[] roleNames;
+    private final UserRoleTable userRoles;
+    private final UserPatterns userPatterns;
+    private final Map<String, RoleSet> scopeRoles;
+    private final RoleSet noRoles;
+    private final Set<String> rules;
+    private final boolean normalizeUserIds;
+
+    private RoleMapping(String[] roleNames,
+                        UserRoleTable userRoles,
+                        UserPatterns userPatterns,
+                        Map<String, RoleSet> scopeRoles,
+                        RoleSet noRoles,
+                        Set<String> rules,
+                        boolean normalizeUserIds) {
+        this.normalizeUserIds = normalizeUserIds;
+        this.roleNames = roleNames;
+        this.userRoles = userRoles;
+        this.userPatterns = userPatterns;
+        this.scopeRoles = scopeRoles;
+        this.noRoles = noRoles;
+        this.rules = rules;
+    }
+
+    /**
+     * Identify the roles for the given user id and scopes.
+     * <p>
+     * When no user id pattern nor scope rule matches, the returned array is the role array shared by all the users
+     * having the same roles, or a shared empty array, so this lookup doesn't allocate. It must not be modified.
+     *
+     * @param userId The user id to match
+     * @param scopes The scopes of the token
+     * @return The roles granted to this user or to any of these scopes
+     */
+    public String[] rolesFor(String userId, Set<String> scopes) {
+        userId = userIdKey(userId);
+        RoleSet userRoleSet = userRoles.get(userId);
+        if (userRoleSet == null) {
+            userRoleSet = noRoles;
+        }
+        long[] bits = null;
+        long[] patternRoles = userPatterns.match(userId);
+        if (patternRoles != null) {
+            bits = userRoleSet.bits.clone();
+            for (int i = 0; i < bits.length; i++) {
+                bits[i] |= patternRoles[i];
+            }
+        }
+        if (scopeRoles.isEmpty() || scopes.isEmpty()) {
+            return bits == null ? userRoleSet.roles : RoleSet.namesOf(roleNames, bits);
+        }
+
+        for (String scope : scopes) {
+            RoleSet scopeRoleSet = scopeRoles.get(scope);
+            if (scopeRoleSet == null) {
+                continue;
+            }
+            if (bits == null) {
+                bits = userRoleSet.bits.clone();
+            }
+            for (int i = 0; i < bits.length; i++) {
+                bits[i] |= scopeRoleSet.bits[i];
+            }
+        }
+        return bits == null ? userRoleSet.roles : RoleSet.namesOf(roleNames, bits);
+    }
+
+    /**
+     * Compares the exact user ids mappings with a previous role mapping.
+     *
+     * @param previous the previous role mapping
+     * @return the user ids whose roles are not the same in both mappings, ignoring patterns and scopes rules
+     */
+    public Set<String> usersWithChangedRoles(RoleMapping previous) {
+        Set<String> changedUsers = new HashSet<>();
+        userRoles.forEach((userId, roleSet) -> {
+            RoleSet previousRoleSet = previous.userRoles.get(userId);
+            if (previousRoleSet == null || !previousRoleSet.nameSet.equals(roleSet.nameSet)) {
+                changedUsers.add(userId);
+            }
+        });
+        previous.userRoles.forEach((userId, previousRoleSet) -> {
+            if (userRoles.get(userId) == null) {
+                changedUsers.add(userId);
+            }
+        });
+        return changedUsers;
+    }
+
+    /**
+     * @param previous the previous role mapping
+     * @return whether the user id patterns, scopes rules and user id normalization are the same in both mappings
+     */
+    public boolean hasSameRules(RoleMapping previous) {
+        return rules.equals(previous.rules) && normalizeUserIds == previous.normalizeUserIds;
+    }
+
+    /**
+     * @return whether user ids are normalized
+     */
+    boolean normalizesUserIds() {
+        return normalizeUserIds;
+    }
+
+    /**
+     * @param userId the user id
+     * @return the user id as mapped, normalized if this mapping normalizes user ids
+     */
+    String userIdKey(String userId) {
+        return normalizeUserIds ? UserIdNormalizer.normalize(userId) : userId;
+    }
+
+    /**
+     * @return the number of users having an explicit mapping
+     */
+    public int mappedUsers() {
+        return userRoles.size();
+    }
+
+    /**
+     * @return the number of roles granted to user id patterns
+     */
+    public int rolesWithUserPatterns() {
+        return userPatterns.roles;
+    }
+
+    /**
+     * @return the number of scopes having a mapping
+     */
+    public int mappedScopes() {
+        return scopeRoles.size();
+    }
+
+    /**
+     * The automaton of all the user id patterns.
+     * <p>
+     * The patterns of each role are followed by a marker code point of the role, the automaton accepts
+     * {@code <user id><marker>} when a pattern of the role matches the user id. The state reached by a user id
+     * thus knows the matching roles : those whose marker leads to an accept state. These roles are precomputed
+     * per state, so matching a user id is a single run without looking at the markers.
+     */
+    private static final class UserPatterns {
+        private static final UserPatterns NONE = new UserPatterns(null, null, 0);
+
+        private final CharacterRunAutomaton automaton;
+        private final long[][] stateRoles;
+        private final int roles;
+
+        private UserPatterns(CharacterRunAutomaton automaton, long[][] stateRoles, int roles) {
+            this.automaton = automaton;
+            this.stateRoles = stateRoles;
+            this.roles = roles;
+        }
+
+        /**
+         * @return the bits of the roles whose patterns match the user id, null if none
+         */
+        long[] match(String userId) {
+            if (automaton == null) {
+                return null;
+            }
+            int state = 0;
+            for (int i = 0, codePoint; i < userId.length(); i += Character.charCount(codePoint)) {
+                codePoint = userId.codePointAt(i);
+                state = automaton.step(state, codePoint);
+                if (state == -1) {
+                    return null;
+                }
+            }
+            return stateRoles[state];
+        }
+    }
+
+    /**
+     * Collects the {@code role -> user id, user id pattern or scope} entries of the role mapping file.
+     */
+    public static final class Builder {
+        static final int MAX_DETERMINIZED_STATES = 100_000;
+        /**
+         * First role marker of the user patterns automaton, the supplementary private use area B.
+         */
+        static final int ROLE_MARKERS = 0x100000;
+        private final Map<String, Integer> roleIndex = new LinkedHashMap<>();
+        private final Map<String, BitSet> users = new HashMap<>();
+        private final Map<Integer, List<String>> userPatterns = new TreeMap<>();
+        private final Map<String, BitSet> scopes = new HashMap<>();
+        private final Map<String, Set<String>> rules = new LinkedHashMap<>();
+        private final Map<BitSet, RoleSet> sharedRoleSets = new HashMap<>();
+        private final Map<String, List<String>> groups = new HashMap<>();
+        private final Map<String, Set<String>> groupGrants = new LinkedHashMap<>();
+        private final Map<String, List<String>> includedRoles = new LinkedHashMap<>();
+        private boolean normalizeUserIds;
+        private String[] roleNames;
+
+        /**
+         * Registers a role in the role dictionary, even if it is not granted to anything.
+         *
+         * @param role the role name
+         * @return the id of this role in the dictionary
+         */
+        int role(String role) {
+            Integer roleId = roleIndex.get(role);
+            if (roleId == null) {
+                if (roleNames != null) {
+                    throw new IllegalStateException("role dictionary is already built, cannot add role [" + role + "]");
+                }
+                roleId = roleIndex.size();
+                roleIndex.put(role, roleId);
+            }
+            return roleId;
+        }
+
+        /**
+         * Grants the role to the given entry, a user id, a user id pattern, a {@code scope:<scope>} rule
+         * or a {@code group:<group>}.
+         *
+         * @param role  the role name
+         * @param entry the user id, user id pattern, scope rule or group
+         * @return this builder
+         */
+        public Builder add(String role, String entry) {
+            int roleId = role(role);
+            if (entry.startsWith(GROUP_PREFIX)) {
+                groupGrants.computeIfAbsent(entry.substring(GROUP_PREFIX.length()), g -> new LinkedHashSet<>()).add(role);
+            } else if (entry.startsWith(SCOPE_PREFIX)) {
+                scopes.computeIfAbsent(entry.substring(SCOPE_PREFIX.length()), s -> new BitSet()).set(roleId);
+                rules.computeIfAbsent(role, r -> new LinkedHashSet<>()).add(entry);
+            } else if (isPattern(entry)) {
+                userPatterns.computeIfAbsent(roleId, r -> new ArrayList<>()).add(entry);
+                rules.computeIfAbsent(role, r -> new LinkedHashSet<>()).add(entry);
+            } else {
+                users.computeIfAbsent(userIdKey(entry), u -> new BitSet()).set(roleId);
+            }
+            return this;
+        }
+
+        static boolean isPattern(String entry) {
+            return entry.indexOf('*') >= 0
+                   || entry.indexOf('?') >= 0
+                   || (entry.length() > 1 && entry.startsWith("/") && entry.endsWith("/"));
+        }
+
+        private String userIdKey(String userId) {
+            return normalizeUserIds ? UserIdNormalizer.normalize(userId) : userId;
+        }
+
+        static Automaton patternAutomaton(String pattern) {
+            if (pattern.startsWith("/")) {
+                return new RegExp(pattern.substring(1, pattern.length() - 1)).toAutomaton(MAX_DETERMINIZED_STATES);
+            }
+            return WildcardQuery.toAutomaton(new Term("user_id", pattern));
+        }
+
+        public Builder addAll(String role, List<String> entries) {
+            for (String entry : entries) {
+                add(role, entry);
+            }
+            return this;
+        }
+
+        /**
+         * Declares a group, whose members get the roles granted to {@code group:<group>}.
+         *
+         * @param group   the group name
+         * @param members the user ids, user id patterns or scope rules of this group
+         * @return this builder
+         */
+        public Builder group(String group, List<String> members) {
+            groups.computeIfAbsent(group, g -> new ArrayList<>()).addAll(members);
+            return this;
+        }
+
+        /**
+         * Declares that whatever is granted the role is also granted the included roles, and their own included roles.
+         *
+         * @param role          the role name
+         * @param includedRoles the roles included by this role
+         * @return this builder
+         */
+        public Builder include(String role, List<String> includedRoles) {
+            role(role);
+            this.includedRoles.computeIfAbsent(role, r -> new ArrayList<>()).addAll(includedRoles);
+            return this;
+        }
+
+        /**
+         * Folds the exact user ids, and the user ids looked up, to their lower case NFKC form.
+         * The literals of the user id patterns are folded the same way, so they match the normalized user id.
+         * <p>
+         * User ids are folded as they are added, user ids already added are folded when normalization is enabled.
+         *
+         * @param normalizeUserIds whether to normalize user ids
+         * @return this builder
+         */
+        public Builder normalizeUserIds(boolean normalizeUserIds) {
+            if (normalizeUserIds && !this.normalizeUserIds && !users.isEmpty()) {
+                Map<String, BitSet> foldedUsers = new HashMap<>(users.size() * 4 / 3 + 1);
+                users.forEach((userId, bits) -> foldedUsers.computeIfAbsent(UserIdNormalizer.normalize(userId),
+                                                                            u -> new BitSet())
+                                                           .or(bits));
+                users.clear();
+                users.putAll(foldedUsers);
+            }
+            this.normalizeUserIds = normalizeUserIds;
+            return this;
+        }
+
+        boolean normalizesUserIds() {
+            return normalizeUserIds;
+        }
+
+        public RoleMapping build() {
+            // groups and included roles grant roles to more user ids, they are flattened before compiling the user ids
+            roleNames();
+            return build(new HashUserRoleTable(compile(users)));
+        }
+
+        /**
+         * Builds the role mapping with user ids looked up in the given table instead of the collected user ids.
+         */
+        RoleMapping build(UserRoleTable userRoles) {
+            Set<String> ruleSet = new HashSet<>();
+            rules.forEach((role, entries) -> entries.forEach(entry -> ruleSet.add(role + " <- " + entry)));
+            return new RoleMapping(roleNames(),
+                                   userRoles,
+                                   compileUserPatterns(),
+                                   unmodifiableMap(compile(scopes)),
+                                   roleSetOf(new BitSet()),
+                                   unmodifiableSet(ruleSet),
+                                   normalizeUserIds);
+        }
+
+        /**
+         * @return the role dictionary, no role can be registered afterwards
+         */
+        String[] roleNames() {
+            if (roleNames == null) {
+                flattenGroups();
+                flattenIncludedRoles();
+                roleNames = roleIndex.keySet().toArray(new String[0]);
+            }
+            return roleNames;
+        }
+
+        private void flattenGroups() {
+            groupGrants.forEach((group, roles) -> {
+                List<String> members = groups.get(group);
+                if (members == null) {
+                    throw new IllegalArgumentException("unknown group [" + group + "] granted to roles " + roles);
+                }
+                for (String member : members) {
+                    if (member.startsWith(GROUP_PREFIX)) {
+                        throw new IllegalArgumentException("nested group [" + member + "] in group [" + group + "] is not supported");
+                    }
+                    roles.forEach(role -> add(role, member));
+                }
+            });
+            groupGrants.clear();
+        }
+
+        private void flattenIncludedRoles() {
+            Map<String, Set<String>> closures = new LinkedHashMap<>();
+            includedRoles.keySet().forEach(role -> closures.put(role, includedRolesClosure(role)));
+            closures.values().forEach(closure -> closure.forEach(this::role));
+
+            Map<Integer, BitSet> closureBits = new HashMap<>();
+            closures.forEach((role, closure) -> {
+                BitSet bits = new BitSet();
+                closure.forEach(includedRole -> bits.set(roleIndex.get(includedRole)));
+                closureBits.put(roleIndex.get(role), bits);
+            });
+            for (BitSet bits : users.values()) {
+                BitSet granted = (BitSet) bits.clone();
+                granted.stream().mapToObj(closureBits::get).filter(Objects::nonNull).forEach(bits::or);
+            }
+            closures.forEach((role, closure) -> {
+                Set<String> entries = rules.get(role);
+                if (entries != null) {
+                    new ArrayList<>(entries).forEach(entry -> closure.forEach(includedRole -> add(includedRole, entry)));
+                }
+            });
+        }
+
+        private Set<String> includedRolesClosure(String role) {
+            Set<String> closure = new LinkedHashSet<>();
+            Deque<String> toVisit = new ArrayDeque<>(includedRoles.getOrDefault(role, emptyList()));
+            while (!toVisit.isEmpty()) {
+                String includedRole = toVisit.pop();
+                if (!includedRole.equals(role) && closure.add(includedRole)) {
+                    toVisit.addAll(includedRoles.getOrDefault(includedRole, emptyList()));
+                }
+            }
+            return closure;
+        }
+
+        /**
+         * @return the exact user ids and the bitset of their roles
+         */
+        Map<String, BitSet> users() {
+            return unmodifiableMap(users);
+        }
+
+        /**
+         * @return the user id patterns and scope rules per role
+         */
+        Map<String, Set<String>> rules() {
+            return unmodifiableMap(rules);
+        }
+
+        /**
+         * @return the shared role set of the given role ids
+         */
+        RoleSet roleSetOf(BitSet bits) {
+            String[] roleNames = roleNames();
+            return sharedRoleSets.computeIfAbsent(bits, b -> RoleSet.of(b, roleNames));
+        }
+
+        private UserPatterns compileUserPatterns() {
+            if (userPatterns.isEmpty()) {
+                return UserPatterns.NONE;
+            }
+            String[] roleNames = roleNames();
+            int lastMarker = ROLE_MARKERS + roleNames.length - 1;
+            if (lastMarker > Character.MAX_CODE_POINT) {
+                throw new IllegalArgumentException("too many roles [" + roleNames.length + "] to match user id patterns");
+            }
+            List<Automaton> markedPatterns = new ArrayList<>(userPatterns.size());
+            userPatterns.forEach((roleId, patterns) -> markedPatterns.add(
+                    Operations.concatenate(Operations.union(patternAutomata(patterns)),
+                                           Automata.makeChar(ROLE_MARKERS + roleId))));
+            Automaton automaton = Operations.determinize(Operations.union(markedPatterns), MAX_DETERMINIZED_STATES);
+
+            long[][] stateRoles = new long[automaton.getNumStates()][];
+            Transition transition = new Transition();
+            for (int state = 0; state < stateRoles.length; state++) {
+                int transitions = automaton.initTransition(state, transition);
+                for (int i = 0; i < transitions; i++) {
+                    automaton.getNextTransition(transition);
+                    if (transition.max < ROLE_MARKERS || transition.min > lastMarker || !automaton.isAccept(transition.dest)) {
+                        continue;
+                    }
+                    if (stateRoles[state] == null) {
+                        stateRoles[state] = new long[RoleSet.words(roleNames.length)];
+                    }
+                    for (int marker = Math.max(transition.min, ROLE_MARKERS); marker <= Math.min(transition.max, lastMarker); marker++) {
+                        int roleId = marker - ROLE_MARKERS;
+                        stateRoles[state][roleId / Long.SIZE] |= 1L << roleId;
+                    }
+                }
+            }
+            return new UserPatterns(new CharacterRunAutomaton(automaton, MAX_DETERMINIZED_STATES),
+                                    stateRoles,
+                                    userPatterns.size());
+        }
+
+        private List<Automaton> patternAutomata(List<String> patterns) {
+            List<Automaton> automata = new ArrayList<>(patterns.size());
+            patterns.forEach(pattern -> automata.add(patternAutomaton(userIdKey(pattern))));
+            return automata;
+        }
+
+        private Map<String, RoleSet> compile(Map<String, BitSet> entries) {
+            if (entries.isEmpty()) {
+                return emptyMap();
+            }
+            Map<String, RoleSet> compiled = new HashMap<>(entries.size() * 4 / 3 + 1);
+            entries.forEach((entry, bits) -> compiled.put(entry, roleSetOf(bits)));
+            return compiled;
+        }
+    }
+}
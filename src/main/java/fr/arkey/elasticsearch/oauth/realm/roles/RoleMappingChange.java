@@ -0,0 +1,83 @@
+/*
+ * Copyright 2017 Brice Dutheil
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.arkey.elasticsearch.oauth.realm.roles;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * The difference between two role mappings, used to only invalidate what depends on changed roles.
+ */
+public final class RoleMappingChange {
+    private final RoleMapping previous;
+    private final RoleMapping current;
+    private final Set<String> usersWithChangedRoles;
+    private final boolean rulesChanged;
+
+    private RoleMappingChange(RoleMapping previous, RoleMapping current) {
+        this.previous = Objects.requireNonNull(previous);
+        this.current = Objects.requireNonNull(current);
+        this.usersWithChangedRoles = current.usersWithChangedRoles(previous);
+        this.rulesChanged = !current.hasSameRules(previous);
+    }
+
+    public static RoleMappingChange between(RoleMapping previous, RoleMapping current) {
+        return new RoleMappingChange(previous, current);
+    }
+
+    /**
+     * @return whether no user id, user id pattern or scope mapping changed
+     */
+    public boolean isEmpty() {
+        return usersWithChangedRoles.isEmpty() && !rulesChanged;
+    }
+
+    /**
+     * @return the number of exact user ids whose roles changed
+     */
+    public int changedUsers() {
+        return usersWithChangedRoles.size();
+    }
+
+    /**
+     * @return whether the user id patterns or scopes rules changed
+     */
+    public boolean rulesChanged() {
+        return rulesChanged;
+    }
+
+    /**
+     * Tells if the roles granted to this user id and scopes changed.
+     *
+     * @param userId the user id
+     * @param scopes the scopes of the token
+     * @return {@code true} if the roles are different between the two mappings
+     */
+    public boolean affects(String userId, Set<String> scopes) {
+        if (usersWithChangedRoles.contains(current.userIdKey(userId))
+            || usersWithChangedRoles.contains(previous.userIdKey(userId))) {
+            return true;
+        }
+        return rulesChanged && !sameRoles(previous.rolesFor(userId, scopes), current.rolesFor(userId, scopes));
+    }
+
+    private static boolean sameRoles(String[] previousRoles, String[] currentRoles) {
+        return previousRoles.length == currentRoles.length
+               && new HashSet<>(Arrays.asList(previousRoles)).equals(new HashSet<>(Arrays.asList(currentRoles)));
+    }
+}
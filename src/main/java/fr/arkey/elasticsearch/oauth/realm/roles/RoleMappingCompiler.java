@@ -0,0 +1,90 @@
+/*
+ * Copyright 2017 Brice Dutheil
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.arkey.elasticsearch.oauth.realm.roles;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import joptsimple.OptionSet;
+import joptsimple.OptionSpec;
+import org.elasticsearch.cli.Command;
+import org.elasticsearch.cli.ExitCodes;
+import org.elasticsearch.cli.Terminal;
+import org.elasticsearch.cli.UserException;
+import org.elasticsearch.common.hash.MessageDigests;
+import org.elasticsearch.common.io.PathUtils;
+
+/**
+ * Compiles a YAML role mapping file into the binary format memory mapped by the realm.
+ * <p>
+ * The compiled file is first written next to the target, then atomically moved over the target, so that
+ * nodes watching the target only ever see a complete file.
+ * <p>
+ * It is run with the plugin jar and the elasticsearch jars on the classpath, with the source YAML file and
+ * the target compiled file as arguments.
+ */
+public final class RoleMappingCompiler extends Command {
+    private final OptionSpec<Void> normalizeUserIdsOption;
+    private final OptionSpec<String> pathsArgument;
+
+    RoleMappingCompiler() {
+        super("Compiles a role mapping file into the binary format memory mapped by the OAuth realm");
+        normalizeUserIdsOption = parser.accepts("normalize-user-ids", "Normalize user ids before mapping them to roles");
+        pathsArgument = parser.nonOptions("<role_mapping.yml> <compiled_role_mapping.bin>");
+    }
+
+    public static void main(String[] args) throws Exception {
+        exit(new RoleMappingCompiler().main(args, Terminal.DEFAULT));
+    }
+
+    @Override
+    protected void execute(Terminal terminal, OptionSet options) throws Exception {
+        List<String> paths = pathsArgument.values(options);
+        if (paths.size() != 2) {
+            throw new UserException(ExitCodes.USAGE, "Expected the role mapping file and the compiled role mapping file, got " + paths);
+        }
+        Path source = PathUtils.get(paths.get(0));
+        Path target = PathUtils.get(paths.get(1)).toAbsolutePath();
+        RoleMapping.Builder builder = compile(source, target, options.has(normalizeUserIdsOption));
+        terminal.println("Compiled [" + builder.users().size() + "] user ids and [" + builder.roleNames().length
+                         + "] roles from [" + source + "] to [" + target + "]");
+    }
+
+    /**
+     * Compiles the source role mapping file to the target file.
+     *
+     * @param source           the YAML or JSON role mapping file
+     * @param target           the compiled role mapping file, atomically replaced
+     * @param normalizeUserIds whether user ids are normalized, see {@link RoleMapping.Builder#normalizeUserIds(boolean)}
+     * @return the builder holding the compiled role mapping
+     */
+    static RoleMapping.Builder compile(Path source, Path target, boolean normalizeUserIds) throws IOException {
+        byte[] content = Files.readAllBytes(source);
+        RoleMapping.Builder builder = RefreshableOAuthRoleMapper.parseRoleMapping(source.getFileName().toString(),
+                                                                                  content)
+                                                                .normalizeUserIds(normalizeUserIds);
+        Path temporary = Files.createTempFile(target.toAbsolutePath().getParent(), target.getFileName().toString(), ".tmp");
+        try {
+            CompiledRoleMapping.write(builder, MessageDigests.sha256().digest(content), temporary);
+            Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+        return builder;
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2017 Brice Dutheil
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.arkey.elasticsearch.oauth.realm.roles;
+
+import java.io.IOException;
+import java.util.function.BiConsumer;
+import fr.arkey.elasticsearch.oauth.realm.support.Privileges;
+import okhttp3.Credentials;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.watcher.ResourceWatcher;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static okhttp3.CacheControl.FORCE_NETWORK;
+
+/**
+ * Polls a role mapping served over HTTP, like the {@code _source} of a document of an elasticsearch index.
+ * <p>
+ * Requests are conditional when the server returns an {@code ETag} or a {@code Last-Modified} header, so
+ * an unchanged role mapping costs a {@code 304}. Otherwise the listener is called with the content, and
+ * skips it if its digest didn't change.
+ */
+class RoleMappingUrlWatcher implements ResourceWatcher {
+    private static final long TIMEOUT_IN_MILLIS = 10_000L;
+
+    private final String url;
+    private final String authorization;
+    private final OkHttpClient httpClient;
+    private final Logger logger;
+    private final BiConsumer<String, byte[]> onRoleMapping;
+    private final Runnable onFailure;
+    private String etag;
+    private String lastModified;
+
+    /**
+     * @param url           the role mapping url
+     * @param username      the optional basic authentication user name
+     * @param password      the basic authentication password
+     * @param logger        the logger
+     * @param onRoleMapping called with the resource name, that hints the content type, and the role mapping content
+     * @param onFailure     called when the role mapping cannot be fetched
+     */
+    RoleMappingUrlWatcher(String url,
+                          String username,
+                          String password,
+                          Logger logger,
+                          BiConsumer<String, byte[]> onRoleMapping,
+                          Runnable onFailure) {
+        this.url = url;
+        this.authorization = username == null ? null : Credentials.basic(username, password);
+        this.logger = logger;
+        this.onRoleMapping = onRoleMapping;
+        this.onFailure = onFailure;
+        this.httpClient = Privileges.pluginPrivileges(() -> new OkHttpClient.Builder()
+                .connectTimeout(TIMEOUT_IN_MILLIS, MILLISECONDS)
+                .readTimeout(TIMEOUT_IN_MILLIS, MILLISECONDS)
+                .writeTimeout(TIMEOUT_IN_MILLIS, MILLISECONDS)
+                .build());
+    }
+
+    @Override
+    public void init() throws IOException {
+        checkAndNotify();
+    }
+
+    @Override
+    public synchronized void checkAndNotify() {
+        Request.Builder request = new Request.Builder().url(url)
+                                                       .header("Accept", "application/json")
+                                                       .cacheControl(FORCE_NETWORK)
+                                                       .get();
+        if (authorization != null) {
+            request.header("Authorization", authorization);
+        }
+        if (etag != null) {
+            request.header("If-None-Match", etag);
+        }
+        if (lastModified != null) {
+            request.header("If-Modified-Since", lastModified);
+        }
+
+        try (Response response = httpClient.newCall(request.build()).execute()) {
+            if (response.code() == 304) {
+                logger.trace("OAuth role mapping [{}] not modified", url);
+                return;
+            }
+            if (!response.isSuccessful()) {
+                logger.warn("failed to fetch OAuth role mapping [{}], got status [{}], keeping current mappings",
+                            url,
+                            response.code());
+                onFailure.run();
+                return;
+            }
+            byte[] content = response.body().bytes();
+            etag = response.header("ETag");
+            lastModified = response.header("Last-Modified");
+            String contentType = response.header("Content-Type", "");
+            onRoleMapping.accept(contentType.contains("json") ? "role_mapping.json" : "role_mapping.yml", content);
+        } catch (IOException e) {
+            logger.warn("failed to fetch OAuth role mapping [{}], keeping current mappings (Got : {})", url, e);
+            onFailure.run();
+        }
+    }
+}
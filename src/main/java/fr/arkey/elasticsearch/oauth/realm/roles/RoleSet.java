@@ -0,0 +1,69 @@
+/*
+ * Copyright 2017 Brice Dutheil
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.arkey.elasticsearch.oauth.realm.roles;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Set;
+
+import static java.util.Collections.unmodifiableSet;
+
+/**
+ * A set of roles, both as a bitset over the role dictionary of a {@link RoleMapping} and as role names.
+ */
+final class RoleSet {
+    private static final String[] NO_ROLES = new String[0];
+
+    final long[] bits;
+    final String[] roles;
+    final Set<String> nameSet;
+
+    private RoleSet(long[] bits, String[] roles) {
+        this.bits = bits;
+        this.roles = roles;
+        this.nameSet = unmodifiableSet(new HashSet<>(Arrays.asList(roles)));
+    }
+
+    static RoleSet of(BitSet bits, String[] roleNames) {
+        long[] fixedSizeBits = Arrays.copyOf(bits.toLongArray(), words(roleNames.length));
+        return new RoleSet(fixedSizeBits, namesOf(roleNames, fixedSizeBits));
+    }
+
+    static int words(int roleCount) {
+        return Math.max(1, (roleCount + Long.SIZE - 1) / Long.SIZE);
+    }
+
+    static String[] namesOf(String[] roleNames, long[] bits) {
+        int count = 0;
+        for (long word : bits) {
+            count += Long.bitCount(word);
+        }
+        if (count == 0) {
+            return NO_ROLES;
+        }
+        String[] names = new String[count];
+        int n = 0;
+        for (int i = 0; i < bits.length; i++) {
+            long word = bits[i];
+            while (word != 0) {
+                names[n++] = roleNames[i * Long.SIZE + Long.numberOfTrailingZeros(word)];
+                word &= word - 1;
+            }
+        }
+        return names;
+    }
+}
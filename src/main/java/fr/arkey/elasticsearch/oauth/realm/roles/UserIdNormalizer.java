@@ -0,0 +1,60 @@
+/*
+ * Copyright 2017 Brice Dutheil
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.arkey.elasticsearch.oauth.realm.roles;
+
+import java.text.Normalizer;
+import java.util.Locale;
+
+/**
+ * Folds user ids to a canonical form : NFKC Unicode normalization, then lower case.
+ * <p>
+ * Most user ids are ASCII : lower case ASCII ids are returned as is, without allocation, and other ASCII ids
+ * are lower cased in a single copy. Only non ASCII ids go through {@link Normalizer}.
+ */
+final class UserIdNormalizer {
+    private UserIdNormalizer() {
+    }
+
+    static String normalize(String userId) {
+        int length = userId.length();
+        int firstToFold = 0;
+        while (firstToFold < length && isLowerCaseAscii(userId.charAt(firstToFold))) {
+            firstToFold++;
+        }
+        if (firstToFold == length) {
+            return userId;
+        }
+
+        char[] chars = null;
+        for (int i = firstToFold; i < length; i++) {
+            char c = userId.charAt(i);
+            if (c >= 0x80) {
+                return Normalizer.normalize(userId, Normalizer.Form.NFKC).toLowerCase(Locale.ROOT);
+            }
+            if (c >= 'A' && c <= 'Z') {
+                if (chars == null) {
+                    chars = userId.toCharArray();
+                }
+                chars[i] = (char) (c + ('a' - 'A'));
+            }
+        }
+        return new String(chars);
+    }
+
+    private static boolean isLowerCaseAscii(char c) {
+        return c < 0x80 && (c < 'A' || c > 'Z');
+    }
+}
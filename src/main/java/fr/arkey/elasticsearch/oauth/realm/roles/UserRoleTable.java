@@ -0,0 +1,41 @@
+/*
+ * Copyright 2017 Brice Dutheil
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.arkey.elasticsearch.oauth.realm.roles;
+
+import java.util.function.BiConsumer;
+
+/**
+ * The exact user ids of a {@link RoleMapping}, either on heap or memory mapped from a compiled role mapping file.
+ */
+interface UserRoleTable {
+    /**
+     * @param userId the user id
+     * @return the roles of this user id, or {@code null} if not mapped
+     */
+    RoleSet get(String userId);
+
+    /**
+     * @return the number of mapped user ids
+     */
+    int size();
+
+    /**
+     * Iterates over all mapped user ids, only meant to be used when reloading.
+     *
+     * @param action the action to perform on each user id and its roles
+     */
+    void forEach(BiConsumer<String, RoleSet> action);
+}
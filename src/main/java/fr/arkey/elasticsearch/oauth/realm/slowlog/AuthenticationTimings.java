@@ -0,0 +1,92 @@
+/*
+ * Copyright 2017 Brice Dutheil
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.arkey.elasticsearch.oauth.realm.slowlog;
+
+import java.util.Arrays;
+
+/**
+ * Per thread breakdown of the time spent in the stages of an authentication.
+ *
+ * The realm authenticates a token synchronously on the calling thread, the token info cache loads missing
+ * entries on that same thread, so the stages can record their duration without threading this object through
+ * the retrievers. Recording is a no-op when no authentication is being timed on the current thread, and
+ * doesn't even look up the thread local until a realm with a slow log timed its first authentication.
+ */
+public final class AuthenticationTimings {
+    public enum Stage {
+        CACHE, IDP, MAPPING, ROLES
+    }
+
+    private static final ThreadLocal<AuthenticationTimings> CURRENT = ThreadLocal.withInitial(AuthenticationTimings::new);
+    private static volatile boolean used;
+    private final long[] stageNanos = new long[Stage.values().length];
+    private boolean active;
+
+    private AuthenticationTimings() {
+    }
+
+    /**
+     * Starts timing an authentication on the current thread.
+     *
+     * @return the reset timings of the current thread
+     */
+    public static AuthenticationTimings begin() {
+        if (!used) {
+            used = true;
+        }
+        AuthenticationTimings timings = CURRENT.get();
+        Arrays.fill(timings.stageNanos, 0L);
+        timings.active = true;
+        return timings;
+    }
+
+    /**
+     * Adds the duration to the given stage of the authentication timed on the current thread, if any.
+     *
+     * @param stage           the stage
+     * @param durationInNanos the duration in nanoseconds
+     */
+    public static void record(Stage stage, long durationInNanos) {
+        if (!used) {
+            return;
+        }
+        AuthenticationTimings timings = CURRENT.get();
+        if (timings.active) {
+            timings.add(stage, durationInNanos);
+        }
+    }
+
+    /**
+     * Adds the duration to the given stage.
+     *
+     * @param stage           the stage
+     * @param durationInNanos the duration in nanoseconds
+     */
+    public void add(Stage stage, long durationInNanos) {
+        stageNanos[stage.ordinal()] += durationInNanos;
+    }
+
+    /**
+     * Stops timing on the current thread.
+     */
+    public void end() {
+        active = false;
+    }
+
+    public long nanos(Stage stage) {
+        return stageNanos[stage.ordinal()];
+    }
+}
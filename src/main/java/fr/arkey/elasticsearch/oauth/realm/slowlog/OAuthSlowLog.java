@@ -0,0 +1,178 @@
+/*
+ * Copyright 2017 Brice Dutheil
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.arkey.elasticsearch.oauth.realm.slowlog;
+
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import fr.arkey.elasticsearch.oauth.realm.slowlog.AuthenticationTimings.Stage;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.common.hash.MessageDigests;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.xpack.security.authc.RealmConfig;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Authentication slow log, in the spirit of the search slow log.
+ *
+ * An authentication taking longer than one of the {@code slowlog.threshold.(warn|info|debug)} thresholds is
+ * logged in the {@value #SLOWLOG_LOGGER} logger with the breakdown of its stages, the user id and a truncated
+ * digest of the access token. The records are sampled ({@code slowlog.sampling-ratio}) and rate limited
+ * ({@code slowlog.max-per-second}), dropped records are counted and reported with the next emitted one, so that
+ * an identity provider incident cannot turn the slow log into a bottleneck.
+ */
+public class OAuthSlowLog {
+    public static final String SLOWLOG_LOGGER = "xpack.security.authc.oauth.slowlog";
+    private static final TimeValue DISABLED = TimeValue.timeValueNanos(-1);
+    private static final int DEFAULT_MAX_PER_SECOND = 10;
+    private static final int TOKEN_DIGEST_LENGTH = 8;
+
+    private final Logger logger;
+    private final String realmName;
+    private final long warnThresholdNanos;
+    private final long infoThresholdNanos;
+    private final long debugThresholdNanos;
+    private final boolean enabled;
+    private final double samplingRatio;
+    private final int maxPerSecond;
+    private final AtomicLong currentSecond = new AtomicLong();
+    private final AtomicInteger emittedInCurrentSecond = new AtomicInteger();
+    private final LongAdder dropped = new LongAdder();
+
+    public OAuthSlowLog(RealmConfig config) {
+        this(Loggers.getLogger(SLOWLOG_LOGGER, config.globalSettings()),
+             config.name(),
+             config.settings().getAsTime("slowlog.threshold.warn", DISABLED),
+             config.settings().getAsTime("slowlog.threshold.info", DISABLED),
+             config.settings().getAsTime("slowlog.threshold.debug", DISABLED),
+             config.settings().getAsDouble("slowlog.sampling-ratio", 1.0),
+             config.settings().getAsInt("slowlog.max-per-second", DEFAULT_MAX_PER_SECOND));
+    }
+
+    OAuthSlowLog(Logger logger,
+                 String realmName,
+                 TimeValue warnThreshold,
+                 TimeValue infoThreshold,
+                 TimeValue debugThreshold,
+                 double samplingRatio,
+                 int maxPerSecond) {
+        this.logger = logger;
+        this.realmName = realmName;
+        this.warnThresholdNanos = warnThreshold.nanos();
+        this.infoThresholdNanos = infoThreshold.nanos();
+        this.debugThresholdNanos = debugThreshold.nanos();
+        this.enabled = warnThresholdNanos >= 0 || infoThresholdNanos >= 0 || debugThresholdNanos >= 0;
+        if (samplingRatio < 0.0 || samplingRatio > 1.0) {
+            throw new IllegalArgumentException("[slowlog.sampling-ratio] must be between 0.0 and 1.0, got [" + samplingRatio + "]");
+        }
+        this.samplingRatio = samplingRatio;
+        this.maxPerSecond = maxPerSecond;
+    }
+
+    /**
+     * @return whether at least one threshold is configured, if not authentications don't need to be timed.
+     */
+    public boolean enabled() {
+        return enabled;
+    }
+
+    /**
+     * Logs the authentication if it exceeded a threshold.
+     *
+     * @param accessToken     the access token string
+     * @param userId          the authenticated user id, or {@code null} if the authentication failed
+     * @param timings         the stages breakdown
+     * @param durationInNanos the total duration of the authentication
+     */
+    public void onAuthentication(String accessToken, String userId, AuthenticationTimings timings, long durationInNanos) {
+        if (warnThresholdNanos >= 0 && durationInNanos > warnThresholdNanos && logger.isWarnEnabled()) {
+            if (shouldEmit()) {
+                logger.warn("{}", new SlowLogRecord(accessToken, userId, timings, durationInNanos));
+            }
+        } else if (infoThresholdNanos >= 0 && durationInNanos > infoThresholdNanos && logger.isInfoEnabled()) {
+            if (shouldEmit()) {
+                logger.info("{}", new SlowLogRecord(accessToken, userId, timings, durationInNanos));
+            }
+        } else if (debugThresholdNanos >= 0 && durationInNanos > debugThresholdNanos && logger.isDebugEnabled()) {
+            if (shouldEmit()) {
+                logger.debug("{}", new SlowLogRecord(accessToken, userId, timings, durationInNanos));
+            }
+        }
+    }
+
+    private boolean shouldEmit() {
+        if (samplingRatio < 1.0 && ThreadLocalRandom.current().nextDouble() >= samplingRatio) {
+            dropped.increment();
+            return false;
+        }
+        long second = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime());
+        long previousSecond = currentSecond.get();
+        if (second != previousSecond && currentSecond.compareAndSet(previousSecond, second)) {
+            emittedInCurrentSecond.set(0);
+        }
+        if (emittedInCurrentSecond.incrementAndGet() > maxPerSecond) {
+            dropped.increment();
+            return false;
+        }
+        return true;
+    }
+
+    static String tokenDigest(String accessToken) {
+        return MessageDigests.toHexString(MessageDigests.sha256().digest(accessToken.getBytes(UTF_8)))
+                             .substring(0, TOKEN_DIGEST_LENGTH);
+    }
+
+    /**
+     * The slow log message, only rendered by the logging framework when the record is actually written.
+     */
+    private class SlowLogRecord {
+        private final String accessToken;
+        private final String userId;
+        private final long[] stageNanos = new long[Stage.values().length];
+        private final long durationInNanos;
+        private final long droppedSinceLastRecord;
+
+        SlowLogRecord(String accessToken, String userId, AuthenticationTimings timings, long durationInNanos) {
+            this.accessToken = accessToken;
+            this.userId = userId;
+            for (Stage stage : Stage.values()) {
+                stageNanos[stage.ordinal()] = timings.nanos(stage);
+            }
+            this.durationInNanos = durationInNanos;
+            this.droppedSinceLastRecord = dropped.sumThenReset();
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append('[').append(realmName).append("] ")
+              .append("took[").append(TimeValue.timeValueNanos(durationInNanos)).append("], ")
+              .append("took_millis[").append(TimeUnit.NANOSECONDS.toMillis(durationInNanos)).append("], ")
+              .append("user[").append(userId == null ? "<unauthenticated>" : userId).append("], ")
+              .append("token_digest[").append(tokenDigest(accessToken)).append("], ");
+            for (Stage stage : Stage.values()) {
+                sb.append(stage.name().toLowerCase(Locale.ROOT))
+                  .append('[').append(TimeValue.timeValueNanos(stageNanos[stage.ordinal()])).append("], ");
+            }
+            return sb.append("dropped[").append(droppedSinceLastRecord).append(']').toString();
+        }
+    }
+}
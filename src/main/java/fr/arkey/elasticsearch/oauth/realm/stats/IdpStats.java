@@ -0,0 +1,132 @@
+/*
+ * Copyright 2017 Brice Dutheil
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.arkey.elasticsearch.oauth.realm.stats;
+
+import java.io.IOException;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+/**
+ * Point in time statistics of the identity provider endpoint and of its HTTP client.
+ */
+public class IdpStats implements ToXContent {
+    private final String tokenInfoUrl;
+    private final LatencyHistogram.Snapshot latency;
+    private final long failures;
+    private final int connections;
+    private final int idleConnections;
+    private final int runningCalls;
+    private final long openedConnections;
+    private final long closedConnections;
+    private final long http2Connections;
+    private final long fullHandshakes;
+    private final long resumedHandshakes;
+
+    public IdpStats(String tokenInfoUrl,
+                    LatencyHistogram.Snapshot latency,
+                    long failures,
+                    int connections,
+                    int idleConnections,
+                    int runningCalls,
+                    long openedConnections,
+                    long closedConnections,
+                    long http2Connections,
+                    long fullHandshakes,
+                    long resumedHandshakes) {
+        this.tokenInfoUrl = tokenInfoUrl;
+        this.latency = latency;
+        this.failures = failures;
+        this.connections = connections;
+        this.idleConnections = idleConnections;
+        this.runningCalls = runningCalls;
+        this.openedConnections = openedConnections;
+        this.closedConnections = closedConnections;
+        this.http2Connections = http2Connections;
+        this.fullHandshakes = fullHandshakes;
+        this.resumedHandshakes = resumedHandshakes;
+    }
+
+    /**
+     * @return the number of failed calls to the identity provider
+     */
+    public long failures() {
+        return failures;
+    }
+
+    /**
+     * @return the number of open connections to the identity provider
+     */
+    public int connections() {
+        return connections;
+    }
+
+    /**
+     * @return the number of connections opened to the identity provider since the realm started
+     */
+    public long openedConnections() {
+        return openedConnections;
+    }
+
+    /**
+     * @return the number of connections to the identity provider that negotiated HTTP/2
+     */
+    public long http2Connections() {
+        return http2Connections;
+    }
+
+    /**
+     * @return the number of TLS connections to the identity provider that performed a full handshake
+     */
+    public long fullHandshakes() {
+        return fullHandshakes;
+    }
+
+    /**
+     * @return the number of TLS connections to the identity provider that resumed a session
+     */
+    public long resumedHandshakes() {
+        return resumedHandshakes;
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject("idp");
+        builder.field("token_info_url", tokenInfoUrl);
+        builder.field("requests", latency.count);
+        builder.field("failures", failures);
+        builder.startObject("latency_in_micros")
+               .field("mean", latency.meanInMicros)
+               .field("p50", latency.p50InMicros)
+               .field("p95", latency.p95InMicros)
+               .field("p99", latency.p99InMicros)
+               .field("max", latency.maxInMicros)
+               .endObject();
+        builder.startObject("connection_pool")
+               .field("connections", connections)
+               .field("idle", idleConnections)
+               .field("active", connections - idleConnections)
+               .field("running_calls", runningCalls)
+               .field("opened", openedConnections)
+               .field("closed", closedConnections)
+               .field("http2", http2Connections)
+               .endObject();
+        builder.startObject("tls")
+               .field("full_handshakes", fullHandshakes)
+               .field("resumed_handshakes", resumedHandshakes)
+               .endObject();
+        return builder.endObject();
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2017 Brice Dutheil
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.arkey.elasticsearch.oauth.realm.stats;
+
+import java.io.IOException;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+/**
+ * Point in time statistics of the token introspection results, cached or not.
+ */
+public class IntrospectionStats implements ToXContent {
+    private final long valid;
+    private final long invalid;
+    private final long expired;
+    private final long unavailable;
+    private final long shortCircuited;
+    private final long negativeCacheSize;
+
+    public IntrospectionStats(long valid,
+                              long invalid,
+                              long expired,
+                              long unavailable,
+                              long shortCircuited,
+                              long negativeCacheSize) {
+        this.valid = valid;
+        this.invalid = invalid;
+        this.expired = expired;
+        this.unavailable = unavailable;
+        this.shortCircuited = shortCircuited;
+        this.negativeCacheSize = negativeCacheSize;
+    }
+
+    public long valid() {
+        return valid;
+    }
+
+    public long invalid() {
+        return invalid;
+    }
+
+    public long expired() {
+        return expired;
+    }
+
+    public long unavailable() {
+        return unavailable;
+    }
+
+    public long shortCircuited() {
+        return shortCircuited;
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        return builder.startObject("introspections")
+                      .field("valid", valid)
+                      .field("invalid", invalid)
+                      .field("expired", expired)
+                      .field("unavailable", unavailable)
+                      .field("short_circuited", shortCircuited)
+                      .field("negative_cache_size", negativeCacheSize)
+                      .endObject();
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2017 Brice Dutheil
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.arkey.elasticsearch.oauth.realm.stats;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free latency histogram with logarithmic buckets.
+ *
+ * Values are recorded in microseconds, each power of two is split in {@value #SUB_BUCKETS} linear sub-buckets,
+ * which gives percentiles with a relative error under 12.5% for a fixed footprint of a few kilobytes.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (Long.SIZE - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Long::max, 0L);
+
+    /**
+     * Record a latency.
+     *
+     * @param durationInNanos the measured duration in nanoseconds
+     */
+    public void record(long durationInNanos) {
+        long micros = Math.max(0L, TimeUnit.NANOSECONDS.toMicros(durationInNanos));
+        counts.incrementAndGet(bucketIndex(micros));
+        count.increment();
+        sum.add(micros);
+        max.accumulate(micros);
+    }
+
+    /**
+     * @return a point in time view of this histogram, percentiles are computed once.
+     */
+    public Snapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+            total += copy[i];
+        }
+        long maxValue = max.get();
+        return new Snapshot(total,
+                            total == 0 ? 0 : sum.sum() / total,
+                            Math.min(maxValue, percentile(copy, total, 0.50)),
+                            Math.min(maxValue, percentile(copy, total, 0.95)),
+                            Math.min(maxValue, percentile(copy, total, 0.99)),
+                            maxValue);
+    }
+
+    static int bucketIndex(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        int shift = (Long.SIZE - 1 - Long.numberOfLeadingZeros(micros)) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((micros >>> shift) - SUB_BUCKETS);
+    }
+
+    static long bucketUpperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long subBucket = index % SUB_BUCKETS + SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+    private static long percentile(long[] counts, long total, double percentile) {
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(total * percentile);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return bucketUpperBound(i);
+            }
+        }
+        return bucketUpperBound(counts.length - 1);
+    }
+
+    /**
+     * Immutable view of the recorded latencies, all values are in microseconds.
+     */
+    public static class Snapshot {
+        public final long count;
+        public final long meanInMicros;
+        public final long p50InMicros;
+        public final long p95InMicros;
+        public final long p99InMicros;
+        public final long maxInMicros;
+
+        Snapshot(long count, long meanInMicros, long p50InMicros, long p95InMicros, long p99InMicros, long maxInMicros) {
+            this.count = count;
+            this.meanInMicros = meanInMicros;
+            this.p50InMicros = p50InMicros;
+            this.p95InMicros = p95InMicros;
+            this.p99InMicros = p99InMicros;
+            this.maxInMicros = maxInMicros;
+        }
+    }
+}
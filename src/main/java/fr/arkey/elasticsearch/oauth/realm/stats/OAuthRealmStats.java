@@ -0,0 +1,83 @@
+/*
+ * Copyright 2017 Brice Dutheil
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.arkey.elasticsearch.oauth.realm.stats;
+
+import java.io.IOException;
+import com.google.common.cache.CacheStats;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+
+/**
+ * Statistics of an OAuth realm on this node : rejected tokens, token cache, identity provider and role mapping.
+ */
+public class OAuthRealmStats implements ToXContent {
+    private final String realm;
+    private final TokenValidationStats tokenValidationStats;
+    private final CacheStats cacheStats;
+    private final long cacheSize;
+    private final IntrospectionStats introspectionStats;
+    private final IdpStats idpStats;
+    private final RoleMappingStats roleMappingStats;
+
+    public OAuthRealmStats(String realm,
+                           TokenValidationStats tokenValidationStats,
+                           CacheStats cacheStats,
+                           long cacheSize,
+                           IntrospectionStats introspectionStats,
+                           IdpStats idpStats,
+                           RoleMappingStats roleMappingStats) {
+        this.realm = realm;
+        this.tokenValidationStats = tokenValidationStats;
+        this.cacheStats = cacheStats;
+        this.cacheSize = cacheSize;
+        this.introspectionStats = introspectionStats;
+        this.idpStats = idpStats;
+        this.roleMappingStats = roleMappingStats;
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject(realm);
+        tokenValidationStats.toXContent(builder, params);
+        builder.startObject("token_cache")
+               .field("size", cacheSize)
+               .field("hits", cacheStats.hitCount())
+               .field("misses", cacheStats.missCount())
+               .field("hit_rate", cacheStats.hitRate())
+               .field("evictions", cacheStats.evictionCount())
+               .field("load_failures", cacheStats.loadExceptionCount())
+               .endObject();
+        introspectionStats.toXContent(builder, params);
+        idpStats.toXContent(builder, params);
+        roleMappingStats.toXContent(builder, params);
+        return builder.endObject();
+    }
+
+    /**
+     * @return the JSON representation of these statistics
+     */
+    public String toJson() {
+        try {
+            XContentBuilder builder = XContentFactory.jsonBuilder();
+            builder.startObject();
+            toXContent(builder, ToXContent.EMPTY_PARAMS);
+            return builder.endObject().string();
+        } catch (IOException e) {
+            return "<unavailable : " + e.getMessage() + ">";
+        }
+    }
+}
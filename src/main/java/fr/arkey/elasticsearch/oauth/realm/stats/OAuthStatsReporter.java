@@ -0,0 +1,47 @@
+/*
+ * Copyright 2017 Brice Dutheil
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.arkey.elasticsearch.oauth.realm.stats;
+
+import java.util.Objects;
+import java.util.function.Supplier;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.watcher.ResourceWatcher;
+
+/**
+ * Periodically logs the realm statistics on this node.
+ *
+ * Extensions cannot register REST handlers or transport actions, so this reporter piggybacks on the
+ * {@link org.elasticsearch.watcher.ResourceWatcherService} schedule to emit the statistics in the realm log.
+ */
+public class OAuthStatsReporter implements ResourceWatcher {
+    private final Logger logger;
+    private final Supplier<OAuthRealmStats> stats;
+
+    public OAuthStatsReporter(Logger logger, Supplier<OAuthRealmStats> stats) {
+        this.logger = Objects.requireNonNull(logger);
+        this.stats = Objects.requireNonNull(stats);
+    }
+
+    @Override
+    public void init() {
+        // nothing to initialize
+    }
+
+    @Override
+    public void checkAndNotify() {
+        logger.info("OAuth realm stats : {}", stats.get().toJson());
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2017 Brice Dutheil
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.arkey.elasticsearch.oauth.realm.stats;
+
+import java.io.IOException;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+/**
+ * Point in time statistics of the role mapping reloads.
+ */
+public class RoleMappingStats implements ToXContent {
+    private final long reloads;
+    private final long failures;
+    private final long lastReloadTimestamp;
+    private final long lastReloadDurationInMillis;
+    private final long totalReloadDurationInMillis;
+    private final int mappedUsers;
+
+    public RoleMappingStats(long reloads,
+                            long failures,
+                            long lastReloadTimestamp,
+                            long lastReloadDurationInMillis,
+                            long totalReloadDurationInMillis,
+                            int mappedUsers) {
+        this.reloads = reloads;
+        this.failures = failures;
+        this.lastReloadTimestamp = lastReloadTimestamp;
+        this.lastReloadDurationInMillis = lastReloadDurationInMillis;
+        this.totalReloadDurationInMillis = totalReloadDurationInMillis;
+        this.mappedUsers = mappedUsers;
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        return builder.startObject("role_mapping")
+                      .field("reloads", reloads)
+                      .field("failures", failures)
+                      .field("last_reload_timestamp", lastReloadTimestamp)
+                      .field("last_reload_duration_in_millis", lastReloadDurationInMillis)
+                      .field("total_reload_duration_in_millis", totalReloadDurationInMillis)
+                      .field("mapped_users", mappedUsers)
+                      .endObject();
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2017 Brice Dutheil
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.arkey.elasticsearch.oauth.realm.stats;
+
+import java.io.IOException;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+/**
+ * Point in time statistics of the bearer tokens rejected by their syntax check.
+ */
+public class TokenValidationStats implements ToXContent {
+    private final long empty;
+    private final long tooLong;
+    private final long invalidCharacter;
+    private final long notAJwt;
+
+    public TokenValidationStats(long empty, long tooLong, long invalidCharacter, long notAJwt) {
+        this.empty = empty;
+        this.tooLong = tooLong;
+        this.invalidCharacter = invalidCharacter;
+        this.notAJwt = notAJwt;
+    }
+
+    /**
+     * @return the total number of rejected tokens
+     */
+    public long rejected() {
+        return empty + tooLong + invalidCharacter + notAJwt;
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        return builder.startObject("rejected_tokens")
+                      .field("total", rejected())
+                      .field("empty", empty)
+                      .field("too_long", tooLong)
+                      .field("invalid_character", invalidCharacter)
+                      .field("not_a_jwt", notAJwt)
+                      .endObject();
+    }
+}
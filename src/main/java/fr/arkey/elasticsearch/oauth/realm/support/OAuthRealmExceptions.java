@@ -15,15 +15,18 @@
  */
 package fr.arkey.elasticsearch.oauth.realm.support;
 
+import java.util.concurrent.TimeUnit;
 import org.elasticsearch.ElasticsearchSecurityException;
 import org.elasticsearch.rest.RestStatus;
 
 public class OAuthRealmExceptions {
+    public static final String BEARER_CHALLENGE = "Bearer realm=\"security\" charset=\"UTF-8\"";
+
     public static ElasticsearchSecurityException authorizationException() {
         ElasticsearchSecurityException e = new ElasticsearchSecurityException(
                 "Authentication failed",
                 RestStatus.UNAUTHORIZED);
-        e.addHeader("WWW-Authenticate", "Bearer realm=\"security\" charset=\"UTF-8\"");
+        e.addHeader("WWW-Authenticate", BEARER_CHALLENGE);
         return e;
     }
 
@@ -32,16 +35,32 @@ public class OAuthRealmExceptions {
                 "Authentication failed",
                 RestStatus.UNAUTHORIZED,
                 cause);
-        e.addHeader("WWW-Authenticate", "Bearer realm=\"security\" charset=\"UTF-8\"");
+        e.addHeader("WWW-Authenticate", BEARER_CHALLENGE);
         return e;
     }
 
-    public static ElasticsearchSecurityException authorizationException(String wwwAuthenticateError) {
+    /**
+     * Rejection of a token by the identity provider, internal to the realm, see {@link TokenRejection}.
+     */
+    public static TokenRejection tokenRejected(String wwwAuthenticateError) {
+        return TokenRejection.of(wwwAuthenticateError);
+    }
+
+    static ElasticsearchSecurityException authorizationExceptionWithChallenge(String wwwAuthenticate) {
         ElasticsearchSecurityException e = new ElasticsearchSecurityException(
                 "Authentication failed",
                 RestStatus.UNAUTHORIZED
         );
-        e.addHeader("WWW-Authenticate", "Bearer realm=\"security\" charset=\"UTF-8\" delegateError=\"" + wwwAuthenticateError + "\"");
+        e.addHeader("WWW-Authenticate", wwwAuthenticate);
+        return e;
+    }
+
+    public static ElasticsearchSecurityException tooManyRequestsException(long retryAfterNanos) {
+        ElasticsearchSecurityException e = new ElasticsearchSecurityException(
+                "Too many token introspections",
+                RestStatus.TOO_MANY_REQUESTS
+        );
+        e.addHeader("Retry-After", Long.toString(Math.max(1, TimeUnit.NANOSECONDS.toSeconds(retryAfterNanos + TimeUnit.SECONDS.toNanos(1) - 1))));
         return e;
     }
 }
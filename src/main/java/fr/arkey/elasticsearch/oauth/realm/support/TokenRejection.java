@@ -0,0 +1,71 @@
+/*
+ * Copyright 2017 Brice Dutheil
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.arkey.elasticsearch.oauth.realm.support;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.elasticsearch.ElasticsearchSecurityException;
+
+/**
+ * Rejection of a token by the identity provider, carried by the introspection result.
+ *
+ * Under a token spraying attack every request ends with this rejection, so it is preallocated : there is one
+ * instance per distinct {@code WWW-Authenticate} error of the identity provider, with its
+ * {@code WWW-Authenticate} response header already built. The realm turns it into the
+ * {@link ElasticsearchSecurityException} returned to Elasticsearch, the only exception created for the request.
+ */
+public final class TokenRejection {
+    private static final int MAX_CACHED_REJECTIONS = 64;
+    private static final ConcurrentMap<String, TokenRejection> REJECTIONS = new ConcurrentHashMap<>();
+
+    private final String wwwAuthenticate;
+
+    private TokenRejection(String wwwAuthenticate) {
+        this.wwwAuthenticate = wwwAuthenticate;
+    }
+
+    /**
+     * @param wwwAuthenticateError the {@code WWW-Authenticate} header of the identity provider response
+     * @return the rejection for this error
+     */
+    static TokenRejection of(String wwwAuthenticateError) {
+        TokenRejection rejection = REJECTIONS.get(wwwAuthenticateError);
+        if (rejection != null) {
+            return rejection;
+        }
+        rejection = new TokenRejection(
+                OAuthRealmExceptions.BEARER_CHALLENGE + " delegateError=\"" + wwwAuthenticateError + "\"");
+        if (REJECTIONS.size() < MAX_CACHED_REJECTIONS) {
+            TokenRejection cached = REJECTIONS.putIfAbsent(wwwAuthenticateError, rejection);
+            return cached != null ? cached : rejection;
+        }
+        return rejection;
+    }
+
+    /**
+     * @return the {@code WWW-Authenticate} response header value
+     */
+    public String wwwAuthenticate() {
+        return wwwAuthenticate;
+    }
+
+    /**
+     * @return a new authentication exception, to be thrown to Elasticsearch
+     */
+    public ElasticsearchSecurityException toElasticsearchException() {
+        return OAuthRealmExceptions.authorizationExceptionWithChallenge(wwwAuthenticate);
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright 2017 Brice Dutheil
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.arkey.elasticsearch.oauth.realm.tokeninfo;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+import javax.net.SocketFactory;
+import okhttp3.Dns;
+import org.elasticsearch.common.unit.TimeValue;
+
+/**
+ * Resolves the IdP hosts with a plugin level cache, instead of relying on the JVM cache which never expires
+ * when the security manager is installed.
+ * <p>
+ * Resolved addresses are kept for the positive TTL, failures for the negative TTL. Once the positive TTL is
+ * elapsed the stale addresses are still served while they are refreshed in the background, so authentications
+ * never wait on the DNS for a host that was already resolved.
+ * <p>
+ * Each lookup rotates the addresses, so the connections spread over all of them. An address that failed to
+ * connect, as reported by the {@link #socketFactory() socket factory}, is ejected : it is returned after the
+ * healthy ones until the ejection delay is elapsed.
+ */
+class CachingDns implements Dns {
+    private final Dns delegate;
+    private final long ttlNanos;
+    private final long negativeTtlNanos;
+    private final long ejectionNanos;
+    private final Executor refreshExecutor;
+    private final LongSupplier nanoClock;
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final ConcurrentMap<InetAddress, Long> ejectedUntil = new ConcurrentHashMap<>();
+    private final AtomicInteger rotation = new AtomicInteger();
+
+    CachingDns(Dns delegate, TimeValue ttl, TimeValue negativeTtl, TimeValue ejection, Executor refreshExecutor) {
+        this(delegate, ttl, negativeTtl, ejection, refreshExecutor, System::nanoTime);
+    }
+
+    CachingDns(Dns delegate,
+               TimeValue ttl,
+               TimeValue negativeTtl,
+               TimeValue ejection,
+               Executor refreshExecutor,
+               LongSupplier nanoClock) {
+        this.delegate = delegate;
+        this.ttlNanos = ttl.nanos();
+        this.negativeTtlNanos = negativeTtl.nanos();
+        this.ejectionNanos = ejection.nanos();
+        this.refreshExecutor = refreshExecutor;
+        this.nanoClock = nanoClock;
+    }
+
+    @Override
+    public List<InetAddress> lookup(String hostname) throws UnknownHostException {
+        long now = nanoClock.getAsLong();
+        Entry entry = entries.get(hostname);
+        if (entry == null || (entry.isExpired(now) && entry.addresses.isEmpty())) {
+            entry = resolve(hostname, entry, now);
+        } else if (entry.isExpired(now) && entry.refreshing.compareAndSet(false, true)) {
+            Entry stale = entry;
+            try {
+                refreshExecutor.execute(() -> resolve(hostname, stale, nanoClock.getAsLong()));
+            } catch (RejectedExecutionException e) {
+                stale.refreshing.set(false);
+            }
+        }
+
+        if (entry.addresses.isEmpty()) {
+            UnknownHostException unknownHost = new UnknownHostException(entry.failure.getMessage());
+            unknownHost.initCause(entry.failure);
+            throw unknownHost;
+        }
+        return order(entry.addresses, now);
+    }
+
+    /**
+     * Marks the address as unreachable for the ejection delay.
+     */
+    void eject(InetAddress address) {
+        ejectedUntil.put(address, nanoClock.getAsLong() + ejectionNanos);
+    }
+
+    /**
+     * @return a socket factory that ejects the addresses it fails to connect to.
+     */
+    SocketFactory socketFactory() {
+        return new EjectingSocketFactory();
+    }
+
+    private Entry resolve(String hostname, Entry previous, long now) {
+        Entry entry;
+        try {
+            entry = new Entry(Collections.unmodifiableList(new ArrayList<>(delegate.lookup(hostname))),
+                              null,
+                              now + ttlNanos);
+        } catch (UnknownHostException e) {
+            // keep serving the last known addresses rather than failing every authentication
+            entry = new Entry(previous != null ? previous.addresses : Collections.emptyList(),
+                              e,
+                              now + negativeTtlNanos);
+        }
+        entries.put(hostname, entry);
+        return entry;
+    }
+
+    private List<InetAddress> order(List<InetAddress> addresses, long now) {
+        int size = addresses.size();
+        if (size == 1 && ejectedUntil.isEmpty()) {
+            return addresses;
+        }
+        int start = Math.floorMod(rotation.getAndIncrement(), size);
+        List<InetAddress> healthy = new ArrayList<>(size);
+        List<InetAddress> ejected = new ArrayList<>(0);
+        for (int i = 0; i < size; i++) {
+            InetAddress address = addresses.get((start + i) % size);
+            (isEjected(address, now) ? ejected : healthy).add(address);
+        }
+        healthy.addAll(ejected);
+        return healthy;
+    }
+
+    private boolean isEjected(InetAddress address, long now) {
+        Long until = ejectedUntil.get(address);
+        if (until == null) {
+            return false;
+        }
+        if (now - until >= 0) {
+            ejectedUntil.remove(address, until);
+            return false;
+        }
+        return true;
+    }
+
+    private static final class Entry {
+        final List<InetAddress> addresses;
+        final UnknownHostException failure;
+        final long expiresAt;
+        final AtomicBoolean refreshing = new AtomicBoolean();
+
+        Entry(List<InetAddress> addresses, UnknownHostException failure, long expiresAt) {
+            this.addresses = addresses;
+            this.failure = failure;
+            this.expiresAt = expiresAt;
+        }
+
+        boolean isExpired(long now) {
+            return now - expiresAt >= 0;
+        }
+    }
+
+    private class EjectingSocketFactory extends SocketFactory {
+        private final SocketFactory socketFactory = SocketFactory.getDefault();
+
+        @Override
+        public Socket createSocket() {
+            return new Socket() {
+                @Override
+                public void connect(SocketAddress endpoint, int timeout) throws IOException {
+                    try {
+                        super.connect(endpoint, timeout);
+                    } catch (IOException e) {
+                        if (endpoint instanceof InetSocketAddress && ((InetSocketAddress) endpoint).getAddress() != null) {
+                            eject(((InetSocketAddress) endpoint).getAddress());
+                        }
+                        throw e;
+                    }
+                }
+            };
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            return socketFactory.createSocket(host, port);
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+            return socketFactory.createSocket(host, port, localHost, localPort);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            return socketFactory.createSocket(host, port);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+            return socketFactory.createSocket(address, port, localAddress, localPort);
+        }
+    }
+}
@@ -15,33 +15,71 @@
  */
 package fr.arkey.elasticsearch.oauth.realm.tokeninfo;
 
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Objects;
-import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Predicate;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheStats;
+import fr.arkey.elasticsearch.oauth.realm.stats.IntrospectionStats;
+import fr.arkey.elasticsearch.oauth.realm.support.OAuthRealmExceptions;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.common.util.concurrent.ThreadContext;
 import org.elasticsearch.xpack.security.authc.RealmConfig;
 
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
 /**
  * A simple token-info cache decorating a delegate token retriever.
  *
  * As token are cached this class asks for a way to determine if token are expired.
+ *
+ * When {@code rate-limit.per-source.rate} is set, cache misses are rate limited per source before calling the
+ * delegate. A source over its rate is answered with a {@code 429 Too Many Requests}, so a client minting a new
+ * token per request cannot exhaust the identity provider quota of the other ones.
+ * <p>
+ * The source is the remote address of the request. The {@code X-Forwarded-For} header is only trusted when the
+ * request comes from one of the {@code rate-limit.trusted-proxies}, the source is then the last address of the
+ * header that is not a trusted proxy. Requests whose source is unknown share a single global bucket.
  */
 public class CachingOAuthTokenRetriever implements OAuthTokenRetriever {
 
     public static final int DEFAULT_MAX_CACHE_SIZE = 20_000;
     public static final int DEFAULT_ENTRY_EXPIRATION_IN_SECONDS = 300;
-    private final Cache<String, TokenInfo> tokensCache;
+    public static final int DEFAULT_MAX_NEGATIVE_CACHE_SIZE = 10_000;
+    public static final String FORWARDED_FOR_HEADER = "X-Forwarded-For";
+    public static final int DEFAULT_RATE_LIMIT_MAX_SOURCES = 10_000;
+    /**
+     * Rate limiting source shared by the requests whose source is unknown.
+     */
+    public static final String GLOBAL_SOURCE = "_global";
+    /**
+     * Transient holding the remote address of REST requests, set by the x-pack security REST filter.
+     */
+    static final String REMOTE_ADDRESS_TRANSIENT = "_rest_remote_address";
+    private final Logger logger;
+    private final Cache<String, IntrospectionResult> tokensCache;
+    private final Cache<String, IntrospectionResult> negativeCache;
+    private final LongAdder[] introspections = new LongAdder[IntrospectionResult.Status.values().length];
+    private final LongAdder shortCircuited = new LongAdder();
+    private volatile IntrospectionResult unavailableResult;
+    private volatile long unavailableUntilNanos;
     private OAuthTokenRetriever delegate;
     private Predicate<TokenInfo> tokenExpirationPredicate;
+    private final ThreadContext threadContext;
+    private final IntrospectionRateLimiter rateLimiter;
+    private final Set<String> trustedProxies;
 
     public CachingOAuthTokenRetriever(RealmConfig config,
                                       OAuthTokenRetriever delegate,
                                       Predicate<TokenInfo> tokenExpirationPredicate) {
-        Objects.requireNonNull(config);
+        this.logger = Objects.requireNonNull(config).logger(CachingOAuthTokenRetriever.class);
         this.delegate = Objects.requireNonNull(delegate);
         this.tokenExpirationPredicate = Objects.requireNonNull(tokenExpirationPredicate);
 
@@ -55,31 +93,161 @@ public class CachingOAuthTokenRetriever implements OAuthTokenRetriever {
                                                     SECONDS)
                                   .recordStats()
                                   .build();
+        int negativeExpirationInSeconds = config.settings().getAsInt("token-info.cache.negative.expire-in-seconds", 0);
+        negativeCache = negativeExpirationInSeconds > 0 ?
+                        CacheBuilder.newBuilder()
+                                    .maximumSize(config.settings()
+                                                       .getAsInt("token-info.cache.negative.max-size",
+                                                                 DEFAULT_MAX_NEGATIVE_CACHE_SIZE))
+                                    .expireAfterWrite(negativeExpirationInSeconds, SECONDS)
+                                    .build() :
+                        null;
+        for (int i = 0; i < introspections.length; i++) {
+            introspections[i] = new LongAdder();
+        }
+
+        this.threadContext = config.threadContext();
+        double rate = config.settings().getAsDouble("rate-limit.per-source.rate", 0d);
+        this.rateLimiter = rate > 0 ?
+                           new IntrospectionRateLimiter(
+                                   rate,
+                                   config.settings().getAsInt("rate-limit.per-source.burst", (int) Math.max(1, Math.ceil(rate))),
+                                   config.settings().getAsInt("rate-limit.max-sources", DEFAULT_RATE_LIMIT_MAX_SOURCES)) :
+                           null;
+        this.trustedProxies = new HashSet<>(Arrays.asList(config.settings().getAsArray("rate-limit.trusted-proxies")));
     }
 
     /**
      * Get token info and caches it for the configured expiration time.
      *
+     * Tokens explicitly rejected by the identity provider are cached for
+     * {@code token-info.cache.negative.expire-in-seconds} when set. When the
+     * identity provider is unavailable and asked to retry after some delay, misses are answered with the same
+     * unavailable result until the delay is elapsed, without calling the identity provider.
+     *
      * @param accessToken the access token string
-     * @return An optional with or without the token.
+     * @return the introspection result
      */
     @Override
-    public Optional<TokenInfo> getTokenInfo(String accessToken) {
-        TokenInfo tokenInfo = tokensCache.asMap()
-                                         .computeIfAbsent(accessToken,
-                                                          accessTokenToFetch -> delegate.getTokenInfo(accessTokenToFetch)
-                                                                                        .orElse(null));
-
-        if (tokenInfo == null) {
-            return Optional.empty();
+    public IntrospectionResult introspect(String accessToken) {
+        // getIfPresent records the hit or the miss, unlike the map view
+        IntrospectionResult result = tokensCache.getIfPresent(accessToken);
+        if (result == null) {
+            result = introspectMiss(accessToken);
+            if (result.status() != IntrospectionResult.Status.VALID) {
+                return counted(result);
+            }
+            IntrospectionResult cached = tokensCache.asMap().putIfAbsent(accessToken, result);
+            if (cached != null) {
+                result = cached;
+            }
+        }
+
+        if (tokenExpirationPredicate.test(result.tokenInfo())) {
+            tokensCache.asMap().remove(accessToken, result);
+            return counted(IntrospectionResult.EXPIRED);
+        }
+
+        return counted(result);
+    }
+
+    private IntrospectionResult introspectMiss(String accessToken) {
+        if (negativeCache != null) {
+            IntrospectionResult invalid = negativeCache.getIfPresent(accessToken);
+            if (invalid != null) {
+                return invalid;
+            }
+        }
+        IntrospectionResult unavailable = unavailableResult;
+        if (unavailable != null && System.nanoTime() - unavailableUntilNanos < 0) {
+            shortCircuited.increment();
+            return unavailable;
+        }
+
+        checkRateLimit();
+        IntrospectionResult result = delegate.introspect(accessToken);
+        switch (result.status()) {
+            case INVALID:
+                // only an explicit rejection is definitive, an unknown token may be known by the next call
+                if (negativeCache != null && result.rejection() != null) {
+                    negativeCache.put(accessToken, result);
+                }
+                break;
+            case UNAVAILABLE:
+                if (result.retryAfterNanos() > 0) {
+                    unavailableResult = result;
+                    unavailableUntilNanos = System.nanoTime() + result.retryAfterNanos();
+                    logger.warn("Identity provider unavailable, short-circuiting token introspections for [{}] ms",
+                                NANOSECONDS.toMillis(result.retryAfterNanos()));
+                }
+                break;
+            default:
+                break;
+        }
+        return result;
+    }
+
+    private IntrospectionResult counted(IntrospectionResult result) {
+        introspections[result.status().ordinal()].increment();
+        return result;
+    }
+
+    private void checkRateLimit() {
+        if (rateLimiter == null) {
+            return;
+        }
+        String source = source();
+        long waitNanos = rateLimiter.tryAcquire(source);
+        if (waitNanos != IntrospectionRateLimiter.GRANTED) {
+            logger.debug("Rejected token introspection for source [{}] over the rate limit", source);
+            throw OAuthRealmExceptions.tooManyRequestsException(waitNanos);
         }
+    }
 
-        if (tokenExpirationPredicate.test(tokenInfo)) {
-            tokensCache.asMap().remove(accessToken, tokenInfo);
-            return Optional.empty();
+    /**
+     * @return the rate limiting source of the current request
+     */
+    private String source() {
+        Object remoteAddress = threadContext.getTransient(REMOTE_ADDRESS_TRANSIENT);
+        String peer = remoteAddress instanceof InetSocketAddress && ((InetSocketAddress) remoteAddress).getAddress() != null ?
+                      ((InetSocketAddress) remoteAddress).getAddress().getHostAddress() :
+                      null;
+        if (trustedProxies.isEmpty() || (peer != null && !trustedProxies.contains(peer))) {
+            return peer != null ? peer : GLOBAL_SOURCE;
         }
+        // the peer is a trusted proxy, or is unknown while the node is declared to be behind trusted proxies
+        String client = clientOf(threadContext.getHeader(FORWARDED_FOR_HEADER), trustedProxies);
+        if (client != null) {
+            return client;
+        }
+        return peer != null ? peer : GLOBAL_SOURCE;
+    }
 
-        return Optional.of(tokenInfo);
+    /**
+     * Each proxy appends the address it received the request from to the {@code X-Forwarded-For} header,
+     * only the addresses appended by trusted proxies can be trusted.
+     *
+     * @return the last address of the {@code X-Forwarded-For} header that is not a trusted proxy, or the first
+     * address if they all are
+     */
+    static String clientOf(String forwardedFor, Set<String> trustedProxies) {
+        if (forwardedFor == null) {
+            return null;
+        }
+        String client = null;
+        int end = forwardedFor.length();
+        while (end >= 0) {
+            int comma = forwardedFor.lastIndexOf(',', end - 1);
+            String address = forwardedFor.substring(comma + 1, end).trim();
+            if (!address.isEmpty()) {
+                client = address;
+                if (!trustedProxies.contains(address)) {
+                    break;
+                }
+            }
+            end = comma;
+        }
+        return client;
     }
 
     /**
@@ -90,12 +258,49 @@ public class CachingOAuthTokenRetriever implements OAuthTokenRetriever {
     }
 
     /**
-     * Could be useful to expose on the custom rest endpoint, unknown how to do it at the moment;
+     * Clear the cached token info entries matching the predicate.
      *
+     * @param predicate the entries to clear
+     * @return the number of cleared entries
+     */
+    public int expiresIf(Predicate<TokenInfo> predicate) {
+        int expired = 0;
+        Iterator<IntrospectionResult> cachedTokenInfos = tokensCache.asMap().values().iterator();
+        while (cachedTokenInfos.hasNext()) {
+            if (predicate.test(cachedTokenInfos.next().tokenInfo())) {
+                cachedTokenInfos.remove();
+                expired++;
+            }
+        }
+        logger.debug("Cleared [{}] cached token info entries", expired);
+        return expired;
+    }
+
+    /**
      * @return cache statistics.
      */
     public CacheStats stats() {
         return tokensCache.stats();
     }
 
+    /**
+     * @return the number of introspections by result status, and of the ones short-circuited while the
+     * identity provider was unavailable.
+     */
+    public IntrospectionStats introspectionStats() {
+        return new IntrospectionStats(introspections[IntrospectionResult.Status.VALID.ordinal()].sum(),
+                                      introspections[IntrospectionResult.Status.INVALID.ordinal()].sum(),
+                                      introspections[IntrospectionResult.Status.EXPIRED.ordinal()].sum(),
+                                      introspections[IntrospectionResult.Status.UNAVAILABLE.ordinal()].sum(),
+                                      shortCircuited.sum(),
+                                      negativeCache != null ? negativeCache.size() : 0);
+    }
+
+    /**
+     * @return the approximate number of cached token info entries.
+     */
+    public long size() {
+        return tokensCache.size();
+    }
+
 }
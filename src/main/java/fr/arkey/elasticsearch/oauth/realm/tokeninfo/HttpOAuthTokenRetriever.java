@@ -15,31 +15,45 @@
  */
 package fr.arkey.elasticsearch.oauth.realm.tokeninfo;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UncheckedIOException;
 import java.net.InetSocketAddress;
 import java.net.Proxy;
 import java.net.UnknownHostException;
+import java.util.Arrays;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Function;
 import java.util.function.Supplier;
+import fr.arkey.elasticsearch.oauth.realm.slowlog.AuthenticationTimings;
+import fr.arkey.elasticsearch.oauth.realm.stats.IdpStats;
+import fr.arkey.elasticsearch.oauth.realm.stats.LatencyHistogram;
 import fr.arkey.elasticsearch.oauth.realm.support.OAuthRealmExceptions;
 import fr.arkey.elasticsearch.oauth.realm.support.Privileges;
 import okhttp3.Authenticator;
 import okhttp3.ConnectionPool;
 import okhttp3.Credentials;
+import okhttp3.Dns;
 import okhttp3.HttpUrl;
 import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
 import okhttp3.Request;
 import okhttp3.Response;
 import org.apache.logging.log4j.Logger;
 import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.xpack.security.authc.RealmConfig;
 
+import static java.util.Collections.singletonList;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static java.util.stream.Collectors.joining;
 import static okhttp3.CacheControl.FORCE_NETWORK;
 
@@ -50,16 +64,39 @@ import static okhttp3.CacheControl.FORCE_NETWORK;
  * The http client is configured with default timeouts, and default connection pool, however
  * these are configurable.
  * If a proxy is configured for the idp, it will be used.
+ *
+ * The token info host is resolved in the background, as well as the optional pre-warmed connections
+ * ({@code idp.prewarm-connections}), so creating the realm doesn't block on the network.
+ *
+ * The IdP host is resolved with a {@link CachingDns}, whose TTLs are configurable ({@code idp.dns.*}),
+ * so an IdP failover is followed without restarting the node.
+ *
+ * The TLS stack (trust store, client certificate, protocols, cipher suites and session cache) is configured
+ * by the {@code idp.ssl.*} settings, see {@link IdpTls}.
+ *
+ * With {@code idp.http2} the client negotiates HTTP/2 through ALPN, concurrent token info requests are then
+ * multiplexed on few connections instead of needing a socket each.
  */
-public class HttpOAuthTokenRetriever implements OAuthTokenRetriever {
+public class HttpOAuthTokenRetriever implements OAuthTokenRetriever, Closeable {
     private final Logger logger;
     private static final int MAX_TOTAL_CONNECTION = 200;
     private static final long CONNECT_TIMEOUT = 10_000L;
     private static final long SOCKET_TIMEOUT = 10_000L;
+    private static final TimeValue DNS_TTL = TimeValue.timeValueSeconds(30);
+    private static final TimeValue DNS_NEGATIVE_TTL = TimeValue.timeValueSeconds(5);
+    private static final TimeValue DNS_EJECTION = TimeValue.timeValueSeconds(30);
+    private static final TimeValue UNAVAILABLE_BACKOFF = TimeValue.timeValueSeconds(1);
+    private static final TimeValue UNAVAILABLE_MAX_BACKOFF = TimeValue.timeValueSeconds(30);
     private final String tokenInfoUri;
     private final Function<InputStream, TokenInfo> tokenInfoMapper;
     private final OkHttpClient httpClient;
+    private final IdpTls tls;
+    private final IdpConnectionTracker connectionTracker;
     private final String name;
+    private final LatencyHistogram idpLatency = new LatencyHistogram();
+    private final LongAdder idpFailures = new LongAdder();
+    private final long unavailableBackoffNanos;
+    private final long unavailableMaxBackoffNanos;
 
     /**
      * Build the token info retriever.
@@ -74,9 +111,24 @@ public class HttpOAuthTokenRetriever implements OAuthTokenRetriever {
         this.tokenInfoMapper = Objects.requireNonNull(tokenInfoMapper);
         this.logger = config.logger(HttpOAuthTokenRetriever.class);
         this.tokenInfoUri = Objects.requireNonNull(config.settings().get("token-info.url"), "missing required setting [token-info.url]");
+        this.unavailableMaxBackoffNanos = config.settings().getAsTime("idp.unavailable.max-backoff", UNAVAILABLE_MAX_BACKOFF).nanos();
+        this.unavailableBackoffNanos = Math.min(config.settings().getAsTime("idp.unavailable.backoff", UNAVAILABLE_BACKOFF).nanos(),
+                                                unavailableMaxBackoffNanos);
 
 
+        CachingDns dns = new CachingDns(
+                Dns.SYSTEM,
+                config.settings().getAsTime("idp.dns.ttl", DNS_TTL),
+                config.settings().getAsTime("idp.dns.negative-ttl", DNS_NEGATIVE_TTL),
+                config.settings().getAsTime("idp.dns.ejection", DNS_EJECTION),
+                this::executeInBackground);
+        this.tls = IdpTls.from(config.settings().getByPrefix("idp.ssl."),
+                               path -> config.env().configFile().resolve(path));
+        this.connectionTracker = new IdpConnectionTracker(tls);
         this.httpClient = createIdpHttpClient(
+                dns,
+                tls,
+                config.settings().getAsBoolean("idp.http2", false),
                 config.settings().getAsLong("idp.connection-timeout-in-millis", CONNECT_TIMEOUT),
                 config.settings().getAsLong("idp.read-timeout-in-millis", SOCKET_TIMEOUT),
                 config.settings().getAsLong("idp.write-timeout-in-millis", SOCKET_TIMEOUT),
@@ -86,25 +138,83 @@ public class HttpOAuthTokenRetriever implements OAuthTokenRetriever {
         );
 
         logHttpClientSettings();
+        warmUpInBackground(config.settings().getAsInt("idp.prewarm-connections", 0));
     }
 
     private void logHttpClientSettings() {
-        Optional<String> resolved = tryResolveUri();
-
         logger.debug("[{}] OAuth realm HTTP client settings :\n" +
                      "  proxy : {} {}\n" +
                      "  connection timeout : {} ms\n" +
                      "  write timeout : {} ms\n" +
-                     "  read timeout : {} ms\n" +
-                     "  resolved IPs for '{}' : {}",
+                     "  read timeout : {} ms",
                      name,
                      httpClient.proxyAuthenticator() != Authenticator.NONE ? "<authenticated>" : "<un-authenticated>",
                      httpClient.proxy() != null ? httpClient.proxy().address() : "<none>",
                      httpClient.connectTimeoutMillis(),
                      httpClient.writeTimeoutMillis(),
-                     httpClient.readTimeoutMillis(),
-                     tokenInfoUri,
-                     resolved.orElse("unresolved at this time"));
+                     httpClient.readTimeoutMillis());
+    }
+
+    /**
+     * Resolves the token info host and opens the keep-alive connections to the IdP on the HTTP client threads,
+     * so that creating the realm never blocks on the network, and the first authentications don't pay the
+     * connection setup.
+     */
+    private void warmUpInBackground(int prewarmConnections) {
+        executeInBackground(() -> warmUp(prewarmConnections));
+    }
+
+    private void executeInBackground(Runnable task) {
+        Privileges.pluginPrivileges(() -> {
+            httpClient.dispatcher().executorService().execute(task);
+            return null;
+        });
+    }
+
+    private void warmUp(int prewarmConnections) {
+        long startTime = System.nanoTime();
+        Optional<String> resolved = tryResolveUri();
+        logger.info("[{}] OAuth realm resolved IPs for '{}' : {} in [{}] ms",
+                    name,
+                    tokenInfoUri,
+                    resolved.orElse("unresolved at this time"),
+                    NANOSECONDS.toMillis(System.nanoTime() - startTime));
+        if (prewarmConnections <= 0) {
+            return;
+        }
+
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(prewarmConnections);
+        AtomicInteger warmedConnections = new AtomicInteger();
+        for (int i = 0; i < prewarmConnections; i++) {
+            // concurrent calls, so that each one opens its own connection
+            httpClient.dispatcher().executorService().execute(() -> {
+                try {
+                    start.await();
+                    try (Response ignored = executeRequest(new Request.Builder().url(tokenInfoUri).head().build())) {
+                        warmedConnections.incrementAndGet();
+                    }
+                } catch (IOException e) {
+                    logger.debug("[{}] OAuth realm failed to pre-warm a connection to '{}'", name, tokenInfoUri, e);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        start.countDown();
+        try {
+            done.await(httpClient.connectTimeoutMillis() + httpClient.readTimeoutMillis(), MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        logger.info("[{}] OAuth realm ready, pre-warmed [{}/{}] connections to '{}' in [{}] ms",
+                    name,
+                    warmedConnections.get(),
+                    prewarmConnections,
+                    tokenInfoUri,
+                    NANOSECONDS.toMillis(System.nanoTime() - startTime));
     }
 
     private Optional<String> tryResolveUri() {
@@ -119,12 +229,18 @@ public class HttpOAuthTokenRetriever implements OAuthTokenRetriever {
      * Perform the HTTP GET request to the provided URL.
      *
      * It uses the provided access token as Authentication on the token endpoint.
+     * A server error or a {@code 429} makes the identity provider unavailable, for the delay of its
+     * {@code Retry-After} header capped to {@code idp.unavailable.max-backoff}, or for {@code idp.unavailable.backoff}
+     * when the header is missing or not a delay in seconds. An error status with a {@code WWW-Authenticate}
+     * challenge makes the token invalid, any other status (a {@code 404} of a misconfigured url, a redirect...)
+     * says nothing about the token and makes the identity provider unavailable, without backoff.
      *
      * @param accessToken The access token
-     * @return An optional containing the token info if it exists
+     * @return the introspection result
      */
     @Override
-    public Optional<TokenInfo> getTokenInfo(String accessToken) {
+    public IntrospectionResult introspect(String accessToken) {
+        long startTime = System.nanoTime();
         try (Response tokenInfoResponse = executeRequest(
                 new Request.Builder()
                         .url(tokenInfoUri)
@@ -133,16 +249,84 @@ public class HttpOAuthTokenRetriever implements OAuthTokenRetriever {
                         .cacheControl(FORCE_NETWORK)
                         .get()
                         .build())) {
+            long responseTime = System.nanoTime();
+            AuthenticationTimings.record(AuthenticationTimings.Stage.IDP, responseTime - startTime);
             if (tokenInfoResponse.isSuccessful()) {
-                return Optional.of(tokenInfoMapper.apply(tokenInfoResponse.body().byteStream()));
+                try {
+                    return IntrospectionResult.valid(tokenInfoMapper.apply(tokenInfoResponse.body().byteStream()));
+                } catch (RuntimeException e) {
+                    // a malformed token info must not escape, e.g. it would abort probing the other issuers
+                    idpFailures.increment();
+                    logger.warn("Token info endpoint '{}' answered a token info that could not be read", tokenInfoUri, e);
+                    return IntrospectionResult.unavailable(e, 0);
+                } finally {
+                    AuthenticationTimings.record(AuthenticationTimings.Stage.MAPPING, System.nanoTime() - responseTime);
+                }
+            } else if (tokenInfoResponse.code() >= 500 || tokenInfoResponse.code() == 429) {
+                idpFailures.increment();
+                logger.warn("Token info endpoint '{}' is unavailable, status [{}]", tokenInfoUri, tokenInfoResponse.code());
+                return IntrospectionResult.unavailable(null, retryAfterNanos(tokenInfoResponse.header("Retry-After"),
+                                                                             unavailableBackoffNanos,
+                                                                             unavailableMaxBackoffNanos));
             } else if (tokenInfoResponse.headers().names().contains("WWW-Authenticate")) {
-                throw OAuthRealmExceptions.authorizationException(tokenInfoResponse.header("WWW-Authenticate"));
+                return IntrospectionResult.invalid(OAuthRealmExceptions.tokenRejected(tokenInfoResponse.header("WWW-Authenticate")));
             }
-            return Optional.empty();
+            idpFailures.increment();
+            logger.warn("Token info endpoint '{}' answered an unexpected status [{}]", tokenInfoUri, tokenInfoResponse.code());
+            return IntrospectionResult.unavailable(null, 0);
         } catch (UncheckedIOException | IOException ioe) {
+            idpFailures.increment();
             logger.error("Could not authenticate user, could be a connection issue", ioe);
-            throw OAuthRealmExceptions.authorizationException(ioe);
+            return IntrospectionResult.unavailable(ioe, 0);
+        } finally {
+            idpLatency.record(System.nanoTime() - startTime);
+        }
+    }
+
+    /**
+     * @return the delay in nanoseconds of a {@code Retry-After} header in seconds capped to the max backoff,
+     * the default backoff if absent or a date
+     */
+    static long retryAfterNanos(String retryAfter, long backoffNanos, long maxBackoffNanos) {
+        if (retryAfter == null) {
+            return backoffNanos;
         }
+        try {
+            return Math.min(SECONDS.toNanos(Math.max(0, Long.parseLong(retryAfter.trim()))), maxBackoffNanos);
+        } catch (NumberFormatException e) {
+            return backoffNanos;
+        }
+    }
+
+    /**
+     * Stops the HTTP client threads and closes its idle connections, calls in flight are not cancelled.
+     */
+    @Override
+    public void close() {
+        Privileges.pluginPrivileges(() -> {
+            httpClient.dispatcher().executorService().shutdown();
+            httpClient.connectionPool().evictAll();
+            return null;
+        });
+    }
+
+    /**
+     * @return the latencies of the token info endpoint and the usage of the connection pool.
+     */
+    public IdpStats stats() {
+        int connections = httpClient.connectionPool().connectionCount();
+        long openedConnections = connectionTracker.openedConnections();
+        return new IdpStats(tokenInfoUri,
+                            idpLatency.snapshot(),
+                            idpFailures.sum(),
+                            connections,
+                            httpClient.connectionPool().idleConnectionCount(),
+                            httpClient.dispatcher().runningCallsCount(),
+                            openedConnections,
+                            Math.max(0, openedConnections - connections),
+                            connectionTracker.http2Connections(),
+                            tls.fullHandshakes(),
+                            tls.resumedHandshakes());
     }
 
     private Optional<Authenticator> proxyAuthenticatorFrom(RealmConfig config) {
@@ -173,7 +357,10 @@ public class HttpOAuthTokenRetriever implements OAuthTokenRetriever {
         return Optional.of(new Proxy(Proxy.Type.HTTP, InetSocketAddress.createUnresolved(proxyHost, proxyPort)));
     }
 
-    private OkHttpClient createIdpHttpClient(long connectionTimeoutInMillis,
+    private OkHttpClient createIdpHttpClient(CachingDns dns,
+                                             IdpTls tls,
+                                             boolean http2,
+                                             long connectionTimeoutInMillis,
                                              long readTimeoutInMillis,
                                              long writeTimeoutInMillis,
                                              int maxIdleConnections,
@@ -190,7 +377,13 @@ public class HttpOAuthTokenRetriever implements OAuthTokenRetriever {
                     .connectTimeout(connectionTimeoutInMillis, MILLISECONDS)
                     .readTimeout(readTimeoutInMillis, MILLISECONDS)
                     .writeTimeout(writeTimeoutInMillis, MILLISECONDS)
-                    .connectionPool(new ConnectionPool(maxIdleConnections, 5, MINUTES));
+                    .connectionPool(new ConnectionPool(maxIdleConnections, 5, MINUTES))
+                    .dns(dns)
+                    .socketFactory(dns.socketFactory())
+                    .sslSocketFactory(tls.socketFactory(), tls.trustManager())
+                    .connectionSpecs(tls.connectionSpecs())
+                    .protocols(http2 ? Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1) : singletonList(Protocol.HTTP_1_1))
+                    .addNetworkInterceptor(connectionTracker);
 
             proxySupplier.get().ifPresent(okHttpClientBuilder::proxy);
             proxyAuthenticatorSupplier.get().ifPresent(okHttpClientBuilder::proxyAuthenticator);
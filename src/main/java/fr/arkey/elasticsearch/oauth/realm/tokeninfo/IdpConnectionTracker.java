@@ -0,0 +1,70 @@
+/*
+ * Copyright 2017 Brice Dutheil
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.arkey.elasticsearch.oauth.realm.tokeninfo;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.net.ssl.SSLSocket;
+import com.google.common.collect.MapMaker;
+import okhttp3.Connection;
+import okhttp3.Interceptor;
+import okhttp3.Protocol;
+import okhttp3.Response;
+
+/**
+ * Network interceptor tracking the connections opened to the IdP, their protocol and their TLS handshake.
+ * <p>
+ * A connection is new the first time one of its exchanges goes through the interceptor, the sockets are
+ * weakly referenced so closed connections are forgotten. Exchanges on a known connection only read the
+ * concurrent map, which does not lock, the map is only written when a connection is first seen.
+ */
+class IdpConnectionTracker implements Interceptor {
+    private final IdpTls tls;
+    private final ConcurrentMap<Socket, Boolean> trackedSockets = new MapMaker().weakKeys().makeMap();
+    private final LongAdder openedConnections = new LongAdder();
+    private final LongAdder http2Connections = new LongAdder();
+
+    IdpConnectionTracker(IdpTls tls) {
+        this.tls = tls;
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        Connection connection = chain.connection();
+        if (connection != null
+            && trackedSockets.get(connection.socket()) == null
+            && trackedSockets.putIfAbsent(connection.socket(), Boolean.TRUE) == null) {
+            openedConnections.increment();
+            if (connection.protocol() == Protocol.HTTP_2) {
+                http2Connections.increment();
+            }
+            if (connection.socket() instanceof SSLSocket) {
+                tls.countHandshake((SSLSocket) connection.socket());
+            }
+        }
+        return chain.proceed(chain.request());
+    }
+
+    long openedConnections() {
+        return openedConnections.sum();
+    }
+
+    long http2Connections() {
+        return http2Connections.sum();
+    }
+}
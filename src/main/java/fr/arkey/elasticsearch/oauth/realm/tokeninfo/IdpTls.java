@@ -0,0 +1,170 @@
+/*
+ * Copyright 2017 Brice Dutheil
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.arkey.elasticsearch.oauth.realm.tokeninfo;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509TrustManager;
+import okhttp3.ConnectionSpec;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+
+/**
+ * TLS configuration of the IdP HTTP client, read from the {@code idp.ssl.*} settings which follow the x-pack
+ * {@code ssl} settings naming : {@code truststore.path}, {@code truststore.password}, {@code keystore.path},
+ * {@code keystore.password}, {@code keystore.key_password}, {@code supported_protocols} and
+ * {@code cipher_suites}. When the keystore is declared its key is presented as client certificate (mutual TLS).
+ * <p>
+ * The realm uses its own {@link SSLContext}, so that the TLS sessions to the IdP are kept in a dedicated client
+ * session cache ({@code session.cache_size} and {@code session.timeout}) : a connection opened after the
+ * idle ones were evicted resumes the session instead of performing a full handshake.
+ * <p>
+ * The full and the resumed handshakes are {@link #countHandshake(SSLSocket) counted} by the
+ * {@link IdpConnectionTracker}.
+ */
+class IdpTls {
+    private static final String HANDSHAKE_MARKER = "oauth-realm.full-handshake";
+    static final int SESSION_CACHE_SIZE = 1_000;
+    static final TimeValue SESSION_TIMEOUT = TimeValue.timeValueHours(24);
+
+    private final SSLContext sslContext;
+    private final X509TrustManager trustManager;
+    private final ConnectionSpec connectionSpec;
+    private final LongAdder fullHandshakes = new LongAdder();
+    private final LongAdder resumedHandshakes = new LongAdder();
+
+    private IdpTls(SSLContext sslContext, X509TrustManager trustManager, ConnectionSpec connectionSpec) {
+        this.sslContext = sslContext;
+        this.trustManager = trustManager;
+        this.connectionSpec = connectionSpec;
+    }
+
+    /**
+     * @param sslSettings  the {@code idp.ssl.} settings
+     * @param pathResolver resolves the keystore and truststore paths
+     */
+    static IdpTls from(Settings sslSettings, Function<String, Path> pathResolver) {
+        try {
+            X509TrustManager trustManager = trustManager(
+                    loadKeyStore(sslSettings, "truststore", pathResolver));
+            KeyStore keyStore = loadKeyStore(sslSettings, "keystore", pathResolver);
+            KeyManager[] keyManagers = null;
+            if (keyStore != null) {
+                KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+                keyManagerFactory.init(keyStore, sslSettings.get("keystore.key_password", sslSettings.get("keystore.password", "")).toCharArray());
+                keyManagers = keyManagerFactory.getKeyManagers();
+            }
+
+            SSLContext sslContext = SSLContext.getInstance("TLS");
+            sslContext.init(keyManagers, new TrustManager[]{trustManager}, null);
+            sslContext.getClientSessionContext().setSessionCacheSize(sslSettings.getAsInt("session.cache_size", SESSION_CACHE_SIZE));
+            sslContext.getClientSessionContext().setSessionTimeout(
+                    (int) sslSettings.getAsTime("session.timeout", SESSION_TIMEOUT).seconds());
+
+            ConnectionSpec.Builder connectionSpec = new ConnectionSpec.Builder(ConnectionSpec.MODERN_TLS);
+            String[] protocols = sslSettings.getAsArray("supported_protocols");
+            if (protocols.length > 0) {
+                connectionSpec.tlsVersions(protocols);
+            }
+            String[] cipherSuites = sslSettings.getAsArray("cipher_suites");
+            if (cipherSuites.length > 0) {
+                connectionSpec.cipherSuites(cipherSuites);
+            }
+            return new IdpTls(sslContext, trustManager, connectionSpec.build());
+        } catch (IOException | GeneralSecurityException e) {
+            throw new IllegalStateException("Couldn't configure the TLS of the identity provider client", e);
+        }
+    }
+
+    SSLSocketFactory socketFactory() {
+        return sslContext.getSocketFactory();
+    }
+
+    X509TrustManager trustManager() {
+        return trustManager;
+    }
+
+    /**
+     * @return the TLS connection spec, followed by clear text to still allow {@code http} urls
+     */
+    List<ConnectionSpec> connectionSpecs() {
+        return Arrays.asList(connectionSpec, ConnectionSpec.CLEARTEXT);
+    }
+
+    /**
+     * Counts the handshake of a new TLS connection, a session seen for the first time is a full handshake,
+     * otherwise it has been resumed.
+     */
+    void countHandshake(SSLSocket socket) {
+        SSLSession session = socket.getSession();
+        if (session.getValue(HANDSHAKE_MARKER) == null) {
+            session.putValue(HANDSHAKE_MARKER, Boolean.TRUE);
+            fullHandshakes.increment();
+        } else {
+            resumedHandshakes.increment();
+        }
+    }
+
+    long fullHandshakes() {
+        return fullHandshakes.sum();
+    }
+
+    long resumedHandshakes() {
+        return resumedHandshakes.sum();
+    }
+
+    private static KeyStore loadKeyStore(Settings sslSettings, String store, Function<String, Path> pathResolver)
+            throws IOException, GeneralSecurityException {
+        String path = sslSettings.get(store + ".path");
+        if (path == null) {
+            return null;
+        }
+        Path storePath = pathResolver.apply(path);
+        String defaultType = path.endsWith(".p12") || path.endsWith(".pfx") ? "PKCS12" : "jks";
+        KeyStore keyStore = KeyStore.getInstance(sslSettings.get(store + ".type", defaultType));
+        try (InputStream in = Files.newInputStream(storePath)) {
+            keyStore.load(in, sslSettings.get(store + ".password", "").toCharArray());
+        }
+        return keyStore;
+    }
+
+    private static X509TrustManager trustManager(KeyStore trustStore) throws GeneralSecurityException {
+        // a null trust store means the JVM default trusted certificates
+        TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagerFactory.init(trustStore);
+        return Arrays.stream(trustManagerFactory.getTrustManagers())
+                     .filter(X509TrustManager.class::isInstance)
+                     .map(X509TrustManager.class::cast)
+                     .findFirst()
+                     .orElseThrow(() -> new IllegalStateException("No X509 trust manager in " + Arrays.toString(trustManagerFactory.getTrustManagers())));
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2017 Brice Dutheil
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.arkey.elasticsearch.oauth.realm.tokeninfo;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Limits the rate of token introspections per source, each source gets {@code rate} introspections per second
+ * with bursts of up to {@code burst} introspections.
+ * <p>
+ * This is the generic cell rate algorithm, an equivalent of the token bucket that only keeps one timestamp per
+ * source : the theoretical arrival time of the next introspection, which is updated with a compare and set.
+ * At most {@code maxSources} sources are tracked, the least recently used are evicted.
+ */
+class IntrospectionRateLimiter {
+    static final long GRANTED = 0;
+
+    private final long emissionIntervalNanos;
+    private final long burstToleranceNanos;
+    private final LongSupplier nanoClock;
+    private final Cache<String, AtomicLong> theoreticalArrivalTimes;
+
+    IntrospectionRateLimiter(double rate, int burst, int maxSources) {
+        this(rate, burst, maxSources, System::nanoTime);
+    }
+
+    IntrospectionRateLimiter(double rate, int burst, int maxSources, LongSupplier nanoClock) {
+        if (rate <= 0 || burst <= 0) {
+            throw new IllegalArgumentException("rate [" + rate + "] and burst [" + burst + "] must be positive");
+        }
+        this.emissionIntervalNanos = (long) (SECONDS.toNanos(1) / rate);
+        this.burstToleranceNanos = emissionIntervalNanos * (burst - 1);
+        this.nanoClock = nanoClock;
+        this.theoreticalArrivalTimes = CacheBuilder.newBuilder()
+                                                   .maximumSize(maxSources)
+                                                   .expireAfterAccess(1, MINUTES)
+                                                   .build();
+    }
+
+    /**
+     * @param source the source of the introspection
+     * @return {@link #GRANTED} if the introspection is allowed, otherwise the nanoseconds to wait before the
+     * next one is allowed
+     */
+    long tryAcquire(String source) {
+        AtomicLong theoreticalArrivalTime = theoreticalArrivalTimes.asMap()
+                                                                   .computeIfAbsent(source, ignored -> new AtomicLong(nanoClock.getAsLong()));
+        long now = nanoClock.getAsLong();
+        while (true) {
+            long current = theoreticalArrivalTime.get();
+            long arrival = current - now > 0 ? current : now;
+            long waitNanos = arrival - burstToleranceNanos - now;
+            if (waitNanos > 0) {
+                return waitNanos;
+            }
+            if (theoreticalArrivalTime.compareAndSet(current, arrival + emissionIntervalNanos)) {
+                return GRANTED;
+            }
+        }
+    }
+
+    long trackedSources() {
+        return theoreticalArrivalTimes.size();
+    }
+}
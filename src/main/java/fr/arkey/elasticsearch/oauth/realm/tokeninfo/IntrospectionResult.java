@@ -0,0 +1,136 @@
+/*
+ * Copyright 2017 Brice Dutheil
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.arkey.elasticsearch.oauth.realm.tokeninfo;
+
+import java.util.Objects;
+import fr.arkey.elasticsearch.oauth.realm.support.OAuthRealmExceptions;
+import fr.arkey.elasticsearch.oauth.realm.support.TokenRejection;
+import org.elasticsearch.ElasticsearchSecurityException;
+
+/**
+ * Outcome of the introspection of an access token.
+ *
+ * <ul>
+ * <li>{@link Status#VALID} : the token info is known</li>
+ * <li>{@link Status#INVALID} : the identity provider doesn't know the token, possibly with the error of
+ * its {@code WWW-Authenticate} header</li>
+ * <li>{@link Status#EXPIRED} : the token info is known but expired</li>
+ * <li>{@link Status#UNAVAILABLE} : the identity provider couldn't answer, possibly with the delay after
+ * which it asked to be retried</li>
+ * </ul>
+ *
+ * Failures are values rather than exceptions, so that the retrievers can decide what to cache and for how
+ * long without paying for exceptions on the failure path.
+ */
+public final class IntrospectionResult {
+    /**
+     * The different introspection outcomes.
+     */
+    public enum Status {
+        VALID, INVALID, EXPIRED, UNAVAILABLE
+    }
+
+    public static final IntrospectionResult UNKNOWN_TOKEN = new IntrospectionResult(Status.INVALID, null, null, null, 0);
+    public static final IntrospectionResult EXPIRED = new IntrospectionResult(Status.EXPIRED, null, null, null, 0);
+
+    private final Status status;
+    private final TokenInfo tokenInfo;
+    private final TokenRejection rejection;
+    private final Throwable cause;
+    private final long retryAfterNanos;
+
+    private IntrospectionResult(Status status,
+                                TokenInfo tokenInfo,
+                                TokenRejection rejection,
+                                Throwable cause,
+                                long retryAfterNanos) {
+        this.status = status;
+        this.tokenInfo = tokenInfo;
+        this.rejection = rejection;
+        this.cause = cause;
+        this.retryAfterNanos = retryAfterNanos;
+    }
+
+    public static IntrospectionResult valid(TokenInfo tokenInfo) {
+        return new IntrospectionResult(Status.VALID, Objects.requireNonNull(tokenInfo), null, null, 0);
+    }
+
+    /**
+     * @param rejection the rejection by the identity provider, with its {@code WWW-Authenticate} header
+     */
+    public static IntrospectionResult invalid(TokenRejection rejection) {
+        return new IntrospectionResult(Status.INVALID, null, Objects.requireNonNull(rejection), null, 0);
+    }
+
+    /**
+     * @param cause           the failure, may be null when the identity provider answered with an error status
+     * @param retryAfterNanos the delay the identity provider asked to wait before retrying, 0 if none
+     */
+    public static IntrospectionResult unavailable(Throwable cause, long retryAfterNanos) {
+        return new IntrospectionResult(Status.UNAVAILABLE, null, null, cause, retryAfterNanos);
+    }
+
+    public Status status() {
+        return status;
+    }
+
+    /**
+     * @return the token info of a {@link Status#VALID} result, null otherwise
+     */
+    public TokenInfo tokenInfo() {
+        return tokenInfo;
+    }
+
+    /**
+     * @return the rejection of an {@link Status#INVALID} result, null if the identity provider gave no error
+     */
+    public TokenRejection rejection() {
+        return rejection;
+    }
+
+    /**
+     * @return the failure of an {@link Status#UNAVAILABLE} result, may be null
+     */
+    public Throwable cause() {
+        return cause;
+    }
+
+    public long retryAfterNanos() {
+        return retryAfterNanos;
+    }
+
+    /**
+     * @return the exception reporting the rejection or the unavailability to Elasticsearch, null for a valid
+     * or expired token, or an invalid one without error
+     */
+    public ElasticsearchSecurityException toElasticsearchException() {
+        switch (status) {
+            case INVALID:
+                return rejection != null ? rejection.toElasticsearchException() : null;
+            case UNAVAILABLE:
+                return cause != null ?
+                       OAuthRealmExceptions.authorizationException(cause) :
+                       OAuthRealmExceptions.authorizationException();
+            default:
+                return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "IntrospectionResult{" + status + (tokenInfo != null ? ", " + tokenInfo : "") + "}";
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright 2017 Brice Dutheil
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.arkey.elasticsearch.oauth.realm.tokeninfo;
+
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.xpack.security.authc.RealmConfig;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.elasticsearch.common.xcontent.json.JsonXContent.jsonXContent;
+
+/**
+ * Routes access tokens to the token retriever of their issuer, so a realm can federate several identity
+ * providers, each one with its own token cache and connection pool.
+ *
+ * The issuer of a token is found, from the cheapest to the most expensive :
+ * <ol>
+ * <li>by the {@code issuers.<name>.token-prefix} the token starts with</li>
+ * <li>by the {@code iss} claim of a compact JWT, matched against {@code issuers.<name>.iss}</li>
+ * <li>with {@code issuers-probe.enabled}, by a memo of the issuer that validated the same token before, keyed by
+ * the token digest</li>
+ * <li>with {@code issuers-probe.enabled}, by asking each issuer in name order until one of them knows the token</li>
+ * </ol>
+ * A JWT whose {@code iss} is not configured, or a token that cannot be routed while probing is disabled, is unknown
+ * without any introspection. Probing is disabled by default, as an invalid token then costs one introspection
+ * per issuer.
+ */
+public class IssuerRoutingTokenRetriever implements OAuthTokenRetriever {
+    public static final String ISSUERS_SETTINGS = "issuers";
+    public static final int DEFAULT_MEMO_MAX_SIZE = 100_000;
+    public static final int DEFAULT_MEMO_EXPIRATION_IN_SECONDS = 3600;
+    private final Logger logger;
+    private final Map<String, OAuthTokenRetriever> retrievers;
+    private final Map<String, OAuthTokenRetriever> retrieversByIss;
+    private final List<Map.Entry<String, OAuthTokenRetriever>> retrieversByPrefix;
+    private final Cache<HashCode, OAuthTokenRetriever> issuerMemo;
+    private final boolean probe;
+
+    /**
+     * @param config     the realm configuration, holding the {@code issuers.*} settings
+     * @param retrievers the token retriever of each issuer, by issuer name
+     */
+    public IssuerRoutingTokenRetriever(RealmConfig config,
+                                       Map<String, ? extends OAuthTokenRetriever> retrievers) {
+        this.logger = Objects.requireNonNull(config).logger(IssuerRoutingTokenRetriever.class);
+        if (Objects.requireNonNull(retrievers).isEmpty()) {
+            throw new IllegalArgumentException("no issuer configured for realm [" + config.name() + "]");
+        }
+        this.retrievers = Collections.unmodifiableMap(new TreeMap<>(retrievers));
+
+        Map<String, Settings> issuers = issuers(config.settings());
+        Map<String, OAuthTokenRetriever> byIss = new HashMap<>();
+        List<Map.Entry<String, OAuthTokenRetriever>> byPrefix = new ArrayList<>();
+        this.retrievers.forEach((issuer, retriever) -> {
+            Settings issuerSettings = issuers.getOrDefault(issuer, Settings.EMPTY);
+            String iss = issuerSettings.get("iss");
+            if (iss != null && byIss.put(iss, retriever) != null) {
+                throw new IllegalArgumentException("issuer [" + iss + "] is declared by several issuers of realm [" + config.name() + "]");
+            }
+            String prefix = issuerSettings.get("token-prefix");
+            if (prefix != null && !prefix.isEmpty()) {
+                byPrefix.add(new AbstractMap.SimpleImmutableEntry<>(prefix, retriever));
+            }
+        });
+        // longest prefixes first, so a prefix can be refined by another issuer
+        byPrefix.sort((p1, p2) -> Integer.compare(p2.getKey().length(), p1.getKey().length()));
+        this.retrieversByIss = Collections.unmodifiableMap(byIss);
+        this.retrieversByPrefix = Collections.unmodifiableList(byPrefix);
+
+        this.probe = config.settings().getAsBoolean("issuers-probe.enabled", false);
+        this.issuerMemo = probe ?
+                          CacheBuilder.newBuilder()
+                                      .maximumSize(config.settings().getAsInt("issuers-memo.max-size",
+                                                                              DEFAULT_MEMO_MAX_SIZE))
+                                      .expireAfterAccess(config.settings().getAsInt("issuers-memo.expire-in-seconds",
+                                                                                    DEFAULT_MEMO_EXPIRATION_IN_SECONDS),
+                                                         SECONDS)
+                                      .build() :
+                          null;
+    }
+
+    /**
+     * @param realmSettings the realm settings
+     * @return the settings of each issuer, by issuer name, empty if the realm has a single identity provider
+     */
+    public static Map<String, Settings> issuers(Settings realmSettings) {
+        return realmSettings.getGroups(ISSUERS_SETTINGS);
+    }
+
+    @Override
+    public IntrospectionResult introspect(String accessToken) {
+        for (Map.Entry<String, OAuthTokenRetriever> prefix : retrieversByPrefix) {
+            if (accessToken.startsWith(prefix.getKey())) {
+                return prefix.getValue().introspect(accessToken);
+            }
+        }
+
+        String iss = jwtIssuer(accessToken);
+        if (iss != null) {
+            OAuthTokenRetriever retriever = retrieversByIss.get(iss);
+            if (retriever == null) {
+                logger.debug("Unknown token issuer [{}]", iss);
+                return IntrospectionResult.UNKNOWN_TOKEN;
+            }
+            return retriever.introspect(accessToken);
+        }
+
+        if (!probe) {
+            logger.debug("Token matches neither a token prefix nor a JWT issuer, and issuers probing is disabled");
+            return IntrospectionResult.UNKNOWN_TOKEN;
+        }
+        HashCode digest = Hashing.sha256().hashString(accessToken, UTF_8);
+        OAuthTokenRetriever memoized = issuerMemo.getIfPresent(digest);
+        if (memoized != null) {
+            return memoized.introspect(accessToken);
+        }
+        return probe(accessToken, digest);
+    }
+
+    private IntrospectionResult probe(String accessToken, HashCode digest) {
+        IntrospectionResult outcome = IntrospectionResult.UNKNOWN_TOKEN;
+        for (OAuthTokenRetriever retriever : retrievers.values()) {
+            IntrospectionResult result = retriever.introspect(accessToken);
+            switch (result.status()) {
+                case VALID:
+                case EXPIRED:
+                    issuerMemo.put(digest, retriever);
+                    return result;
+                case UNAVAILABLE:
+                    outcome = result;
+                    break;
+                default:
+                    if (outcome.status() != IntrospectionResult.Status.UNAVAILABLE) {
+                        outcome = result;
+                    }
+                    break;
+            }
+        }
+        return outcome;
+    }
+
+    /**
+     * @param accessToken the access token
+     * @return the {@code iss} claim of a compact JWT, null if the token is not a JWT or has no issuer
+     */
+    static String jwtIssuer(String accessToken) {
+        int firstDot = accessToken.indexOf('.');
+        int secondDot = firstDot < 0 ? -1 : accessToken.indexOf('.', firstDot + 1);
+        if (secondDot < 0 || accessToken.indexOf('.', secondDot + 1) >= 0) {
+            return null;
+        }
+        byte[] payload;
+        try {
+            payload = Base64.getUrlDecoder().decode(accessToken.substring(firstDot + 1, secondDot));
+        } catch (IllegalArgumentException notBase64Url) {
+            return null;
+        }
+        try (XContentParser parser = jsonXContent.createParser(NamedXContentRegistry.EMPTY, payload)) {
+            if (parser.nextToken() != XContentParser.Token.START_OBJECT) {
+                return null;
+            }
+            XContentParser.Token token;
+            while ((token = parser.nextToken()) == XContentParser.Token.FIELD_NAME) {
+                String field = parser.currentName();
+                token = parser.nextToken();
+                if ("iss".equals(field)) {
+                    return token == XContentParser.Token.VALUE_STRING ? parser.text() : null;
+                }
+                parser.skipChildren();
+            }
+            return null;
+        } catch (IOException | RuntimeException notJson) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the approximate number of memoized token issuers
+     */
+    public long memoSize() {
+        return issuerMemo != null ? issuerMemo.size() : 0;
+    }
+}
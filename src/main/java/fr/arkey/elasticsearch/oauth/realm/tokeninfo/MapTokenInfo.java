@@ -19,18 +19,27 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.UncheckedIOException;
 import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 import java.util.function.Function;
 import com.google.common.collect.ImmutableSet;
+import fr.arkey.elasticsearch.oauth.realm.roles.ClaimRoleMapping;
 import fr.arkey.elasticsearch.oauth.realm.support.OAuthRealmExceptions;
 import org.apache.logging.log4j.Logger;
+import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.xcontent.NamedXContentRegistry;
 import org.elasticsearch.xpack.security.authc.RealmConfig;
 
 import static java.time.temporal.ChronoUnit.SECONDS;
+import static java.util.Collections.emptyMap;
+import static java.util.Collections.emptySet;
+import static java.util.Collections.singleton;
+import static java.util.Collections.unmodifiableMap;
 import static java.util.stream.Collectors.joining;
 import static org.elasticsearch.common.xcontent.json.JsonXContent.jsonXContent;
 
@@ -40,6 +49,11 @@ public class MapTokenInfo implements Function<InputStream, TokenInfo> {
     private final String expiresInField;
     private final ChronoUnit expiresInUnit;
     private final String scopeField;
+    private final String rolesClaimField;
+    private final ClaimRoleMapping claimRoleMapping;
+    private final String fullNameField;
+    private final String emailField;
+    private final Map<String, String> metadataClaims;
 
     public MapTokenInfo(RealmConfig config) {
         logger = config.logger(this.getClass());
@@ -49,6 +63,19 @@ public class MapTokenInfo implements Function<InputStream, TokenInfo> {
                                                  .get("token-info.field.expires-in.unit", SECONDS.name())
                                                  .toUpperCase(Locale.getDefault()));
         scopeField = Objects.requireNonNull(config.settings().get("token-info.field.scope"), "missing required setting [token-info.field.scope]");
+        rolesClaimField = config.settings().get("token-info.field.roles-claim");
+        claimRoleMapping = rolesClaimField == null ? ClaimRoleMapping.NONE : claimRoleMapping(config.settings());
+        fullNameField = config.settings().get("token-info.field.full-name");
+        emailField = config.settings().get("token-info.field.email");
+        metadataClaims = config.settings().getByPrefix("token-info.metadata.").getAsMap();
+    }
+
+    private static ClaimRoleMapping claimRoleMapping(Settings settings) {
+        ClaimRoleMapping.Builder builder = new ClaimRoleMapping.Builder();
+        settings.getGroups("token-info.claim-roles").forEach((rule, ruleSettings) -> builder.add(
+                Objects.requireNonNull(ruleSettings.get("match"), "missing required setting [token-info.claim-roles." + rule + ".match]"),
+                Objects.requireNonNull(ruleSettings.get("role"), "missing required setting [token-info.claim-roles." + rule + ".role]")));
+        return builder.build();
     }
 
     @SuppressWarnings("unchecked")
@@ -56,21 +83,71 @@ public class MapTokenInfo implements Function<InputStream, TokenInfo> {
     public TokenInfo apply(InputStream inputStream) {
         try {
             Map<String, Object> jsonMap = jsonXContent.createParser(NamedXContentRegistry.EMPTY, inputStream).map();
-            logger.debug("User authenticated via access token, token info : {}", jsonMap);
+            logger.trace("User authenticated via access token, token info : {}", jsonMap);
 
-            return new TokenInfo(
-                    extractFromMap(jsonMap, userIdField, String.class),
-                    extractFromMap(jsonMap, expiresInField, Integer.class),
-                    expiresInUnit,
+            String userId = extractFromMap(jsonMap, userIdField, String.class);
+            logger.debug("User [{}] authenticated via access token", userId);
+            return new TokenInfo.Builder(userId)
+                    .expiresIn(extractFromMap(jsonMap, expiresInField, Integer.class), expiresInUnit)
                     // XXX can I trust the payload
-                    ImmutableSet.copyOf(extractFromMap(jsonMap, scopeField, List.class))
-            );
+                    .scopes(ImmutableSet.copyOf(extractFromMap(jsonMap, scopeField, List.class)))
+                    .claimRoles(claimRoles(jsonMap))
+                    .fullName(optionalClaim(jsonMap, fullNameField))
+                    .email(optionalClaim(jsonMap, emailField))
+                    .metadata(metadata(jsonMap))
+                    .build();
         } catch (IOException ioe) {
             logger.error("Could not authenticate user, could be a connection issue", ioe);
             throw new UncheckedIOException(ioe);
         }
     }
 
+    private Set<String> claimRoles(Map<String, Object> jsonMap) {
+        if (claimRoleMapping.isEmpty()) {
+            return emptySet();
+        }
+        Object claim = jsonMap.get(rolesClaimField);
+        if (claim instanceof String) {
+            return claimRoleMapping.rolesFor(singleton((String) claim));
+        }
+        if (claim instanceof List) {
+            List<String> claimValues = new ArrayList<>();
+            for (Object claimValue : (List<?>) claim) {
+                if (claimValue instanceof String) {
+                    claimValues.add((String) claimValue);
+                }
+            }
+            return claimRoleMapping.rolesFor(claimValues);
+        }
+        return emptySet();
+    }
+
+    private static String optionalClaim(Map<String, Object> jsonMap, String field) {
+        if (field == null) {
+            return null;
+        }
+        Object value = jsonMap.get(field);
+        return value instanceof String ? (String) value : null;
+    }
+
+    /**
+     * @return the user metadata, built once per token so that templates like {@code {{_user.metadata.*}}}
+     * don't need any per request work
+     */
+    private Map<String, Object> metadata(Map<String, Object> jsonMap) {
+        if (metadataClaims.isEmpty()) {
+            return emptyMap();
+        }
+        Map<String, Object> metadata = new HashMap<>(metadataClaims.size());
+        metadataClaims.forEach((key, claim) -> {
+            Object value = jsonMap.get(claim);
+            if (value != null) {
+                metadata.put(key, value);
+            }
+        });
+        return unmodifiableMap(metadata);
+    }
+
     private <T> T extractFromMap(Map<String, Object> jsonMap, String field, Class<T> type) {
         Object value = jsonMap.get(field);
         if (type.isInstance(value)) {
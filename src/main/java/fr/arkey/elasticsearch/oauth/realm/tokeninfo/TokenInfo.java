@@ -18,16 +18,29 @@ package fr.arkey.elasticsearch.oauth.realm.tokeninfo;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.time.temporal.ChronoUnit;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 
 import static java.time.LocalDateTime.now;
+import static java.util.Collections.emptyMap;
+import static java.util.Collections.emptySet;
 
 public class TokenInfo {
     public String userId;
     public LocalDateTime expiresAt;
     private ZoneId zone;
     public Set<String> scopes;
+    /**
+     * Roles granted by the claim role mapping, resolved once when the token info is mapped.
+     */
+    public Set<String> claimRoles;
+    /**
+     * User profile claims, mapped once when the token info is mapped.
+     */
+    public String fullName;
+    public String email;
+    public Map<String, Object> metadata;
 
     public TokenInfo(String userId, Integer expiresIn, ChronoUnit expiresInUnit, Set<String> scopes) {
         this(userId,
@@ -45,10 +58,19 @@ public class TokenInfo {
     }
 
     public TokenInfo(String userId, LocalDateTime expiresAt, ZoneId zone, Set<String> scopes) {
+        this(userId, expiresAt, zone, scopes, emptySet(), null, null, emptyMap());
+    }
+
+    private TokenInfo(String userId, LocalDateTime expiresAt, ZoneId zone, Set<String> scopes, Set<String> claimRoles,
+                      String fullName, String email, Map<String, Object> metadata) {
         this.userId = userId;
         this.expiresAt = expiresAt;
         this.zone = zone;
         this.scopes = scopes;
+        this.claimRoles = claimRoles;
+        this.fullName = fullName;
+        this.email = email;
+        this.metadata = metadata;
     }
 
     public final boolean isExpired() {
@@ -63,11 +85,93 @@ public class TokenInfo {
         return Objects.equals(userId, tokenInfo.userId) &&
                Objects.equals(expiresAt, tokenInfo.expiresAt) &&
                Objects.equals(zone, tokenInfo.zone) &&
-               Objects.equals(scopes, tokenInfo.scopes);
+               Objects.equals(scopes, tokenInfo.scopes) &&
+               Objects.equals(claimRoles, tokenInfo.claimRoles) &&
+               Objects.equals(fullName, tokenInfo.fullName) &&
+               Objects.equals(email, tokenInfo.email) &&
+               Objects.equals(metadata, tokenInfo.metadata);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(userId, expiresAt, zone, scopes);
+        return Objects.hash(userId, expiresAt, zone, scopes, claimRoles, fullName, email, metadata);
+    }
+
+    /**
+     * Builds a token info having claim roles or user profile claims.
+     */
+    public static final class Builder {
+        private final String userId;
+        private ZoneId zone = ZoneId.systemDefault();
+        private Integer expiresIn;
+        private ChronoUnit expiresInUnit;
+        private LocalDateTime expiresAt;
+        private Set<String> scopes = emptySet();
+        private Set<String> claimRoles = emptySet();
+        private String fullName;
+        private String email;
+        private Map<String, Object> metadata = emptyMap();
+
+        public Builder(String userId) {
+            this.userId = userId;
+        }
+
+        /**
+         * @param zone the zone of the expiration date, defaults to the system zone
+         * @return this builder
+         */
+        public Builder zone(ZoneId zone) {
+            this.zone = Objects.requireNonNull(zone);
+            return this;
+        }
+
+        public Builder expiresIn(Integer expiresIn, ChronoUnit expiresInUnit) {
+            this.expiresIn = expiresIn;
+            this.expiresInUnit = expiresInUnit;
+            this.expiresAt = null;
+            return this;
+        }
+
+        public Builder expiresAt(LocalDateTime expiresAt) {
+            this.expiresAt = expiresAt;
+            this.expiresIn = null;
+            return this;
+        }
+
+        public Builder scopes(Set<String> scopes) {
+            this.scopes = scopes;
+            return this;
+        }
+
+        public Builder claimRoles(Set<String> claimRoles) {
+            this.claimRoles = claimRoles;
+            return this;
+        }
+
+        public Builder fullName(String fullName) {
+            this.fullName = fullName;
+            return this;
+        }
+
+        public Builder email(String email) {
+            this.email = email;
+            return this;
+        }
+
+        public Builder metadata(Map<String, Object> metadata) {
+            this.metadata = metadata;
+            return this;
+        }
+
+        public TokenInfo build() {
+            return new TokenInfo(userId,
+                                 expiresIn != null ? LocalDateTime.now(zone).withNano(0).plus(expiresIn, expiresInUnit) : expiresAt,
+                                 zone,
+                                 scopes,
+                                 claimRoles,
+                                 fullName,
+                                 email,
+                                 metadata);
+        }
     }
 }
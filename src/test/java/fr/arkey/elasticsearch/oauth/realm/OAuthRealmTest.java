@@ -15,10 +15,12 @@
  */
 package fr.arkey.elasticsearch.oauth.realm;
 
-import java.util.Optional;
 import fr.arkey.elasticsearch.oauth.realm.roles.RefreshableOAuthRoleMapper;
+import fr.arkey.elasticsearch.oauth.realm.support.OAuthRealmExceptions;
+import fr.arkey.elasticsearch.oauth.realm.tokeninfo.IntrospectionResult;
 import fr.arkey.elasticsearch.oauth.realm.tokeninfo.OAuthTokenRetriever;
 import fr.arkey.elasticsearch.oauth.realm.tokeninfo.TokenInfo;
+import org.elasticsearch.ElasticsearchSecurityException;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.util.concurrent.ThreadContext;
 import org.elasticsearch.xpack.security.authc.RealmConfig;
@@ -34,8 +36,17 @@ import org.mockito.junit.MockitoRule;
 
 import static java.time.temporal.ChronoUnit.MINUTES;
 import static java.util.Collections.emptySet;
+import static java.util.Collections.singleton;
+import static java.util.Collections.singletonMap;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.catchThrowable;
+import static org.assertj.core.api.Assertions.entry;
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
 
 public class OAuthRealmTest {
     @Rule
@@ -50,12 +61,87 @@ public class OAuthRealmTest {
 
     @Test
     public void should_try_to_authenticate_using_token_info_retriever_and_role_mapper() {
-        given(tokenInfoRetriever.getTokenInfo("the_access_token_to_authenticate")).willReturn(Optional.of(new TokenInfo("bob", 12, MINUTES, emptySet())));
+        given(tokenInfoRetriever.introspect("the_access_token_to_authenticate")).willReturn(IntrospectionResult.valid(new TokenInfo("bob", 12, MINUTES, emptySet())));
         given(oAuthRoleMapper.rolesFor("bob", emptySet())).willReturn(new String[]{"role1", "role2"});
 
         assertThat(oAuthRealm.authenticate(new AccessToken("Bearer the_access_token_to_authenticate"))).isEqualTo(new User("bob", "role1", "role2"));
     }
 
+    @Test
+    public void should_add_roles_granted_by_token_info_claims() {
+        given(tokenInfoRetriever.introspect("the_access_token_to_authenticate")).willReturn(IntrospectionResult.valid(new TokenInfo.Builder("bob").expiresIn(12, MINUTES).claimRoles(singleton("team_reader")).build()));
+        given(oAuthRoleMapper.rolesFor("bob", emptySet())).willReturn(new String[]{"role1"});
+
+        assertThat(oAuthRealm.authenticate(new AccessToken("Bearer the_access_token_to_authenticate"))).isEqualTo(new User("bob", "role1", "team_reader"));
+    }
+
+    @Test
+    public void should_build_user_with_profile_once_per_token() {
+        TokenInfo tokenInfo = new TokenInfo.Builder("bob")
+                .expiresIn(12, MINUTES)
+                .fullName("Bob Smith")
+                .email("bob@example.com")
+                .metadata(singletonMap("department", "sales"))
+                .build();
+        given(tokenInfoRetriever.introspect("the_access_token_to_authenticate")).willReturn(IntrospectionResult.valid(tokenInfo));
+        given(oAuthRoleMapper.rolesFor("bob", emptySet())).willReturn(new String[]{"role1"});
+
+        User user = oAuthRealm.authenticate(new AccessToken("Bearer the_access_token_to_authenticate"));
+
+        assertThat(user.fullName()).isEqualTo("Bob Smith");
+        assertThat(user.email()).isEqualTo("bob@example.com");
+        assertThat(user.metadata()).containsOnly(entry("department", "sales"));
+        assertThat(oAuthRealm.authenticate(new AccessToken("Bearer the_access_token_to_authenticate"))).isSameAs(user);
+    }
+
+    @Test
+    public void should_rebuild_user_when_mapped_roles_change() {
+        given(tokenInfoRetriever.introspect("the_access_token_to_authenticate")).willReturn(IntrospectionResult.valid(new TokenInfo("bob", 12, MINUTES, emptySet())));
+        given(oAuthRoleMapper.rolesFor("bob", emptySet())).willReturn(new String[]{"role1"}, new String[]{"role1"}, new String[]{"role2"});
+
+        User user = oAuthRealm.authenticate(new AccessToken("Bearer the_access_token_to_authenticate"));
+
+        assertThat(oAuthRealm.authenticate(new AccessToken("Bearer the_access_token_to_authenticate"))).isSameAs(user);
+        assertThat(oAuthRealm.authenticate(new AccessToken("Bearer the_access_token_to_authenticate"))).isEqualTo(new User("bob", "role2"));
+    }
+
+    @Test
+    public void should_keep_users_of_a_shared_token_info_per_realm() {
+        RefreshableOAuthRoleMapper otherRoleMapper = mock(RefreshableOAuthRoleMapper.class);
+        OAuthRealm otherRealm = new OAuthRealm(realmConfig(Settings.builder()),
+                                               tokenInfoRetriever,
+                                               otherRoleMapper);
+        given(tokenInfoRetriever.introspect("the_access_token_to_authenticate")).willReturn(IntrospectionResult.valid(new TokenInfo("bob", 12, MINUTES, emptySet())));
+        given(oAuthRoleMapper.rolesFor("bob", emptySet())).willReturn(new String[]{"role1"});
+        given(otherRoleMapper.rolesFor("bob", emptySet())).willReturn(new String[]{"role2"});
+
+        User user = oAuthRealm.authenticate(new AccessToken("Bearer the_access_token_to_authenticate"));
+        User otherUser = otherRealm.authenticate(new AccessToken("Bearer the_access_token_to_authenticate"));
+
+        assertThat(user).isEqualTo(new User("bob", "role1"));
+        assertThat(otherUser).isEqualTo(new User("bob", "role2"));
+        assertThat(oAuthRealm.authenticate(new AccessToken("Bearer the_access_token_to_authenticate"))).isSameAs(user);
+        assertThat(otherRealm.authenticate(new AccessToken("Bearer the_access_token_to_authenticate"))).isSameAs(otherUser);
+    }
+
+    @Test
+    public void should_turn_idp_rejection_into_authentication_exception() {
+        given(tokenInfoRetriever.introspect("the_access_token_to_authenticate")).willReturn(IntrospectionResult.invalid(OAuthRealmExceptions.tokenRejected("error=Token has expired")));
+
+        Throwable thrown = catchThrowable(() -> oAuthRealm.authenticate(new AccessToken("Bearer the_access_token_to_authenticate")));
+
+        assertThat(thrown).isInstanceOf(ElasticsearchSecurityException.class);
+        assertThat(((ElasticsearchSecurityException) thrown).getHeader("WWW-Authenticate")).containsExactly("Bearer realm=\"security\" charset=\"UTF-8\" delegateError=\"error=Token has expired\"");
+    }
+
+    @Test
+    public void should_reject_malformed_token_without_retrieving_token_info() {
+        assertThat(oAuthRealm.authenticate(new AccessToken("Bearer <script>alert(1)</script>"))).isNull();
+
+        verifyZeroInteractions(tokenInfoRetriever);
+        assertThat(oAuthRealm.tokenValidationStats().rejected()).isEqualTo(1);
+    }
+
     @Test
     public void should_return_null_for_rest_request_if_no_bearer_authorization_header() {
         assertThat(oAuthRealm.token(emptyThreadContext())).isNull();
@@ -74,6 +160,38 @@ public class OAuthRealmTest {
         assertThat(oAuthRealm.userLookupSupported()).isFalse();
     }
 
+    @Test
+    public void should_lookup_recently_authenticated_users_when_enabled() {
+        OAuthRealm realm = new OAuthRealm(realmConfig(Settings.builder().put("user-lookup.enabled", true)),
+                                          tokenInfoRetriever,
+                                          oAuthRoleMapper);
+        given(tokenInfoRetriever.introspect("the_access_token_to_authenticate")).willReturn(IntrospectionResult.valid(new TokenInfo.Builder("bob").expiresIn(12, MINUTES).claimRoles(singleton("team_reader")).build()));
+        given(oAuthRoleMapper.rolesFor("bob", emptySet())).willReturn(new String[]{"role1"}, new String[]{"role2"});
+
+        assertThat(realm.userLookupSupported()).isTrue();
+        assertThat(realm.lookupUser("bob")).isNull();
+
+        realm.authenticate(new AccessToken("Bearer the_access_token_to_authenticate"));
+
+        assertThat(realm.lookupUser("bob")).isEqualTo(new User("bob", "role2", "team_reader"));
+        assertThat(realm.lookupUser("alice")).isNull();
+        assertThat(realm.lookupSize()).isEqualTo(1);
+        verify(tokenInfoRetriever, times(1)).introspect(any());
+    }
+
+    @Test
+    public void should_not_lookup_users_whose_token_info_expired() {
+        OAuthRealm realm = new OAuthRealm(realmConfig(Settings.builder().put("user-lookup.enabled", true)),
+                                          tokenInfoRetriever,
+                                          oAuthRoleMapper);
+        given(tokenInfoRetriever.introspect("the_access_token_to_authenticate")).willReturn(IntrospectionResult.valid(new TokenInfo("bob", -1, MINUTES, emptySet())));
+        given(oAuthRoleMapper.rolesFor("bob", emptySet())).willReturn(new String[]{"role1"});
+
+        realm.authenticate(new AccessToken("Bearer the_access_token_to_authenticate"));
+
+        assertThat(realm.lookupUser("bob")).isNull();
+    }
+
     @Test
     public void should_support_access_token_only() {
         assertThat(oAuthRealm.supports(new AccessToken("Bearer an_access_token"))).isTrue();
@@ -83,20 +201,23 @@ public class OAuthRealmTest {
     @Before
     public void initialize_realm() {
         oAuthRealm = new OAuthRealm(
-                new RealmConfig("oauth",
-                                Settings.builder()
-                                        .put("type", OAuthRealm.TYPE)
-                                        .build(),
-                                Settings.builder()
-                                        .put("path.home", "ignored")
-                                        .build(),
-                                new ThreadContext(Settings.builder()
-                                                          .put("type", OAuthRealm.TYPE)
-                                                          .build())),
+                realmConfig(Settings.builder()),
                 tokenInfoRetriever,
                 oAuthRoleMapper);
     }
 
+    private RealmConfig realmConfig(Settings.Builder settings) {
+        return new RealmConfig("oauth",
+                               settings.put("type", OAuthRealm.TYPE)
+                                       .build(),
+                               Settings.builder()
+                                       .put("path.home", "ignored")
+                                       .build(),
+                               new ThreadContext(Settings.builder()
+                                                         .put("type", OAuthRealm.TYPE)
+                                                         .build()));
+    }
+
     private ThreadContext threadContextWithHeader(String header, String value) {
         ThreadContext threadContext = new ThreadContext(Settings.EMPTY);
         threadContext.putHeader(header, value);
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2017 Brice Dutheil
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.arkey.elasticsearch.oauth.realm;
+
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.ThreadContext;
+import org.elasticsearch.xpack.security.authc.RealmConfig;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SharedIdpRetrieversTest {
+
+    @Test
+    public void should_normalize_token_info_url_in_key() {
+        assertThat(SharedIdpRetrievers.keyOf(Settings.builder()
+                                                     .put("token-info.url", "https://IDP.example.com:443/token-info")
+                                                     .build()))
+                .isEqualTo(SharedIdpRetrievers.keyOf(Settings.builder()
+                                                             .put("token-info.url", "https://idp.example.com/token-info")
+                                                             .build()));
+    }
+
+    @Test
+    public void should_ignore_settings_not_shaping_introspection_in_key() {
+        assertThat(SharedIdpRetrievers.keyOf(Settings.builder()
+                                                     .put("token-info.url", "http://localhost:8080/token-info")
+                                                     .put("role_mapping.file", "role_mapping_1.yml")
+                                                     .put("order", 1)
+                                                     .build()))
+                .isEqualTo(SharedIdpRetrievers.keyOf(Settings.builder()
+                                                             .put("token-info.url", "http://localhost:8080/token-info")
+                                                             .put("role_mapping.file", "role_mapping_2.yml")
+                                                             .put("order", 2)
+                                                             .build()));
+    }
+
+    @Test
+    public void should_distinguish_token_mapping_and_client_settings_in_key() {
+        String key = SharedIdpRetrievers.keyOf(Settings.builder()
+                                                       .put("token-info.url", "http://localhost:8080/token-info")
+                                                       .put("token-info.field.user", "uid")
+                                                       .build());
+
+        assertThat(SharedIdpRetrievers.keyOf(Settings.builder()
+                                                     .put("token-info.url", "http://localhost:8080/token-info")
+                                                     .put("token-info.field.user", "sub")
+                                                     .build()))
+                .isNotEqualTo(key);
+        assertThat(SharedIdpRetrievers.keyOf(Settings.builder()
+                                                     .put("token-info.url", "http://localhost:8080/token-info")
+                                                     .put("token-info.field.user", "uid")
+                                                     .put("idp.read-timeout-in-millis", 500)
+                                                     .build()))
+                .isNotEqualTo(key);
+    }
+
+    @Test
+    public void should_share_retrievers_until_last_realm_releases_them() {
+        SharedIdpRetrievers sharedIdpRetrievers = new SharedIdpRetrievers();
+
+        SharedIdpRetrievers.Idp first = sharedIdpRetrievers.acquire(realmConfig("oauth1", "role_mapping_1.yml"));
+        SharedIdpRetrievers.Idp second = sharedIdpRetrievers.acquire(realmConfig("oauth2", "role_mapping_2.yml"));
+
+        assertThat(second).isSameAs(first);
+        assertThat(second.cachingOAuthTokenRetriever()).isSameAs(first.cachingOAuthTokenRetriever());
+        assertThat(sharedIdpRetrievers.size()).isEqualTo(1);
+
+        sharedIdpRetrievers.release(first);
+        assertThat(sharedIdpRetrievers.size()).isEqualTo(1);
+        sharedIdpRetrievers.release(second);
+        assertThat(sharedIdpRetrievers.size()).isZero();
+
+        assertThat(sharedIdpRetrievers.acquire(realmConfig("oauth1", "role_mapping_1.yml"))).isNotSameAs(first);
+    }
+
+    private static RealmConfig realmConfig(String name, String roleMappingFile) {
+        return new RealmConfig(name,
+                               Settings.builder()
+                                       .put("type", OAuthRealm.TYPE)
+                                       .put("token-info.url", "http://localhost:8080/token-info")
+                                       .put("role_mapping.file", roleMappingFile)
+                                       .build(),
+                               Settings.builder()
+                                       .put("path.home", "ignored")
+                                       .build(),
+                               new ThreadContext(Settings.EMPTY));
+    }
+}
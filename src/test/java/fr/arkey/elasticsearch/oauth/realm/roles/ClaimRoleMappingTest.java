@@ -0,0 +1,49 @@
+/*
+ * Copyright 2017 Brice Dutheil
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.arkey.elasticsearch.oauth.realm.roles;
+
+import java.util.Arrays;
+import org.junit.Test;
+
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonList;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ClaimRoleMappingTest {
+
+    @Test
+    public void should_grant_roles_from_claim_values() {
+        ClaimRoleMapping claimRoleMapping = new ClaimRoleMapping.Builder()
+                .add("admins", "admin")
+                .add("admins", "user")
+                .add("team-*", "{{value}}_reader")
+                .add("/project-[0-9]+/", "p_{{value}}_{{value}}")
+                .build();
+
+        assertThat(claimRoleMapping.rolesFor(singletonList("admins"))).containsExactly("admin", "user");
+        assertThat(claimRoleMapping.rolesFor(Arrays.asList("team-search", "team-ingest", "unknown")))
+                .containsExactly("team-search_reader", "team-ingest_reader");
+        assertThat(claimRoleMapping.rolesFor(singletonList("project-42"))).containsExactly("p_project-42_project-42");
+        assertThat(claimRoleMapping.rolesFor(singletonList("project-x"))).isEmpty();
+        assertThat(claimRoleMapping.rolesFor(emptyList())).isEmpty();
+    }
+
+    @Test
+    public void should_not_grant_anything_without_rules() {
+        assertThat(ClaimRoleMapping.NONE.isEmpty()).isTrue();
+        assertThat(ClaimRoleMapping.NONE.rolesFor(singletonList("admins"))).isEmpty();
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2017 Brice Dutheil
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.arkey.elasticsearch.oauth.realm.roles;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import org.elasticsearch.common.hash.MessageDigests;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static java.util.Collections.emptySet;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CompiledRoleMappingTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void should_resolve_roles_from_compiled_role_mapping() throws IOException {
+        Path source = write("oauth_role_mapping.yml",
+                            "user:\n" +
+                            "  - 123\n" +
+                            "  - bob\n" +
+                            "  - \"\u00e9lodie\"\n" +
+                            "  - \"\u7528\u6237\"\n" +
+                            "admin:\n" +
+                            "  - bob\n" +
+                            "  - \"*@ops.example.com\"\n" +
+                            "logs_reader:\n" +
+                            "  - \"scope:read-logs\"\n" +
+                            "unused: []\n");
+        Path target = folder.getRoot().toPath().resolve("oauth_role_mapping.bin");
+
+        RoleMappingCompiler.compile(source, target, false);
+        RoleMapping roleMapping = CompiledRoleMapping.load(target);
+
+        assertThat(CompiledRoleMapping.isCompiled(target)).isTrue();
+        assertThat(CompiledRoleMapping.isCompiled(source)).isFalse();
+        assertThat(CompiledRoleMapping.sourceDigest(target)).isEqualTo(MessageDigests.sha256().digest(Files.readAllBytes(source)));
+        assertThat(roleMapping.mappedUsers()).isEqualTo(4);
+        assertThat(roleMapping.rolesFor("123", emptySet())).containsExactly("user");
+        assertThat(roleMapping.rolesFor("bob", emptySet())).containsExactlyInAnyOrder("user", "admin");
+        assertThat(roleMapping.rolesFor("\u00e9lodie", emptySet())).containsExactly("user");
+        assertThat(roleMapping.rolesFor("\u7528\u6237", emptySet())).containsExactly("user");
+        assertThat(roleMapping.rolesFor("alice@ops.example.com", emptySet())).containsExactly("admin");
+        assertThat(roleMapping.rolesFor("12", scopes("read-logs"))).containsExactly("logs_reader");
+        assertThat(roleMapping.rolesFor("unknown", emptySet())).isEmpty();
+    }
+
+    @Test
+    public void should_lookup_many_user_ids_in_compiled_role_mapping() throws IOException {
+        RoleMapping.Builder builder = new RoleMapping.Builder();
+        for (int i = 0; i < 100_000; i++) {
+            builder.add("role-" + (i % 7), "user-" + i);
+        }
+        Path target = folder.getRoot().toPath().resolve("oauth_role_mapping.bin");
+
+        CompiledRoleMapping.write(builder, new byte[CompiledRoleMapping.DIGEST_LENGTH], target);
+        RoleMapping roleMapping = CompiledRoleMapping.load(target);
+
+        assertThat(roleMapping.mappedUsers()).isEqualTo(100_000);
+        assertThat(roleMapping.rolesFor("user-0", emptySet())).containsExactly("role-0");
+        assertThat(roleMapping.rolesFor("user-99999", emptySet())).containsExactly("role-" + (99999 % 7));
+        assertThat(roleMapping.rolesFor("user-100000", emptySet())).isEmpty();
+        assertThat(roleMapping.usersWithChangedRoles(builder.build())).isEmpty();
+    }
+
+    private Path write(String fileName, String content) throws IOException {
+        return Files.write(folder.getRoot().toPath().resolve(fileName), content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private Set<String> scopes(String... scopes) {
+        return new HashSet<>(Arrays.asList(scopes));
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2017 Brice Dutheil
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.arkey.elasticsearch.oauth.realm.roles;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import org.apache.logging.log4j.LogManager;
+import org.elasticsearch.common.unit.TimeValue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class NativeFileWatcherTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Semaphore changes = new Semaphore(0);
+    private Path watchedFile;
+    private NativeFileWatcher watcher;
+
+    @Test
+    public void should_notify_once_for_a_burst_of_writes() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            write(watchedFile, "user:\n  - user" + i);
+        }
+
+        assertThat(changes.tryAcquire(10, TimeUnit.SECONDS)).isTrue();
+        assertThat(changes.tryAcquire(1, TimeUnit.SECONDS)).isFalse();
+    }
+
+    @Test
+    public void should_ignore_other_files_of_the_directory() throws Exception {
+        write(folder.getRoot().toPath().resolve("other.yml"), "whatever");
+
+        assertThat(changes.tryAcquire(1, TimeUnit.SECONDS)).isFalse();
+    }
+
+    @Before
+    public void start_watcher() throws IOException {
+        watchedFile = write(folder.getRoot().toPath().resolve("oauth_role_mapping.yml"), "user:\n  - bob");
+        watcher = new NativeFileWatcher(watchedFile,
+                                        TimeValue.timeValueMillis(300),
+                                        changes::release,
+                                        LogManager.getLogger(NativeFileWatcherTest.class));
+        watcher.start();
+    }
+
+    @After
+    public void stop_watcher() throws IOException {
+        watcher.close();
+    }
+
+    private static Path write(Path file, String content) throws IOException {
+        return Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+    }
+}
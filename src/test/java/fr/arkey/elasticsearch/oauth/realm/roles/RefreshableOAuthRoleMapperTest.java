@@ -17,8 +17,11 @@ package fr.arkey.elasticsearch.oauth.realm.roles;
 
 import java.io.IOException;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
 import java.util.Collections;
 import java.util.Set;
+import java.util.function.Consumer;
 import fr.arkey.elasticsearch.oauth.realm.OAuthRealm;
 import fr.arkey.elasticsearch.oauth.tools.TestResources;
 import org.elasticsearch.common.settings.Settings;
@@ -41,6 +44,7 @@ import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
 import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 
 public class RefreshableOAuthRoleMapperTest {
@@ -54,7 +58,7 @@ public class RefreshableOAuthRoleMapperTest {
     @Mock
     private ResourceWatcherService resourceWatcherService;
     @Mock
-    private Runnable onResourceRefresh;
+    private Consumer<RoleMappingChange> onResourceRefresh;
 
 
     @Test
@@ -88,6 +92,112 @@ public class RefreshableOAuthRoleMapperTest {
         assertThat(mapper.rolesFor("user1", scopes())).contains("only-role");
     }
 
+    @Test
+    public void skip_reload_when_role_mapping_content_did_not_change() throws IOException {
+        // initialize watcher
+        ArgumentCaptor<ResourceWatcher> resourceWatcher = ArgumentCaptor.forClass(ResourceWatcher.class);
+        verify(resourceWatcherService).add(resourceWatcher.capture(), any(Frequency.class));
+        resourceWatcher.getValue().checkAndNotify();
+
+        // touch file
+        Path roleMappingFile = home.getRoot().toPath().resolve("oauth_role_mapping.yml");
+        Files.setLastModifiedTime(roleMappingFile,
+                                  FileTime.fromMillis(Files.getLastModifiedTime(roleMappingFile).toMillis() + 10_000));
+
+        // manually tell resourceWatcher that file changed
+        resourceWatcher.getValue().checkAndNotify();
+
+        assertThat(mapper.rolesFor("321", scopes())).contains("user", "admin");
+        verify(onResourceRefresh, never()).accept(any());
+    }
+
+    @Test
+    public void notify_only_users_whose_roles_changed() throws IOException {
+        // initialize watcher
+        ArgumentCaptor<ResourceWatcher> resourceWatcher = ArgumentCaptor.forClass(ResourceWatcher.class);
+        verify(resourceWatcherService).add(resourceWatcher.capture(), any(Frequency.class));
+        resourceWatcher.getValue().checkAndNotify();
+
+        // change file, alice is now an admin
+        Files.write(home.getRoot().toPath().resolve("oauth_role_mapping.yml"),
+                    ("user:\n" +
+                     "  - 123\n" +
+                     "  - 321\n" +
+                     "  - 39e8732d-8de4-4eb0-bcfa-e7e429710306\n" +
+                     "  - bob\n" +
+                     "  - alice\n" +
+                     "admin:\n" +
+                     "  - 789\n" +
+                     "  - 321\n" +
+                     "  - 39e8732d-8de4-4eb0-bcfa-e7e429710306\n" +
+                     "  - alice\n" +
+                     "power_user:\n" +
+                     "  - bob").getBytes("UTF-8"),
+                    TRUNCATE_EXISTING);
+
+        // manually tell resourceWatcher that file changed
+        resourceWatcher.getValue().checkAndNotify();
+
+        ArgumentCaptor<RoleMappingChange> change = ArgumentCaptor.forClass(RoleMappingChange.class);
+        verify(onResourceRefresh).accept(change.capture());
+        assertThat(change.getValue().changedUsers()).isEqualTo(1);
+        assertThat(change.getValue().affects("alice", scopes())).isTrue();
+        assertThat(change.getValue().affects("bob", scopes())).isFalse();
+    }
+
+    @Test
+    public void can_grant_roles_to_scopes() throws IOException {
+        // initialize watcher
+        ArgumentCaptor<ResourceWatcher> resourceWatcher = ArgumentCaptor.forClass(ResourceWatcher.class);
+        verify(resourceWatcherService).add(resourceWatcher.capture(), any(Frequency.class));
+        resourceWatcher.getValue().checkAndNotify();
+
+        // change file
+        Files.write(home.getRoot().toPath().resolve("oauth_role_mapping.yml"),
+                    ("user:\n" +
+                     "  - user1\n" +
+                     "logs_reader:\n" +
+                     "  - \"scope:read-logs\"").getBytes("UTF-8"),
+                    TRUNCATE_EXISTING);
+
+        // manually tell resourceWatcher that file changed
+        resourceWatcher.getValue().checkAndNotify();
+
+        assertThat(mapper.rolesFor("user1", scopes())).containsExactly("user");
+        assertThat(mapper.rolesFor("user1", Collections.singleton("read-logs"))).containsExactlyInAnyOrder("user", "logs_reader");
+        assertThat(mapper.rolesFor("user2", Collections.singleton("read-logs"))).containsExactly("logs_reader");
+    }
+
+    @Test
+    public void can_grant_roles_to_groups_and_include_roles() throws IOException {
+        // initialize watcher
+        ArgumentCaptor<ResourceWatcher> resourceWatcher = ArgumentCaptor.forClass(ResourceWatcher.class);
+        verify(resourceWatcherService).add(resourceWatcher.capture(), any(Frequency.class));
+        resourceWatcher.getValue().checkAndNotify();
+
+        // change file
+        Files.write(home.getRoot().toPath().resolve("oauth_role_mapping.yml"),
+                    ("_groups:\n" +
+                     "  ops:\n" +
+                     "    - alice\n" +
+                     "    - bob\n" +
+                     "_roles:\n" +
+                     "  admin:\n" +
+                     "    - user\n" +
+                     "admin:\n" +
+                     "  - \"group:ops\"\n" +
+                     "user:\n" +
+                     "  - carol").getBytes("UTF-8"),
+                    TRUNCATE_EXISTING);
+
+        // manually tell resourceWatcher that file changed
+        resourceWatcher.getValue().checkAndNotify();
+
+        assertThat(mapper.rolesFor("alice", scopes())).containsExactlyInAnyOrder("admin", "user");
+        assertThat(mapper.rolesFor("bob", scopes())).containsExactlyInAnyOrder("admin", "user");
+        assertThat(mapper.rolesFor("carol", scopes())).containsExactly("user");
+    }
+
     @Test
     public void reload_empty_role_user_mapping_if_new_file_erroneous() throws IOException {
         // initialize watcher
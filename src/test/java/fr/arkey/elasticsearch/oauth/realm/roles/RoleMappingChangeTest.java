@@ -0,0 +1,63 @@
+/*
+ * Copyright 2017 Brice Dutheil
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.arkey.elasticsearch.oauth.realm.roles;
+
+import java.util.Arrays;
+import org.junit.Test;
+
+import static java.util.Collections.emptySet;
+import static java.util.Collections.singleton;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class RoleMappingChangeTest {
+
+    @Test
+    public void should_be_empty_when_mappings_are_equivalent() {
+        RoleMappingChange change = RoleMappingChange.between(
+                new RoleMapping.Builder().addAll("user", Arrays.asList("bob", "alice", "svc-*")).add("admin", "bob").build(),
+                new RoleMapping.Builder().add("admin", "bob").addAll("user", Arrays.asList("svc-*", "alice", "bob")).build());
+
+        assertThat(change.isEmpty()).isTrue();
+        assertThat(change.affects("bob", emptySet())).isFalse();
+    }
+
+    @Test
+    public void should_identify_users_whose_roles_changed() {
+        RoleMappingChange change = RoleMappingChange.between(
+                new RoleMapping.Builder().addAll("user", Arrays.asList("bob", "alice", "carol")).build(),
+                new RoleMapping.Builder().addAll("user", Arrays.asList("bob", "alice", "dave")).add("admin", "alice").build());
+
+        assertThat(change.changedUsers()).isEqualTo(3);
+        assertThat(change.rulesChanged()).isFalse();
+        assertThat(change.affects("alice", emptySet())).isTrue();
+        assertThat(change.affects("carol", emptySet())).isTrue();
+        assertThat(change.affects("dave", emptySet())).isTrue();
+        assertThat(change.affects("bob", emptySet())).isFalse();
+    }
+
+    @Test
+    public void should_resolve_affected_users_when_rules_changed() {
+        RoleMappingChange change = RoleMappingChange.between(
+                new RoleMapping.Builder().addAll("user", Arrays.asList("bob", "svc-*")).build(),
+                new RoleMapping.Builder().addAll("user", Arrays.asList("bob", "svc-ingest-*")).add("logs_reader", "scope:read-logs").build());
+
+        assertThat(change.rulesChanged()).isTrue();
+        assertThat(change.affects("svc-backfill", emptySet())).isTrue();
+        assertThat(change.affects("svc-ingest-1", emptySet())).isFalse();
+        assertThat(change.affects("bob", emptySet())).isFalse();
+        assertThat(change.affects("bob", singleton("read-logs"))).isTrue();
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright 2017 Brice Dutheil
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.arkey.elasticsearch.oauth.realm.roles;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import com.sun.management.ThreadMXBean;
+import org.junit.Test;
+
+import static java.util.Collections.emptySet;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+
+public class RoleMappingTest {
+
+    @Test
+    public void should_map_user_ids_to_roles() {
+        RoleMapping roleMapping = new RoleMapping.Builder()
+                .addAll("user", Arrays.asList("123", "321"))
+                .addAll("admin", Arrays.asList("321"))
+                .build();
+
+        assertThat(roleMapping.rolesFor("123", emptySet())).containsExactly("user");
+        assertThat(roleMapping.rolesFor("321", emptySet())).containsExactlyInAnyOrder("user", "admin");
+        assertThat(roleMapping.rolesFor("unknown", emptySet())).isEmpty();
+        assertThat(roleMapping.mappedUsers()).isEqualTo(2);
+    }
+
+    @Test
+    public void should_grant_roles_from_scopes_in_addition_to_user_roles() {
+        RoleMapping roleMapping = new RoleMapping.Builder()
+                .addAll("user", Arrays.asList("bob"))
+                .addAll("logs_reader", Arrays.asList("scope:read-logs"))
+                .addAll("logs_writer", Arrays.asList("scope:write-logs", "alice"))
+                .build();
+
+        assertThat(roleMapping.rolesFor("bob", scopes("read-logs"))).containsExactlyInAnyOrder("user", "logs_reader");
+        assertThat(roleMapping.rolesFor("bob", scopes("read-logs", "write-logs", "unknown"))).containsExactlyInAnyOrder("user", "logs_reader", "logs_writer");
+        assertThat(roleMapping.rolesFor("alice", scopes("write-logs"))).containsExactly("logs_writer");
+        assertThat(roleMapping.rolesFor("unknown", scopes("read-logs"))).containsExactly("logs_reader");
+        assertThat(roleMapping.rolesFor("unknown", scopes("unknown"))).isEmpty();
+        assertThat(roleMapping.mappedScopes()).isEqualTo(2);
+    }
+
+    @Test
+    public void should_resolve_scopes_among_tens_of_thousands_of_rules() {
+        RoleMapping.Builder builder = new RoleMapping.Builder();
+        for (int i = 0; i < 50_000; i++) {
+            builder.add("role-" + (i % 200), "scope:scope-" + i);
+        }
+        RoleMapping roleMapping = builder.add("user", "bob").build();
+
+        assertThat(roleMapping.rolesFor("bob", scopes("scope-1", "scope-201", "scope-399", "scope-49999")))
+                .containsExactlyInAnyOrder("user", "role-1", "role-199");
+    }
+
+    @Test
+    public void should_match_user_id_patterns_in_addition_to_exact_user_ids() {
+        RoleMapping roleMapping = new RoleMapping.Builder()
+                .addAll("ingest", Arrays.asList("svc-ingest-*", "svc-backfill"))
+                .addAll("admin", Arrays.asList("*@ops.example.com", "/root-[0-9]+/"))
+                .addAll("user", Arrays.asList("svc-ingest-01", "user-?"))
+                .build();
+
+        assertThat(roleMapping.rolesFor("svc-ingest-01", emptySet())).containsExactlyInAnyOrder("ingest", "user");
+        assertThat(roleMapping.rolesFor("svc-ingest-02", emptySet())).containsExactly("ingest");
+        assertThat(roleMapping.rolesFor("svc-backfill", emptySet())).containsExactly("ingest");
+        assertThat(roleMapping.rolesFor("alice@ops.example.com", emptySet())).containsExactly("admin");
+        assertThat(roleMapping.rolesFor("root-42", emptySet())).containsExactly("admin");
+        assertThat(roleMapping.rolesFor("root-x", emptySet())).isEmpty();
+        assertThat(roleMapping.rolesFor("user-1", emptySet())).containsExactly("user");
+        assertThat(roleMapping.rolesFor("user-12", emptySet())).isEmpty();
+        assertThat(roleMapping.rolesFor("alice@example.com", emptySet())).isEmpty();
+        assertThat(roleMapping.mappedUsers()).isEqualTo(2);
+        assertThat(roleMapping.rolesWithUserPatterns()).isEqualTo(3);
+    }
+
+    @Test
+    public void should_match_among_thousands_of_user_id_patterns() {
+        RoleMapping.Builder builder = new RoleMapping.Builder();
+        for (int i = 0; i < 5_000; i++) {
+            builder.add("role-" + (i % 10), "svc-" + i + "-*");
+        }
+        RoleMapping roleMapping = builder.build();
+
+        assertThat(roleMapping.rolesFor("svc-4321-worker", emptySet())).containsExactly("role-1");
+        assertThat(roleMapping.rolesFor("svc-worker", emptySet())).isEmpty();
+    }
+
+    @Test
+    public void should_match_patterns_of_thousands_of_roles_in_a_single_run() {
+        RoleMapping.Builder builder = new RoleMapping.Builder();
+        for (int i = 0; i < 2_000; i++) {
+            builder.add("role-" + i, "svc-" + i + "-*");
+        }
+        builder.add("any-svc", "svc-*");
+        builder.add("any-worker", "*-worker");
+        RoleMapping roleMapping = builder.build();
+
+        assertThat(roleMapping.rolesFor("svc-1234-worker", emptySet())).containsExactlyInAnyOrder("role-1234", "any-svc", "any-worker");
+        assertThat(roleMapping.rolesFor("svc-1999-reader", emptySet())).containsExactlyInAnyOrder("role-1999", "any-svc");
+        assertThat(roleMapping.rolesFor("svc-2000-reader", emptySet())).containsExactly("any-svc");
+        assertThat(roleMapping.rolesFor("batch-worker", emptySet())).containsExactly("any-worker");
+        assertThat(roleMapping.rolesFor("batch", emptySet())).isEmpty();
+        assertThat(roleMapping.rolesWithUserPatterns()).isEqualTo(2_002);
+    }
+
+    @Test
+    public void should_flatten_groups_and_included_roles() {
+        RoleMapping roleMapping = new RoleMapping.Builder()
+                .group("ops", Arrays.asList("alice", "bob", "svc-ops-*"))
+                .group("readers", Arrays.asList("carol", "scope:read-logs"))
+                .include("admin", Arrays.asList("power_user"))
+                .include("power_user", Arrays.asList("user", "logs_reader"))
+                .include("logs_reader", Arrays.asList("admin"))
+                .addAll("admin", Arrays.asList("group:ops"))
+                .addAll("logs_reader", Arrays.asList("group:readers", "dave"))
+                .build();
+
+        assertThat(roleMapping.rolesFor("alice", emptySet())).containsExactlyInAnyOrder("admin", "power_user", "user", "logs_reader");
+        assertThat(roleMapping.rolesFor("svc-ops-1", emptySet())).containsExactlyInAnyOrder("admin", "power_user", "user", "logs_reader");
+        assertThat(roleMapping.rolesFor("carol", emptySet())).containsExactlyInAnyOrder("admin", "power_user", "user", "logs_reader");
+        assertThat(roleMapping.rolesFor("eve", scopes("read-logs"))).containsExactlyInAnyOrder("admin", "power_user", "user", "logs_reader");
+        assertThat(roleMapping.rolesFor("alice", emptySet())).isSameAs(roleMapping.rolesFor("dave", emptySet()));
+        assertThat(roleMapping.rolesFor("eve", emptySet())).isEmpty();
+    }
+
+    @Test
+    public void should_grant_group_roles_along_with_direct_user_roles() {
+        RoleMapping roleMapping = new RoleMapping.Builder()
+                .group("ops", Arrays.asList("alice", "bob"))
+                .addAll("user", Arrays.asList("alice", "carol"))
+                .addAll("admin", Arrays.asList("group:ops"))
+                .build();
+
+        assertThat(roleMapping.rolesFor("alice", emptySet())).containsExactlyInAnyOrder("user", "admin");
+        assertThat(roleMapping.rolesFor("bob", emptySet())).containsExactly("admin");
+        assertThat(roleMapping.rolesFor("carol", emptySet())).containsExactly("user");
+        assertThat(roleMapping.mappedUsers()).isEqualTo(3);
+    }
+
+    @Test
+    public void should_grant_group_roles_without_direct_users() {
+        RoleMapping roleMapping = new RoleMapping.Builder()
+                .group("ops", Arrays.asList("alice", "bob"))
+                .addAll("admin", Arrays.asList("group:ops"))
+                .build();
+
+        assertThat(roleMapping.rolesFor("alice", emptySet())).containsExactly("admin");
+        assertThat(roleMapping.rolesFor("bob", emptySet())).containsExactly("admin");
+    }
+
+    @Test
+    public void should_match_normalized_user_ids() {
+        RoleMapping roleMapping = new RoleMapping.Builder()
+                .normalizeUserIds(true)
+                .addAll("user", Arrays.asList("Bob@Example.com", "\u00e9lodie@example.com"))
+                .addAll("admin", Arrays.asList("bob@example.com", "svc-*"))
+                .build();
+
+        assertThat(roleMapping.rolesFor("BOB@example.com", emptySet())).containsExactlyInAnyOrder("user", "admin");
+        assertThat(roleMapping.rolesFor("E\u0301lodie@Example.com", emptySet())).containsExactly("user");
+        assertThat(roleMapping.rolesFor("SVC-ingest", emptySet())).containsExactly("admin");
+        assertThat(roleMapping.mappedUsers()).isEqualTo(2);
+    }
+
+    @Test
+    public void should_fold_user_ids_and_patterns_added_before_enabling_normalization() {
+        RoleMapping roleMapping = new RoleMapping.Builder()
+                .addAll("user", Arrays.asList("Alice", "alice", "Alice*", "/Svc-[0-9]+/"))
+                .normalizeUserIds(true)
+                .build();
+
+        assertThat(roleMapping.rolesFor("ALICE", emptySet())).containsExactly("user");
+        assertThat(roleMapping.rolesFor("alice-x", emptySet())).containsExactly("user");
+        assertThat(roleMapping.rolesFor("ALICE-y", emptySet())).containsExactly("user");
+        assertThat(roleMapping.rolesFor("SVC-12", emptySet())).containsExactly("user");
+        assertThat(roleMapping.mappedUsers()).isEqualTo(1);
+    }
+
+    @Test
+    public void should_fail_on_unknown_group() {
+        assertThatExceptionOfType(IllegalArgumentException.class)
+                .isThrownBy(() -> new RoleMapping.Builder().add("admin", "group:unknown").build());
+    }
+
+    @Test
+    public void should_share_role_arrays_between_users_having_the_same_roles() {
+        RoleMapping roleMapping = new RoleMapping.Builder()
+                .addAll("user", Arrays.asList("bob", "alice"))
+                .add("logs_reader", "scope:read-logs")
+                .build();
+
+        assertThat(roleMapping.rolesFor("bob", emptySet())).isSameAs(roleMapping.rolesFor("alice", emptySet()));
+        assertThat(roleMapping.rolesFor("unknown", emptySet())).isSameAs(roleMapping.rolesFor("other", scopes("unknown")));
+    }
+
+    @Test
+    public void should_not_allocate_when_resolving_roles_of_mapped_users() {
+        RoleMapping.Builder builder = new RoleMapping.Builder();
+        for (int i = 0; i < 1_000; i++) {
+            builder.add("role-" + (i % 10), "user-" + i);
+        }
+        RoleMapping roleMapping = builder.build();
+        String[] userIds = new String[1_000];
+        for (int i = 0; i < userIds.length; i++) {
+            userIds[i] = "user-" + i;
+            userIds[i].hashCode();
+        }
+        Set<String> noScopes = emptySet();
+        ThreadMXBean threadMXBean = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        resolveRoles(roleMapping, userIds, noScopes, 100);
+
+        long allocatedBefore = threadMXBean.getThreadAllocatedBytes(threadId);
+        resolveRoles(roleMapping, userIds, noScopes, 100);
+        long allocated = threadMXBean.getThreadAllocatedBytes(threadId) - allocatedBefore;
+
+        // the allocated bytes counter itself may allocate a few bytes
+        assertThat(allocated).isLessThan(1_000);
+    }
+
+    private static int resolveRoles(RoleMapping roleMapping, String[] userIds, Set<String> scopes, int iterations) {
+        int roles = 0;
+        for (int i = 0; i < iterations; i++) {
+            for (String userId : userIds) {
+                roles += roleMapping.rolesFor(userId, scopes).length;
+            }
+        }
+        return roles;
+    }
+
+    private Set<String> scopes(String... scopes) {
+        return new HashSet<>(Arrays.asList(scopes));
+    }
+}
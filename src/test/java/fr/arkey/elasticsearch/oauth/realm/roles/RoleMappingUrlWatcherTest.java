@@ -0,0 +1,92 @@
+/*
+ * Copyright 2017 Brice Dutheil
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.arkey.elasticsearch.oauth.realm.roles;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import org.apache.logging.log4j.LogManager;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnit;
+import org.mockito.junit.MockitoRule;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.absent;
+import static com.github.tomakehurst.wiremock.client.WireMock.equalTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.okJson;
+import static com.github.tomakehurst.wiremock.client.WireMock.serverError;
+import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.wireMockConfig;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class RoleMappingUrlWatcherTest {
+    @Rule
+    public WireMockRule wireMockRule = new WireMockRule(wireMockConfig().dynamicPort());
+    @Rule
+    public MockitoRule rule = MockitoJUnit.rule();
+
+    @Mock
+    private BiConsumer<String, byte[]> onRoleMapping;
+    private final AtomicInteger failures = new AtomicInteger();
+    private RoleMappingUrlWatcher watcher;
+
+    @Test
+    public void should_only_fetch_role_mapping_again_when_modified() throws Exception {
+        stubFor(get(urlEqualTo("/.oauth-role-mapping/mapping/default/_source"))
+                        .withHeader("If-None-Match", absent())
+                        .withHeader("Authorization", equalTo("Basic ZWxhc3RpYzpjaGFuZ2VtZQ=="))
+                        .willReturn(okJson("{\"user\":[\"bob\"]}").withHeader("ETag", "\"v1\"")));
+        stubFor(get(urlEqualTo("/.oauth-role-mapping/mapping/default/_source"))
+                        .withHeader("If-None-Match", equalTo("\"v1\""))
+                        .willReturn(aResponse().withStatus(304)));
+
+        watcher.init();
+        watcher.checkAndNotify();
+
+        verify(onRoleMapping, times(1)).accept(eq("role_mapping.json"), any(byte[].class));
+        assertThat(failures).hasValue(0);
+    }
+
+    @Test
+    public void should_report_unavailable_role_mapping() throws Exception {
+        stubFor(get(urlEqualTo("/.oauth-role-mapping/mapping/default/_source"))
+                        .willReturn(serverError()));
+
+        watcher.init();
+
+        verify(onRoleMapping, times(0)).accept(any(), any());
+        assertThat(failures).hasValue(1);
+    }
+
+    @Before
+    public void create_watcher() {
+        watcher = new RoleMappingUrlWatcher("http://localhost:" + wireMockRule.port() + "/.oauth-role-mapping/mapping/default/_source",
+                                            "elastic",
+                                            "changeme",
+                                            LogManager.getLogger(RoleMappingUrlWatcherTest.class),
+                                            onRoleMapping,
+                                            failures::incrementAndGet);
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2017 Brice Dutheil
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.arkey.elasticsearch.oauth.realm.roles;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class UserIdNormalizerTest {
+
+    @Test
+    public void should_return_lower_case_ascii_user_ids_as_is() {
+        String userId = "bob@example.com";
+
+        assertThat(UserIdNormalizer.normalize(userId)).isSameAs(userId);
+        assertThat(UserIdNormalizer.normalize("")).isEmpty();
+    }
+
+    @Test
+    public void should_lower_case_ascii_user_ids() {
+        assertThat(UserIdNormalizer.normalize("Bob@Example.COM")).isEqualTo("bob@example.com");
+        assertThat(UserIdNormalizer.normalize("bob@example.COM")).isEqualTo("bob@example.com");
+    }
+
+    @Test
+    public void should_normalize_unicode_user_ids() {
+        String composed = "\u00c9lodie@example.com";
+        String decomposed = "E\u0301lodie@example.com";
+
+        assertThat(UserIdNormalizer.normalize(composed)).isEqualTo("\u00e9lodie@example.com");
+        assertThat(UserIdNormalizer.normalize(decomposed)).isEqualTo("\u00e9lodie@example.com");
+        assertThat(UserIdNormalizer.normalize("\uff22\uff2f\uff22")).isEqualTo("bob");
+    }
+}
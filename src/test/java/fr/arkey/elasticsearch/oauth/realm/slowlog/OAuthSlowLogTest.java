@@ -0,0 +1,127 @@
+/*
+ * Copyright 2017 Brice Dutheil
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.arkey.elasticsearch.oauth.realm.slowlog;
+
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.common.unit.TimeValue;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnit;
+import org.mockito.junit.MockitoRule;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class OAuthSlowLogTest {
+    @Rule
+    public MockitoRule mockitoRule = MockitoJUnit.rule();
+
+    @Mock
+    private Logger logger;
+
+    @Before
+    public void enable_all_levels() {
+        given(logger.isWarnEnabled()).willReturn(true);
+        given(logger.isInfoEnabled()).willReturn(true);
+        given(logger.isDebugEnabled()).willReturn(true);
+    }
+
+    @Test
+    public void should_be_disabled_without_thresholds() {
+        assertThat(slowLog(-1, -1, -1, 1.0, 10).enabled()).isFalse();
+        assertThat(slowLog(-1, -1, 10, 1.0, 10).enabled()).isTrue();
+    }
+
+    @Test
+    public void should_log_at_the_level_of_the_highest_exceeded_threshold() {
+        OAuthSlowLog slowLog = slowLog(100, 50, 10, 1.0, 10);
+
+        slowLog.onAuthentication("token", "bob", timings(), MILLISECONDS.toNanos(5));
+        slowLog.onAuthentication("token", "bob", timings(), MILLISECONDS.toNanos(20));
+        slowLog.onAuthentication("token", "bob", timings(), MILLISECONDS.toNanos(60));
+        slowLog.onAuthentication("token", "bob", timings(), MILLISECONDS.toNanos(200));
+
+        verify(logger, times(1)).debug(eq("{}"), any(Object.class));
+        verify(logger, times(1)).info(eq("{}"), any(Object.class));
+        verify(logger, times(1)).warn(eq("{}"), any(Object.class));
+    }
+
+    @Test
+    public void should_carry_stages_user_and_truncated_token_digest() {
+        OAuthSlowLog slowLog = slowLog(10, -1, -1, 1.0, 10);
+        AuthenticationTimings timings = timings();
+        timings.add(AuthenticationTimings.Stage.IDP, MILLISECONDS.toNanos(42));
+
+        slowLog.onAuthentication("the_secret_access_token", "bob", timings, MILLISECONDS.toNanos(50));
+
+        ArgumentCaptor<Object> record = ArgumentCaptor.forClass(Object.class);
+        verify(logger).warn(eq("{}"), record.capture());
+        assertThat(record.getValue().toString())
+                .contains("[oauth]", "took_millis[50]", "user[bob]", "idp[42ms]", "cache[", "mapping[", "roles[")
+                .contains("token_digest[" + OAuthSlowLog.tokenDigest("the_secret_access_token") + "]")
+                .doesNotContain("the_secret_access_token");
+        assertThat(OAuthSlowLog.tokenDigest("the_secret_access_token")).hasSize(8);
+    }
+
+    @Test
+    public void should_rate_limit_records_and_report_dropped_ones() {
+        OAuthSlowLog slowLog = slowLog(10, -1, -1, 1.0, 2);
+
+        for (int i = 0; i < 5; i++) {
+            slowLog.onAuthentication("token", "bob", timings(), MILLISECONDS.toNanos(50));
+        }
+
+        verify(logger, times(2)).warn(eq("{}"), any(Object.class));
+    }
+
+    @Test
+    public void should_not_log_anything_when_sampling_ratio_is_zero() {
+        OAuthSlowLog slowLog = slowLog(10, -1, -1, 0.0, 10);
+
+        slowLog.onAuthentication("token", "bob", timings(), MILLISECONDS.toNanos(50));
+
+        verify(logger, never()).warn(eq("{}"), any(Object.class));
+    }
+
+    private AuthenticationTimings timings() {
+        AuthenticationTimings timings = AuthenticationTimings.begin();
+        timings.end();
+        return timings;
+    }
+
+    private OAuthSlowLog slowLog(long warnMillis, long infoMillis, long debugMillis, double samplingRatio, int maxPerSecond) {
+        return new OAuthSlowLog(logger,
+                                "oauth",
+                                thresholdMillis(warnMillis),
+                                thresholdMillis(infoMillis),
+                                thresholdMillis(debugMillis),
+                                samplingRatio,
+                                maxPerSecond);
+    }
+
+    private TimeValue thresholdMillis(long millis) {
+        return millis < 0 ? TimeValue.timeValueNanos(-1) : TimeValue.timeValueMillis(millis);
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2017 Brice Dutheil
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.arkey.elasticsearch.oauth.realm.stats;
+
+import org.junit.Test;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void should_report_zeros_when_empty() {
+        LatencyHistogram.Snapshot snapshot = new LatencyHistogram().snapshot();
+
+        assertThat(snapshot.count).isZero();
+        assertThat(snapshot.p99InMicros).isZero();
+        assertThat(snapshot.maxInMicros).isZero();
+    }
+
+    @Test
+    public void should_compute_percentiles_within_bucket_precision() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(MILLISECONDS.toNanos(i));
+        }
+
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+
+        assertThat(snapshot.count).isEqualTo(1000);
+        assertThat(snapshot.meanInMicros).isEqualTo(500_500);
+        assertThat(snapshot.p50InMicros).isCloseTo(500_000, within(62_500L));
+        assertThat(snapshot.p95InMicros).isCloseTo(950_000, within(118_750L));
+        assertThat(snapshot.p99InMicros).isLessThanOrEqualTo(snapshot.maxInMicros);
+        assertThat(snapshot.maxInMicros).isEqualTo(1_000_000);
+    }
+
+    @Test
+    public void bucket_index_and_upper_bound_are_consistent() {
+        for (long value : new long[]{0, 1, 7, 8, 15, 16, 17, 1_000, 123_456_789, Long.MAX_VALUE}) {
+            int index = LatencyHistogram.bucketIndex(value);
+            assertThat(LatencyHistogram.bucketUpperBound(index)).isGreaterThanOrEqualTo(value);
+            if (index > 0) {
+                assertThat(LatencyHistogram.bucketUpperBound(index - 1)).isLessThan(value);
+            }
+        }
+    }
+}
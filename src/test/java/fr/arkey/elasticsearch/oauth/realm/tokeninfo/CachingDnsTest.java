@@ -0,0 +1,168 @@
+/*
+ * Copyright 2017 Brice Dutheil
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.arkey.elasticsearch.oauth.realm.tokeninfo;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.elasticsearch.common.unit.TimeValue;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+
+public class CachingDnsTest {
+    private final AtomicLong clock = new AtomicLong();
+    private final AtomicInteger lookups = new AtomicInteger();
+    private final Queue<Runnable> refreshes = new ArrayDeque<>();
+    private volatile List<InetAddress> resolved;
+    private CachingDns dns;
+
+    @Before
+    public void create_dns_with_fake_resolver() {
+        resolved = Arrays.asList(address(1), address(2), address(3));
+        dns = new CachingDns(hostname -> {
+                                 lookups.incrementAndGet();
+                                 if (resolved.isEmpty()) {
+                                     throw new UnknownHostException(hostname);
+                                 }
+                                 return resolved;
+                             },
+                             TimeValue.timeValueSeconds(30),
+                             TimeValue.timeValueSeconds(5),
+                             TimeValue.timeValueSeconds(10),
+                             refreshes::add,
+                             clock::get);
+    }
+
+    @Test
+    public void should_cache_addresses_for_the_ttl() throws UnknownHostException {
+        dns.lookup("idp");
+        elapse(29);
+        dns.lookup("idp");
+
+        assertThat(lookups).hasValue(1);
+        assertThat(refreshes).isEmpty();
+    }
+
+    @Test
+    public void should_serve_stale_addresses_while_refreshing_in_background() throws UnknownHostException {
+        dns.lookup("idp");
+        resolved = Arrays.asList(address(4));
+        elapse(30);
+
+        assertThat(dns.lookup("idp")).containsOnly(address(1), address(2), address(3));
+        assertThat(dns.lookup("idp")).containsOnly(address(1), address(2), address(3));
+        assertThat(refreshes).hasSize(1);
+
+        refreshes.poll().run();
+
+        assertThat(dns.lookup("idp")).containsExactly(address(4));
+        assertThat(lookups).hasValue(2);
+    }
+
+    @Test
+    public void should_keep_stale_addresses_when_refresh_fails() throws UnknownHostException {
+        dns.lookup("idp");
+        resolved = Arrays.asList();
+        elapse(30);
+        dns.lookup("idp");
+        refreshes.poll().run();
+
+        assertThat(dns.lookup("idp")).containsOnly(address(1), address(2), address(3));
+        assertThat(refreshes).isEmpty();
+
+        resolved = Arrays.asList(address(4));
+        elapse(5);
+        dns.lookup("idp");
+        refreshes.poll().run();
+
+        assertThat(dns.lookup("idp")).containsExactly(address(4));
+    }
+
+    @Test
+    public void should_cache_failures_for_the_negative_ttl() {
+        resolved = Arrays.asList();
+
+        assertThatExceptionOfType(UnknownHostException.class).isThrownBy(() -> dns.lookup("idp"));
+        elapse(4);
+        assertThatExceptionOfType(UnknownHostException.class).isThrownBy(() -> dns.lookup("idp"));
+        assertThat(lookups).hasValue(1);
+
+        elapse(1);
+        assertThatExceptionOfType(UnknownHostException.class).isThrownBy(() -> dns.lookup("idp"));
+        assertThat(lookups).hasValue(2);
+    }
+
+    @Test
+    public void should_rotate_addresses() throws UnknownHostException {
+        assertThat(dns.lookup("idp")).containsExactly(address(1), address(2), address(3));
+        assertThat(dns.lookup("idp")).containsExactly(address(2), address(3), address(1));
+        assertThat(dns.lookup("idp")).containsExactly(address(3), address(1), address(2));
+    }
+
+    @Test
+    public void should_return_ejected_addresses_last_until_ejection_elapsed() throws UnknownHostException {
+        dns.eject(address(1));
+
+        assertThat(dns.lookup("idp")).containsExactly(address(2), address(3), address(1));
+        assertThat(dns.lookup("idp")).containsExactly(address(2), address(3), address(1));
+
+        elapse(10);
+        assertThat(dns.lookup("idp")).containsExactly(address(3), address(1), address(2));
+    }
+
+    @Test
+    public void should_eject_address_that_refused_the_connection() throws IOException {
+        int closedPort;
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            closedPort = serverSocket.getLocalPort();
+        }
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        resolved = Arrays.asList(loopback, address(1));
+
+        try (Socket socket = dns.socketFactory().createSocket()) {
+            socket.connect(new InetSocketAddress(loopback, closedPort), 1_000);
+        } catch (IOException expected) {
+            // connection refused
+        }
+
+        assertThat(dns.lookup("idp")).containsExactly(address(1), loopback);
+    }
+
+    private void elapse(long seconds) {
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(seconds));
+    }
+
+    private static InetAddress address(int lastByte) {
+        try {
+            return InetAddress.getByAddress("idp", new byte[]{10, 0, 0, (byte) lastByte});
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
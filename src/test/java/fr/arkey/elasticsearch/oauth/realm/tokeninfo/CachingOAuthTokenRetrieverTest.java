@@ -15,11 +15,18 @@
  */
 package fr.arkey.elasticsearch.oauth.realm.tokeninfo;
 
-import java.util.Optional;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 import fr.arkey.elasticsearch.oauth.realm.OAuthRealm;
+import fr.arkey.elasticsearch.oauth.realm.support.OAuthRealmExceptions;
+import org.elasticsearch.ElasticsearchSecurityException;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.util.concurrent.ThreadContext;
+import org.elasticsearch.rest.RestStatus;
 import org.elasticsearch.xpack.security.authc.RealmConfig;
 import org.junit.Rule;
 import org.junit.Test;
@@ -56,63 +63,283 @@ public class CachingOAuthTokenRetrieverTest {
     public void should_delegate_token_info_request_when_not_in_cache() {
         CachingOAuthTokenRetriever retriever = new CachingOAuthTokenRetriever(realmConfig(), delegateRetriever, tokenInfo -> false);
 
-        given(delegateRetriever.getTokenInfo("a valid access token")).willReturn(Optional.of(new TokenInfo("bob", 12, MINUTES, emptySet())));
+        given(delegateRetriever.introspect("a valid access token")).willReturn(IntrospectionResult.valid(new TokenInfo("bob", 12, MINUTES, emptySet())));
 
-        assertThat(retriever.getTokenInfo("a valid access token")).contains(new TokenInfo("bob", 12, MINUTES, emptySet()));
+        assertThat(retriever.introspect("a valid access token").tokenInfo()).isEqualTo(new TokenInfo("bob", 12, MINUTES, emptySet()));
     }
 
     @Test
     public void should_use_cache_when_access_token_has_been_used() {
         CachingOAuthTokenRetriever retriever = new CachingOAuthTokenRetriever(realmConfig(), delegateRetriever, tokenInfo -> false);
-        given(delegateRetriever.getTokenInfo("a valid access token")).willReturn(Optional.of(new TokenInfo("bob", 12, MINUTES, emptySet())));
+        given(delegateRetriever.introspect("a valid access token")).willReturn(IntrospectionResult.valid(new TokenInfo("bob", 12, MINUTES, emptySet())));
 
-        retriever.getTokenInfo("a valid access token");
-        retriever.getTokenInfo("a valid access token");
+        retriever.introspect("a valid access token");
+        retriever.introspect("a valid access token");
 
-        assertThat(retriever.getTokenInfo("a valid access token")).contains(new TokenInfo("bob", 12, MINUTES, emptySet()));
+        assertThat(retriever.introspect("a valid access token").tokenInfo()).isEqualTo(new TokenInfo("bob", 12, MINUTES, emptySet()));
 
-        verify(delegateRetriever, times(1)).getTokenInfo("a valid access token");
+        verify(delegateRetriever, times(1)).introspect("a valid access token");
+    }
+
+    @Test
+    public void should_record_cache_hits_and_misses() {
+        CachingOAuthTokenRetriever retriever = new CachingOAuthTokenRetriever(realmConfig(), delegateRetriever, tokenInfo -> false);
+        given(delegateRetriever.introspect("a valid access token")).willReturn(IntrospectionResult.valid(new TokenInfo("bob", 12, MINUTES, emptySet())));
+
+        retriever.introspect("a valid access token");
+        retriever.introspect("a valid access token");
+
+        assertThat(retriever.stats().missCount()).isEqualTo(1);
+        assertThat(retriever.stats().hitCount()).isEqualTo(1);
     }
 
     @Test
     public void should_verify_expiration() throws InterruptedException {
         CachingOAuthTokenRetriever retriever = new CachingOAuthTokenRetriever(realmConfig(), delegateRetriever, tokenInfo -> true);
-        given(delegateRetriever.getTokenInfo("a valid access token")).willReturn(Optional.of(new TokenInfo("bob", 1, MILLIS, emptySet())));
+        given(delegateRetriever.introspect("a valid access token")).willReturn(IntrospectionResult.valid(new TokenInfo("bob", 1, MILLIS, emptySet())));
 
-        assertThat(retriever.getTokenInfo("a valid access token")).isEmpty();
+        assertThat(retriever.introspect("a valid access token").status()).isEqualTo(IntrospectionResult.Status.EXPIRED);
     }
 
     @Test
     public void should_verify_expiration_with_token_values() throws InterruptedException {
         CachingOAuthTokenRetriever retriever = new CachingOAuthTokenRetriever(realmConfig(), delegateRetriever, TokenInfo::isExpired);
-        given(delegateRetriever.getTokenInfo("a valid access token")).willReturn(Optional.of(new TokenInfo("bob", 1, SECONDS, emptySet())));
+        given(delegateRetriever.introspect("a valid access token")).willReturn(IntrospectionResult.valid(new TokenInfo("bob", 1, SECONDS, emptySet())));
 
-        assertThat(retriever.getTokenInfo("a valid access token")).isNotEmpty();
+        assertThat(retriever.introspect("a valid access token").status()).isEqualTo(IntrospectionResult.Status.VALID);
 
         TimeUnit.SECONDS.sleep(1);
 
-        assertThat(retriever.getTokenInfo("a valid access token")).isEmpty();
+        assertThat(retriever.introspect("a valid access token").status()).isEqualTo(IntrospectionResult.Status.EXPIRED);
     }
 
     @Test
     public void should_expire_cache_entries() throws InterruptedException {
         CachingOAuthTokenRetriever retriever = new CachingOAuthTokenRetriever(realmConfig(), delegateRetriever, TokenInfo::isExpired);
-        given(delegateRetriever.getTokenInfo(any())).willReturn(Optional.of(new TokenInfo("bob", 12, MINUTES, emptySet())));
+        given(delegateRetriever.introspect(any())).willReturn(IntrospectionResult.valid(new TokenInfo("bob", 12, MINUTES, emptySet())));
 
-        assertThat(retriever.getTokenInfo("a valid access token")).isNotEmpty();
+        assertThat(retriever.introspect("a valid access token").status()).isEqualTo(IntrospectionResult.Status.VALID);
 
         TimeUnit.SECONDS.sleep(3);
 
-        assertThat(retriever.getTokenInfo("a valid access token")).isNotEmpty();
+        assertThat(retriever.introspect("a valid access token").status()).isEqualTo(IntrospectionResult.Status.VALID);
+
+        verify(delegateRetriever, times(2)).introspect("a valid access token");
+    }
+
+    @Test
+    public void should_only_expire_entries_matching_predicate() {
+        CachingOAuthTokenRetriever retriever = new CachingOAuthTokenRetriever(realmConfig(10), delegateRetriever, tokenInfo -> false);
+        given(delegateRetriever.introspect("bob access token")).willReturn(IntrospectionResult.valid(new TokenInfo("bob", 12, MINUTES, emptySet())));
+        given(delegateRetriever.introspect("alice access token")).willReturn(IntrospectionResult.valid(new TokenInfo("alice", 12, MINUTES, emptySet())));
+        retriever.introspect("bob access token");
+        retriever.introspect("alice access token");
+
+        assertThat(retriever.expiresIf(tokenInfo -> tokenInfo.userId.equals("alice"))).isEqualTo(1);
+        retriever.introspect("bob access token");
+        retriever.introspect("alice access token");
+
+        verify(delegateRetriever, times(1)).introspect("bob access token");
+        verify(delegateRetriever, times(2)).introspect("alice access token");
+    }
+
+    @Test
+    public void should_rate_limit_cache_misses_per_source() {
+        ThreadContext threadContext = new ThreadContext(Settings.EMPTY);
+        CachingOAuthTokenRetriever retriever = new CachingOAuthTokenRetriever(
+                new RealmConfig("mapper",
+                                Settings.builder()
+                                        .put("type", OAuthRealm.TYPE)
+                                        .put("rate-limit.per-source.rate", 0.01)
+                                        .put("rate-limit.per-source.burst", 2)
+                                        .putArray("rate-limit.trusted-proxies", "192.168.0.1")
+                                        .build(),
+                                Settings.builder()
+                                        .put("path.home", "ignored")
+                                        .build(),
+                                threadContext),
+                delegateRetriever,
+                tokenInfo -> false);
+        given(delegateRetriever.introspect(any())).willReturn(IntrospectionResult.valid(new TokenInfo("bob", 12, MINUTES, emptySet())));
+
+        threadContext.putHeader("X-Forwarded-For", "10.0.0.1, 192.168.0.1");
+        retriever.introspect("token 1");
+        retriever.introspect("token 2");
+        assertThatThrownBy(() -> retriever.introspect("token 3"))
+                .isInstanceOfSatisfying(ElasticsearchSecurityException.class, e -> {
+                    assertThat(e.status()).isEqualTo(RestStatus.TOO_MANY_REQUESTS);
+                    assertThat(e.getHeader("Retry-After")).containsExactly("100");
+                });
+        assertThat(retriever.introspect("token 1").status()).isEqualTo(IntrospectionResult.Status.VALID);
+
+        try (ThreadContext.StoredContext ignored = threadContext.stashContext()) {
+            threadContext.putHeader("X-Forwarded-For", "10.0.0.2");
+            assertThat(retriever.introspect("token 3").status()).isEqualTo(IntrospectionResult.Status.VALID);
+        }
+        verify(delegateRetriever, times(3)).introspect(any());
+    }
+
+    @Test
+    public void should_cache_invalid_tokens_when_negative_caching_enabled() {
+        CachingOAuthTokenRetriever retriever = new CachingOAuthTokenRetriever(
+                realmConfig(Settings.builder().put("token-info.cache.negative.expire-in-seconds", 60)),
+                delegateRetriever,
+                tokenInfo -> false);
+        IntrospectionResult rejected = IntrospectionResult.invalid(OAuthRealmExceptions.tokenRejected("error=invalid token"));
+        given(delegateRetriever.introspect("an invalid access token")).willReturn(rejected);
+
+        assertThat(retriever.introspect("an invalid access token")).isSameAs(rejected);
+        assertThat(retriever.introspect("an invalid access token")).isSameAs(rejected);
+
+        verify(delegateRetriever, times(1)).introspect("an invalid access token");
+        assertThat(retriever.introspectionStats().invalid()).isEqualTo(2);
+    }
+
+    @Test
+    public void should_only_cache_invalid_tokens_explicitly_rejected() {
+        CachingOAuthTokenRetriever retriever = new CachingOAuthTokenRetriever(
+                realmConfig(Settings.builder().put("token-info.cache.negative.expire-in-seconds", 60)),
+                delegateRetriever,
+                tokenInfo -> false);
+        given(delegateRetriever.introspect("an unknown access token")).willReturn(IntrospectionResult.UNKNOWN_TOKEN);
+
+        retriever.introspect("an unknown access token");
+        retriever.introspect("an unknown access token");
+
+        verify(delegateRetriever, times(2)).introspect("an unknown access token");
+    }
+
+    @Test
+    public void should_not_cache_invalid_tokens_by_default() {
+        CachingOAuthTokenRetriever retriever = new CachingOAuthTokenRetriever(realmConfig(), delegateRetriever, tokenInfo -> false);
+        given(delegateRetriever.introspect("an invalid access token")).willReturn(IntrospectionResult.UNKNOWN_TOKEN);
+
+        assertThat(retriever.introspect("an invalid access token").status()).isEqualTo(IntrospectionResult.Status.INVALID);
+        assertThat(retriever.introspect("an invalid access token").status()).isEqualTo(IntrospectionResult.Status.INVALID);
 
-        verify(delegateRetriever, times(2)).getTokenInfo("a valid access token");
+        verify(delegateRetriever, times(2)).introspect("an invalid access token");
+    }
+
+    @Test
+    public void should_short_circuit_introspections_while_idp_asks_to_retry_later() {
+        CachingOAuthTokenRetriever retriever = new CachingOAuthTokenRetriever(realmConfig(), delegateRetriever, tokenInfo -> false);
+        IntrospectionResult unavailable = IntrospectionResult.unavailable(null, TimeUnit.MINUTES.toNanos(1));
+        given(delegateRetriever.introspect(any())).willReturn(unavailable);
+
+        assertThat(retriever.introspect("token 1")).isSameAs(unavailable);
+        assertThat(retriever.introspect("token 2")).isSameAs(unavailable);
+
+        verify(delegateRetriever, times(1)).introspect(any());
+        assertThat(retriever.introspectionStats().unavailable()).isEqualTo(2);
+        assertThat(retriever.introspectionStats().shortCircuited()).isEqualTo(1);
+    }
+
+    @Test
+    public void should_not_cache_unavailability_without_retry_delay() {
+        CachingOAuthTokenRetriever retriever = new CachingOAuthTokenRetriever(realmConfig(), delegateRetriever, tokenInfo -> false);
+        given(delegateRetriever.introspect("a valid access token")).willReturn(IntrospectionResult.unavailable(new IOException("connection refused"), 0),
+                                                                                IntrospectionResult.valid(new TokenInfo("bob", 12, MINUTES, emptySet())));
+
+        assertThat(retriever.introspect("a valid access token").status()).isEqualTo(IntrospectionResult.Status.UNAVAILABLE);
+        assertThat(retriever.introspect("a valid access token").status()).isEqualTo(IntrospectionResult.Status.VALID);
+    }
+
+    @Test
+    public void should_count_expired_tokens() {
+        CachingOAuthTokenRetriever retriever = new CachingOAuthTokenRetriever(realmConfig(), delegateRetriever, tokenInfo -> true);
+        given(delegateRetriever.introspect("a valid access token")).willReturn(IntrospectionResult.valid(new TokenInfo("bob", 1, MILLIS, emptySet())));
+
+        assertThat(retriever.introspect("a valid access token")).isSameAs(IntrospectionResult.EXPIRED);
+        assertThat(retriever.introspectionStats().expired()).isEqualTo(1);
+        assertThat(retriever.introspectionStats().valid()).isZero();
+    }
+
+    @Test
+    public void should_ignore_forwarded_for_header_without_trusted_proxies() {
+        ThreadContext threadContext = new ThreadContext(Settings.EMPTY);
+        CachingOAuthTokenRetriever retriever = rateLimitedRetriever(Settings.builder(), threadContext);
+
+        threadContext.putHeader("X-Forwarded-For", "10.0.0.1");
+        retriever.introspect("token 1");
+        try (ThreadContext.StoredContext ignored = threadContext.stashContext()) {
+            threadContext.putHeader("X-Forwarded-For", "10.0.0.2");
+            assertThatThrownBy(() -> retriever.introspect("token 2")).isInstanceOf(ElasticsearchSecurityException.class);
+        }
+        try (ThreadContext.StoredContext ignored = threadContext.stashContext()) {
+            assertThatThrownBy(() -> retriever.introspect("token 3")).isInstanceOf(ElasticsearchSecurityException.class);
+        }
+        verify(delegateRetriever, times(1)).introspect(any());
+    }
+
+    @Test
+    public void should_only_trust_forwarded_for_header_from_trusted_proxies() {
+        ThreadContext threadContext = new ThreadContext(Settings.EMPTY);
+        CachingOAuthTokenRetriever retriever = rateLimitedRetriever(
+                Settings.builder().putArray("rate-limit.trusted-proxies", "192.168.0.1"),
+                threadContext);
+
+        threadContext.putTransient(CachingOAuthTokenRetriever.REMOTE_ADDRESS_TRANSIENT, new InetSocketAddress("10.0.0.9", 4242));
+        threadContext.putHeader("X-Forwarded-For", "10.0.0.1");
+        retriever.introspect("token 1");
+        try (ThreadContext.StoredContext ignored = threadContext.stashContext()) {
+            threadContext.putTransient(CachingOAuthTokenRetriever.REMOTE_ADDRESS_TRANSIENT, new InetSocketAddress("10.0.0.9", 4242));
+            threadContext.putHeader("X-Forwarded-For", "10.0.0.2");
+            assertThatThrownBy(() -> retriever.introspect("token 2")).isInstanceOf(ElasticsearchSecurityException.class);
+        }
+        try (ThreadContext.StoredContext ignored = threadContext.stashContext()) {
+            threadContext.putTransient(CachingOAuthTokenRetriever.REMOTE_ADDRESS_TRANSIENT, new InetSocketAddress("192.168.0.1", 4242));
+            threadContext.putHeader("X-Forwarded-For", "10.0.0.2");
+            assertThat(retriever.introspect("token 2").status()).isEqualTo(IntrospectionResult.Status.VALID);
+        }
+        verify(delegateRetriever, times(2)).introspect(any());
+    }
+
+    @Test
+    public void should_extract_client_address_from_forwarded_for_header() {
+        Set<String> trustedProxies = new HashSet<>(Arrays.asList("192.168.0.1", "192.168.0.2"));
+        assertThat(CachingOAuthTokenRetriever.clientOf(null, trustedProxies)).isNull();
+        assertThat(CachingOAuthTokenRetriever.clientOf(" ", trustedProxies)).isNull();
+        assertThat(CachingOAuthTokenRetriever.clientOf("10.0.0.1", trustedProxies)).isEqualTo("10.0.0.1");
+        assertThat(CachingOAuthTokenRetriever.clientOf(" 10.0.0.1 , 192.168.0.1", trustedProxies)).isEqualTo("10.0.0.1");
+        assertThat(CachingOAuthTokenRetriever.clientOf("6.6.6.6, 10.0.0.1, 192.168.0.2, 192.168.0.1", trustedProxies)).isEqualTo("10.0.0.1");
+        assertThat(CachingOAuthTokenRetriever.clientOf("192.168.0.2, 192.168.0.1", trustedProxies)).isEqualTo("192.168.0.2");
+    }
+
+    private CachingOAuthTokenRetriever rateLimitedRetriever(Settings.Builder settings, ThreadContext threadContext) {
+        given(delegateRetriever.introspect(any())).willReturn(IntrospectionResult.valid(new TokenInfo("bob", 12, MINUTES, emptySet())));
+        return new CachingOAuthTokenRetriever(
+                new RealmConfig("mapper",
+                                settings.put("type", OAuthRealm.TYPE)
+                                        .put("rate-limit.per-source.rate", 0.01)
+                                        .put("rate-limit.per-source.burst", 1)
+                                        .build(),
+                                Settings.builder()
+                                        .put("path.home", "ignored")
+                                        .build(),
+                                threadContext),
+                delegateRetriever,
+                tokenInfo -> false);
     }
 
     private RealmConfig realmConfig() {
+        return realmConfig(1);
+    }
+
+    private RealmConfig realmConfig(Settings.Builder settings) {
+        return new RealmConfig("mapper",
+                               settings.put("type", OAuthRealm.TYPE)
+                                       .build(),
+                               Settings.builder()
+                                       .put("path.home", "ignored")
+                                       .build(),
+                               new ThreadContext(Settings.EMPTY));
+    }
+
+    private RealmConfig realmConfig(int maxSize) {
         return new RealmConfig("mapper",
                                Settings.builder()
                                        .put("type", OAuthRealm.TYPE)
-                                       .put("token-info.cache.max-size", "1")
+                                       .put("token-info.cache.max-size", maxSize)
                                        .put("token-info.cache.expire-in-seconds", "2")
                                        .build(),
                                Settings.builder()
@@ -18,13 +18,17 @@ package fr.arkey.elasticsearch.oauth.realm.tokeninfo;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UncheckedIOException;
-import java.util.Optional;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
 import java.util.stream.StreamSupport;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.tomakehurst.wiremock.client.WireMock;
+import com.github.tomakehurst.wiremock.http.RequestMethod;
 import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import com.github.tomakehurst.wiremock.matching.RequestPatternBuilder;
 import fr.arkey.elasticsearch.oauth.realm.OAuthRealm;
+import fr.arkey.elasticsearch.oauth.realm.support.TokenRejection;
 import okhttp3.HttpUrl;
 import org.assertj.core.api.Condition;
 import org.elasticsearch.ElasticsearchSecurityException;
@@ -39,15 +43,17 @@ import org.mockito.Mockito;
 import static java.time.temporal.ChronoUnit.SECONDS;
 import static java.util.stream.Collectors.toSet;
 import static com.fasterxml.jackson.databind.DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES;
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
 import static com.github.tomakehurst.wiremock.client.WireMock.equalTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.findAll;
 import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.notFound;
 import static com.github.tomakehurst.wiremock.client.WireMock.okJson;
 import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
 import static com.github.tomakehurst.wiremock.client.WireMock.unauthorized;
 import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
 import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.wireMockConfig;
 import static org.assertj.core.api.Assertions.assertThat;
-import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
 import static org.assertj.core.api.Assertions.from;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.BDDMockito.given;
@@ -106,10 +112,10 @@ public class HttpOAuthTokenRetrieverTest {
         );
 
 
-        Optional<TokenInfo> tokenInfo = tokenRetriever.getTokenInfo("a_valid_access_token");
+        IntrospectionResult result = tokenRetriever.introspect("a_valid_access_token");
 
-        assertThat(tokenInfo).isNotEmpty();
-        assertThat(tokenInfo.get()).returns("bob", from(t -> t.userId));
+        assertThat(result.status()).isEqualTo(IntrospectionResult.Status.VALID);
+        assertThat(result.tokenInfo()).returns("bob", from(t -> t.userId));
     }
 
     @Test
@@ -127,13 +133,81 @@ public class HttpOAuthTokenRetrieverTest {
                         )
         );
 
-        assertThatExceptionOfType(ElasticsearchSecurityException.class).isThrownBy(() -> tokenRetriever.getTokenInfo("an_expired_access_token"))
-                                                                       .has(headerContaining("WWW-Authenticate",
-                                                                                             "delegateError=\"error=OAuth bearer token required. Token has expired\""))
-                                                                       .has(headerContaining("WWW-Authenticate",
-                                                                                             "Bearer realm=\"security\" charset=\"UTF-8\""));
+        IntrospectionResult result = tokenRetriever.introspect("an_expired_access_token");
+
+        assertThat(result.status()).isEqualTo(IntrospectionResult.Status.INVALID);
+        TokenRejection rejection = result.rejection();
+        assertThat(tokenRetriever.introspect("an_expired_access_token").rejection()).isSameAs(rejection);
+        assertThat(rejection.toElasticsearchException()).has(headerContaining("WWW-Authenticate",
+                                                                               "delegateError=\"error=OAuth bearer token required. Token has expired\""))
+                                                        .has(headerContaining("WWW-Authenticate",
+                                                                              "Bearer realm=\"security\" charset=\"UTF-8\""));
+    }
+
+
+    @Test
+    public void should_report_idp_unavailable_with_its_retry_delay() {
+        stubFor(get(urlEqualTo("/token-info"))
+                        .willReturn(aResponse().withStatus(503)
+                                               .withHeader("Retry-After", "30")));
+
+        IntrospectionResult result = tokenRetriever.introspect("a_valid_access_token");
+
+        assertThat(result.status()).isEqualTo(IntrospectionResult.Status.UNAVAILABLE);
+        assertThat(result.retryAfterNanos()).isEqualTo(TimeUnit.SECONDS.toNanos(30));
+        assertThat(tokenRetriever.stats().failures()).isEqualTo(1);
+    }
+
+    @Test
+    public void should_report_idp_unavailable_when_it_answers_an_unexpected_status() {
+        stubFor(get(urlEqualTo("/token-info"))
+                        .willReturn(notFound()));
+
+        IntrospectionResult result = tokenRetriever.introspect("an_unknown_access_token");
+
+        assertThat(result.status()).isEqualTo(IntrospectionResult.Status.UNAVAILABLE);
+        assertThat(result.retryAfterNanos()).isZero();
+        assertThat(tokenRetriever.stats().failures()).isEqualTo(1);
+    }
+
+    @Test
+    public void should_report_idp_unavailable_when_it_answers_a_malformed_token_info() {
+        stubFor(get(urlEqualTo("/token-info"))
+                        .willReturn(okJson("{\"expires_in\":123,\"scope\":[]}")));
+
+        IntrospectionResult result = tokenRetriever.introspect("a_valid_access_token");
+
+        assertThat(result.status()).isEqualTo(IntrospectionResult.Status.UNAVAILABLE);
+        assertThat(result.cause()).isInstanceOf(NullPointerException.class);
+        assertThat(tokenRetriever.stats().failures()).isEqualTo(1);
     }
 
+    @Test
+    public void should_cap_the_retry_delay_asked_by_the_idp() {
+        stubFor(get(urlEqualTo("/token-info"))
+                        .willReturn(aResponse().withStatus(503)
+                                               .withHeader("Retry-After", "86400")));
+
+        assertThat(tokenRetriever.introspect("a_valid_access_token").retryAfterNanos()).isEqualTo(TimeUnit.SECONDS.toNanos(30));
+    }
+
+    @Test
+    public void should_back_off_when_idp_is_unavailable_without_retry_delay() {
+        stubFor(get(urlEqualTo("/token-info"))
+                        .willReturn(aResponse().withStatus(502)));
+
+        assertThat(tokenRetriever.introspect("a_valid_access_token").retryAfterNanos()).isEqualTo(TimeUnit.SECONDS.toNanos(1));
+    }
+
+    @Test
+    public void should_parse_retry_after_delay_in_seconds() {
+        long backoff = TimeUnit.SECONDS.toNanos(1);
+        long maxBackoff = TimeUnit.SECONDS.toNanos(30);
+        assertThat(HttpOAuthTokenRetriever.retryAfterNanos(null, backoff, maxBackoff)).isEqualTo(backoff);
+        assertThat(HttpOAuthTokenRetriever.retryAfterNanos(" 2 ", backoff, maxBackoff)).isEqualTo(TimeUnit.SECONDS.toNanos(2));
+        assertThat(HttpOAuthTokenRetriever.retryAfterNanos("3600", backoff, maxBackoff)).isEqualTo(maxBackoff);
+        assertThat(HttpOAuthTokenRetriever.retryAfterNanos("Wed, 21 Oct 2015 07:28:00 GMT", backoff, maxBackoff)).isEqualTo(backoff);
+    }
 
     @Test
     public void should_fail_authentication_when_idp_tokeninfo_body_cannot_be_read() {
@@ -168,9 +242,55 @@ public class HttpOAuthTokenRetrieverTest {
         );
         given(tokenBodyReader.apply(any())).willThrow(new UncheckedIOException(new IOException()));
 
-        assertThatExceptionOfType(ElasticsearchSecurityException.class).isThrownBy(() -> tokenRetriever.getTokenInfo("an_expired_access_token"))
-                                                                       .has(headerContaining("WWW-Authenticate",
-                                                                                             "Bearer realm=\"security\" charset=\"UTF-8\""));
+        IntrospectionResult result = tokenRetriever.introspect("an_expired_access_token");
+
+        assertThat(result.status()).isEqualTo(IntrospectionResult.Status.UNAVAILABLE);
+        assertThat(result.toElasticsearchException()).has(headerContaining("WWW-Authenticate",
+                                                                           "Bearer realm=\"security\" charset=\"UTF-8\""));
+    }
+
+    @Test
+    public void should_reuse_keep_alive_http_1_1_connection_by_default() {
+        stubFor(get(urlEqualTo("/token-info")).willReturn(okJson(tokenInfoPayload("bob", 123))));
+
+        for (int i = 0; i < 5; i++) {
+            assertThat(tokenRetriever.introspect("a_valid_access_token").status()).isEqualTo(IntrospectionResult.Status.VALID);
+        }
+
+        assertThat(tokenRetriever.stats().openedConnections()).isEqualTo(1);
+        assertThat(tokenRetriever.stats().http2Connections()).isZero();
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void should_pre_warm_idp_connections_in_background() throws InterruptedException {
+        stubFor(WireMock.any(urlEqualTo("/token-info")).willReturn(unauthorized()));
+        RequestPatternBuilder prewarmRequests = new RequestPatternBuilder(RequestMethod.HEAD, urlEqualTo("/token-info"));
+
+        tokenRetriever = new HttpOAuthTokenRetriever(
+                new RealmConfig("oauth",
+                                Settings.builder()
+                                        .put("type", OAuthRealm.TYPE)
+                                        .put("token-info.url", HttpUrl.parse("http://localhost:80/token-info")
+                                                                      .newBuilder()
+                                                                      .port(wireMockRule.port())
+                                                                      .build()
+                                                                      .toString())
+                                        .put("idp.prewarm-connections", 2)
+                                        .build(),
+                                Settings.builder()
+                                        .put("path.home", "ignored")
+                                        .build(),
+                                new ThreadContext(Settings.EMPTY)),
+                Mockito.mock(Function.class)
+        );
+
+        long deadline = System.currentTimeMillis() + 5_000;
+        while (findAll(prewarmRequests).size() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(findAll(prewarmRequests)).hasSize(2);
+        assertThat(tokenRetriever.stats().connections()).isGreaterThanOrEqualTo(1);
     }
 
 
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2017 Brice Dutheil
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.arkey.elasticsearch.oauth.realm.tokeninfo;
+
+import java.net.URISyntaxException;
+import java.nio.file.Paths;
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import fr.arkey.elasticsearch.oauth.realm.OAuthRealm;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.ThreadContext;
+import org.elasticsearch.xpack.security.authc.RealmConfig;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import static java.time.temporal.ChronoUnit.SECONDS;
+import static java.util.Collections.emptySet;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.okJson;
+import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.wireMockConfig;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class HttpOAuthTokenRetrieverTlsTest {
+
+    @Rule
+    public WireMockRule tlsIdp = new WireMockRule(wireMockConfig().dynamicPort()
+                                                                  .dynamicHttpsPort()
+                                                                  .keystorePath(resource("idp-server.jks"))
+                                                                  .keystorePassword("changeit")
+                                                                  .needClientAuth(true)
+                                                                  .trustStorePath(resource("idp-server-truststore.jks"))
+                                                                  .trustStorePassword("changeit"));
+
+    @Before
+    public void stub_token_info() {
+        stubFor(get(urlEqualTo("/token-info")).willReturn(okJson("{\"user_id\":\"bob\"}")));
+    }
+
+    @Test
+    public void should_resume_tls_session_when_opening_new_connections() {
+        HttpOAuthTokenRetriever tokenRetriever = tokenRetriever(
+                Settings.builder()
+                        .put("idp.ssl.truststore.path", resource("idp-truststore.jks"))
+                        .put("idp.ssl.truststore.password", "changeit")
+                        .put("idp.ssl.keystore.path", resource("idp-client.jks"))
+                        .put("idp.ssl.keystore.password", "changeit")
+                        .putArray("idp.ssl.supported_protocols", "TLSv1.2")
+                        // connections are closed once released, each request needs a new connection
+                        .put("idp.max-idle-connections", 0));
+
+        for (int i = 0; i < 3; i++) {
+            assertThat(tokenRetriever.introspect("a_valid_access_token").status()).isEqualTo(IntrospectionResult.Status.VALID);
+        }
+
+        assertThat(tokenRetriever.stats().openedConnections()).isEqualTo(3);
+        assertThat(tokenRetriever.stats().fullHandshakes()).isEqualTo(1);
+        assertThat(tokenRetriever.stats().resumedHandshakes()).isEqualTo(2);
+    }
+
+    @Test
+    public void should_fail_when_idp_certificate_is_not_trusted() {
+        HttpOAuthTokenRetriever tokenRetriever = tokenRetriever(
+                Settings.builder()
+                        .put("idp.ssl.keystore.path", resource("idp-client.jks"))
+                        .put("idp.ssl.keystore.password", "changeit"));
+
+        assertThat(tokenRetriever.introspect("a_valid_access_token").status()).isEqualTo(IntrospectionResult.Status.UNAVAILABLE);
+        assertThat(tokenRetriever.stats().fullHandshakes()).isZero();
+    }
+
+    @Test
+    public void should_fail_when_client_certificate_is_missing() {
+        HttpOAuthTokenRetriever tokenRetriever = tokenRetriever(
+                Settings.builder()
+                        .put("idp.ssl.truststore.path", resource("idp-truststore.jks"))
+                        .put("idp.ssl.truststore.password", "changeit"));
+
+        assertThat(tokenRetriever.introspect("a_valid_access_token").status()).isEqualTo(IntrospectionResult.Status.UNAVAILABLE);
+    }
+
+    private HttpOAuthTokenRetriever tokenRetriever(Settings.Builder idpSettings) {
+        return new HttpOAuthTokenRetriever(
+                new RealmConfig("oauth",
+                                idpSettings.put("type", OAuthRealm.TYPE)
+                                           .put("token-info.url", "https://localhost:" + tlsIdp.httpsPort() + "/token-info")
+                                           .build(),
+                                Settings.builder()
+                                        .put("path.home", "ignored")
+                                        .build(),
+                                new ThreadContext(Settings.EMPTY)),
+                tokenInfo -> new TokenInfo("bob", 60, SECONDS, emptySet()));
+    }
+
+    private static String resource(String name) {
+        try {
+            return Paths.get(HttpOAuthTokenRetrieverTlsTest.class.getResource("/idp-tls/" + name).toURI()).toString();
+        } catch (URISyntaxException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2017 Brice Dutheil
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.arkey.elasticsearch.oauth.realm.tokeninfo;
+
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Test;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class IntrospectionRateLimiterTest {
+    private final AtomicLong clock = new AtomicLong();
+
+    @Test
+    public void should_allow_burst_then_reject_until_next_emission() {
+        IntrospectionRateLimiter limiter = new IntrospectionRateLimiter(10, 3, 100, clock::get);
+
+        assertThat(limiter.tryAcquire("10.0.0.1")).isEqualTo(IntrospectionRateLimiter.GRANTED);
+        assertThat(limiter.tryAcquire("10.0.0.1")).isEqualTo(IntrospectionRateLimiter.GRANTED);
+        assertThat(limiter.tryAcquire("10.0.0.1")).isEqualTo(IntrospectionRateLimiter.GRANTED);
+        assertThat(limiter.tryAcquire("10.0.0.1")).isEqualTo(MILLISECONDS.toNanos(100));
+
+        clock.addAndGet(MILLISECONDS.toNanos(100));
+        assertThat(limiter.tryAcquire("10.0.0.1")).isEqualTo(IntrospectionRateLimiter.GRANTED);
+        assertThat(limiter.tryAcquire("10.0.0.1")).isEqualTo(MILLISECONDS.toNanos(100));
+    }
+
+    @Test
+    public void should_limit_each_source_independently() {
+        IntrospectionRateLimiter limiter = new IntrospectionRateLimiter(1, 1, 100, clock::get);
+
+        assertThat(limiter.tryAcquire("10.0.0.1")).isEqualTo(IntrospectionRateLimiter.GRANTED);
+        assertThat(limiter.tryAcquire("10.0.0.1")).isPositive();
+        assertThat(limiter.tryAcquire("10.0.0.2")).isEqualTo(IntrospectionRateLimiter.GRANTED);
+    }
+
+    @Test
+    public void should_not_accumulate_more_than_burst_when_idle() {
+        IntrospectionRateLimiter limiter = new IntrospectionRateLimiter(10, 2, 100, clock::get);
+        limiter.tryAcquire("10.0.0.1");
+
+        clock.addAndGet(MILLISECONDS.toNanos(10_000));
+
+        assertThat(limiter.tryAcquire("10.0.0.1")).isEqualTo(IntrospectionRateLimiter.GRANTED);
+        assertThat(limiter.tryAcquire("10.0.0.1")).isEqualTo(IntrospectionRateLimiter.GRANTED);
+        assertThat(limiter.tryAcquire("10.0.0.1")).isPositive();
+    }
+
+    @Test
+    public void should_bound_tracked_sources() {
+        IntrospectionRateLimiter limiter = new IntrospectionRateLimiter(1, 1, 10, clock::get);
+
+        for (int i = 0; i < 1_000; i++) {
+            limiter.tryAcquire("10.0.0." + i);
+        }
+
+        assertThat(limiter.trackedSources()).isLessThanOrEqualTo(10);
+    }
+
+    @Test
+    public void should_reject_non_positive_rate_or_burst() {
+        assertThatThrownBy(() -> new IntrospectionRateLimiter(0, 1, 10)).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> new IntrospectionRateLimiter(1, 0, 10)).isInstanceOf(IllegalArgumentException.class);
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2017 Brice Dutheil
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.arkey.elasticsearch.oauth.realm.tokeninfo;
+
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import fr.arkey.elasticsearch.oauth.realm.OAuthRealm;
+import fr.arkey.elasticsearch.oauth.realm.support.OAuthRealmExceptions;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.ThreadContext;
+import org.elasticsearch.xpack.security.authc.RealmConfig;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnit;
+import org.mockito.junit.MockitoRule;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.time.temporal.ChronoUnit.MINUTES;
+import static java.util.Collections.emptySet;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class IssuerRoutingTokenRetrieverTest {
+    @Rule
+    public MockitoRule mockitoRule = MockitoJUnit.rule();
+
+    @Mock
+    private OAuthTokenRetriever corpRetriever;
+    @Mock
+    private OAuthTokenRetriever partnersRetriever;
+
+    private final IntrospectionResult bob = IntrospectionResult.valid(new TokenInfo("bob", 12, MINUTES, emptySet()));
+
+    @Test
+    public void should_require_at_least_one_issuer() {
+        assertThatThrownBy(() -> new IssuerRoutingTokenRetriever(realmConfig(), new HashMap<>()))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void should_route_tokens_by_prefix() {
+        given(partnersRetriever.introspect("ptn.opaque")).willReturn(bob);
+
+        assertThat(retriever().introspect("ptn.opaque")).isSameAs(bob);
+
+        verify(corpRetriever, never()).introspect(any());
+    }
+
+    @Test
+    public void should_route_jwt_by_issuer_claim() {
+        String jwt = jwt("{\"sub\":\"bob\",\"aud\":[\"es\"],\"iss\":\"https://idp.corp.example\"}");
+        given(corpRetriever.introspect(jwt)).willReturn(bob);
+
+        assertThat(retriever().introspect(jwt)).isSameAs(bob);
+
+        verify(partnersRetriever, never()).introspect(any());
+    }
+
+    @Test
+    public void should_not_introspect_jwt_of_unknown_issuer() {
+        assertThat(retriever().introspect(jwt("{\"iss\":\"https://evil.example\"}"))).isSameAs(IntrospectionResult.UNKNOWN_TOKEN);
+
+        verify(corpRetriever, never()).introspect(any());
+        verify(partnersRetriever, never()).introspect(any());
+    }
+
+    @Test
+    public void should_not_probe_issuers_by_default() {
+        assertThat(retriever().introspect("opaque")).isSameAs(IntrospectionResult.UNKNOWN_TOKEN);
+
+        verify(corpRetriever, never()).introspect(any());
+        verify(partnersRetriever, never()).introspect(any());
+    }
+
+    @Test
+    public void should_probe_issuers_then_memoize_the_issuer_of_the_token() {
+        IssuerRoutingTokenRetriever retriever = probingRetriever();
+        given(corpRetriever.introspect("opaque")).willReturn(IntrospectionResult.UNKNOWN_TOKEN);
+        given(partnersRetriever.introspect("opaque")).willReturn(bob);
+
+        assertThat(retriever.introspect("opaque")).isSameAs(bob);
+        assertThat(retriever.introspect("opaque")).isSameAs(bob);
+
+        verify(corpRetriever, times(1)).introspect("opaque");
+        verify(partnersRetriever, times(2)).introspect("opaque");
+        assertThat(retriever.memoSize()).isEqualTo(1);
+    }
+
+    @Test
+    public void should_prefer_unavailability_over_rejection_when_no_issuer_knows_the_token() {
+        IntrospectionResult unavailable = IntrospectionResult.unavailable(null, 0);
+        given(corpRetriever.introspect("opaque")).willReturn(unavailable);
+        given(partnersRetriever.introspect("opaque")).willReturn(IntrospectionResult.invalid(OAuthRealmExceptions.tokenRejected("error=invalid token")));
+
+        assertThat(probingRetriever().introspect("opaque")).isSameAs(unavailable);
+    }
+
+    @Test
+    public void should_extract_issuer_of_compact_jwt_only() {
+        assertThat(IssuerRoutingTokenRetriever.jwtIssuer(jwt("{\"iss\":\"https://idp.corp.example\"}"))).isEqualTo("https://idp.corp.example");
+        assertThat(IssuerRoutingTokenRetriever.jwtIssuer(jwt("{\"sub\":\"bob\"}"))).isNull();
+        assertThat(IssuerRoutingTokenRetriever.jwtIssuer(jwt("{\"iss\":42}"))).isNull();
+        assertThat(IssuerRoutingTokenRetriever.jwtIssuer(jwt("not json"))).isNull();
+        assertThat(IssuerRoutingTokenRetriever.jwtIssuer("a.b*c.d")).isNull();
+        assertThat(IssuerRoutingTokenRetriever.jwtIssuer("opaque")).isNull();
+        assertThat(IssuerRoutingTokenRetriever.jwtIssuer(jwt("{\"iss\":\"x\"}") + ".extra")).isNull();
+    }
+
+    private IssuerRoutingTokenRetriever retriever() {
+        return retriever(realmConfig());
+    }
+
+    private IssuerRoutingTokenRetriever probingRetriever() {
+        return retriever(realmConfig(Settings.builder().put("issuers-probe.enabled", true)));
+    }
+
+    private IssuerRoutingTokenRetriever retriever(RealmConfig realmConfig) {
+        Map<String, OAuthTokenRetriever> retrievers = new HashMap<>();
+        retrievers.put("corp", corpRetriever);
+        retrievers.put("partners", partnersRetriever);
+        return new IssuerRoutingTokenRetriever(realmConfig, retrievers);
+    }
+
+    private static String jwt(String payload) {
+        Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+        return encoder.encodeToString("{\"alg\":\"RS256\"}".getBytes(UTF_8))
+               + "." + encoder.encodeToString(payload.getBytes(UTF_8))
+               + ".c2lnbmF0dXJl";
+    }
+
+    private static RealmConfig realmConfig() {
+        return realmConfig(Settings.builder());
+    }
+
+    private static RealmConfig realmConfig(Settings.Builder settings) {
+        return new RealmConfig("oauth",
+                               settings.put("type", OAuthRealm.TYPE)
+                                       .put("issuers.corp.iss", "https://idp.corp.example")
+                                       .put("issuers.corp.token-info.url", "https://idp.corp.example/token-info")
+                                       .put("issuers.partners.token-prefix", "ptn.")
+                                       .put("issuers.partners.token-info.url", "https://idp.partners.example/token-info")
+                                       .build(),
+                               Settings.builder()
+                                       .put("path.home", "ignored")
+                                       .build(),
+                               new ThreadContext(Settings.EMPTY));
+    }
+}
@@ -31,6 +31,7 @@ import org.junit.Test;
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+import static org.assertj.core.api.Assertions.entry;
 
 public class MapTokenInfoTest {
 
@@ -77,6 +78,56 @@ public class MapTokenInfoTest {
         assertThat(mapTokenInfo.apply(new ByteArrayInputStream("{\"user_id\":\"bob\",\"expires_in\":987,\"scope\":[]}".getBytes(UTF_8)))).isEqualTo(new TokenInfo("bob", 987, ChronoUnit.SECONDS, Collections.emptySet()));
     }
 
+    @Test
+    public void should_resolve_roles_from_the_roles_claim() {
+
+        MapTokenInfo mapTokenInfo = new MapTokenInfo(new RealmConfig("oauth",
+                                                                     Settings.builder()
+                                                                             .put("type", OAuthRealm.TYPE)
+                                                                             .put("token-info.field.user", "user_id")
+                                                                             .put("token-info.field.expires-in", "expires_in")
+                                                                             .put("token-info.field.scope", "scope")
+                                                                             .put("token-info.field.roles-claim", "groups")
+                                                                             .put("token-info.claim-roles.teams.match", "team-*")
+                                                                             .put("token-info.claim-roles.teams.role", "{{value}}_reader")
+                                                                             .build(),
+                                                                     Settings.builder()
+                                                                             .put("path.home", "ignored")
+                                                                             .build(),
+                                                                     new ThreadContext(Settings.EMPTY)));
+
+        assertThat(mapTokenInfo.apply(new ByteArrayInputStream("{\"user_id\":\"bob\",\"expires_in\":987,\"scope\":[],\"groups\":[\"team-a\",\"other\"]}".getBytes(UTF_8))).claimRoles).containsExactly("team-a_reader");
+        assertThat(mapTokenInfo.apply(new ByteArrayInputStream("{\"user_id\":\"bob\",\"expires_in\":987,\"scope\":[],\"groups\":\"team-b\"}".getBytes(UTF_8))).claimRoles).containsExactly("team-b_reader");
+        assertThat(mapTokenInfo.apply(new ByteArrayInputStream("{\"user_id\":\"bob\",\"expires_in\":987,\"scope\":[]}".getBytes(UTF_8))).claimRoles).isEmpty();
+    }
+
+    @Test
+    public void should_map_profile_claims_once() {
+
+        MapTokenInfo mapTokenInfo = new MapTokenInfo(new RealmConfig("oauth",
+                                                                     Settings.builder()
+                                                                             .put("type", OAuthRealm.TYPE)
+                                                                             .put("token-info.field.user", "user_id")
+                                                                             .put("token-info.field.expires-in", "expires_in")
+                                                                             .put("token-info.field.scope", "scope")
+                                                                             .put("token-info.field.full-name", "name")
+                                                                             .put("token-info.field.email", "email")
+                                                                             .put("token-info.metadata.department", "dept")
+                                                                             .put("token-info.metadata.tenant", "tenant_id")
+                                                                             .build(),
+                                                                     Settings.builder()
+                                                                             .put("path.home", "ignored")
+                                                                             .build(),
+                                                                     new ThreadContext(Settings.EMPTY)));
+
+        TokenInfo tokenInfo = mapTokenInfo.apply(new ByteArrayInputStream("{\"user_id\":\"bob\",\"expires_in\":987,\"scope\":[],\"name\":\"Bob Smith\",\"email\":\"bob@example.com\",\"dept\":\"sales\"}".getBytes(UTF_8)));
+
+        assertThat(tokenInfo.fullName).isEqualTo("Bob Smith");
+        assertThat(tokenInfo.email).isEqualTo("bob@example.com");
+        assertThat(tokenInfo.metadata).containsOnly(entry("department", "sales"));
+        assertThatExceptionOfType(UnsupportedOperationException.class).isThrownBy(() -> tokenInfo.metadata.put("tenant", "other"));
+    }
+
 
     private static class FailingInputStream extends InputStream {
         @Override